@@ -0,0 +1,23 @@
+-- 聊天消息表
+-- seq 为会话内单调递增的序号，由应用在写入时分配（见 ChatMessageRepository）。
+-- 唯一键 (conversation_id, seq) 保证多实例写入同一会话时不会出现重复序号，冲突时应用重新分配后重试；
+-- 会话摘要固定使用 seq = 0，每个会话最多一条。
+-- 所有历史查询都是 conversation_id = ? AND is_delete = 0 ORDER BY seq [LIMIT n]，
+-- 联合索引 (conversation_id, is_delete, seq) 按索引顺序定位，避免 filesort，
+-- keyset 分页（seq > ?）在百万级数据下也只定位需要的行；查询读取整行，每行仍需回表。
+-- 本文件用于新建库；没有 seq 列的已有表执行 chat_message_add_seq.sql 迁移。
+
+create table if not exists chat_message
+(
+    id              bigint                             not null comment 'id' primary key,
+    conversation_id varchar(64)                        not null comment '会话ID',
+    seq             bigint                             not null default 0 comment '会话内序号',
+    message_type    varchar(32)                        not null comment '消息类型',
+    content         text                               null comment '消息内容',
+    metadata        json                               null comment '元数据',
+    create_time     datetime default CURRENT_TIMESTAMP not null comment '创建时间',
+    update_time     datetime default CURRENT_TIMESTAMP not null on update CURRENT_TIMESTAMP comment '更新时间',
+    is_delete       tinyint  default 0                 not null comment '是否删除',
+    unique key uk_conversation_seq (conversation_id, seq),
+    index idx_conversation_seq (conversation_id, is_delete, seq)
+) comment '聊天消息' collate = utf8mb4_unicode_ci;
@@ -0,0 +1,25 @@
+-- 已有 chat_message 表增加会话内序号 seq、联合索引及唯一键（MySQL 8.0+）
+-- 只对没有 seq 列的旧表执行一次；新建库直接使用 chat_message.sql，无需执行本文件。
+
+-- 1. 增加序号列
+alter table chat_message
+    add column seq bigint not null default 0 comment '会话内序号' after conversation_id;
+
+-- 2. 按原有顺序（创建时间，同一秒内按 id）回填序号
+update chat_message m
+    join (select id,
+                 row_number() over (partition by conversation_id order by create_time, id) as rn
+          from chat_message) t on m.id = t.id
+set m.seq = t.rn;
+
+-- 3. 建立联合索引（数据量大时建议使用 ALGORITHM=INPLACE, LOCK=NONE 在线执行）
+alter table chat_message
+    add index idx_conversation_seq (conversation_id, is_delete, seq), algorithm = inplace, lock = none;
+
+-- 4. 回填后同一会话内序号已唯一，增加唯一键；应用依赖它检测多实例写入时的序号冲突
+--    （回填期间如有新写入，先按步骤 2 重新回填冲突的会话再执行）
+alter table chat_message
+    add unique key uk_conversation_seq (conversation_id, seq), algorithm = inplace, lock = none;
+
+-- 5. 原按 create_time 排序的索引（如存在）可在确认无查询使用后删除
+-- alter table chat_message drop index idx_conversation_create_time;
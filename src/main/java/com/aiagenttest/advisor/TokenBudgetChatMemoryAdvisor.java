@@ -0,0 +1,141 @@
+package com.aiagenttest.advisor;
+
+import com.aiagenttest.utils.TokenEstimator;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.client.advisor.AbstractChatMemoryAdvisor;
+import org.springframework.ai.chat.client.advisor.api.*;
+import org.springframework.ai.chat.memory.ChatMemory;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.ai.chat.model.MessageAggregator;
+import reactor.core.publisher.Flux;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 按 token 预算选取历史消息的对话记忆 Advisor
+ * <p>
+ * 与 MessageChatMemoryAdvisor 的读写方式相同，但不是固定取最近 N 条，而是从最近的消息开始往前选取，
+ * 直到用完 token 预算。系统提示词和本轮用户消息总是保留，预算扣除它们之后才分配给历史消息。
+ * 每次请求会记录实际使用和节省（相对固定 10 条窗口）的 token 数，并写入 advise context。
+ * <p>
+ * 可通过 {@link #CHAT_MEMORY_TOKEN_BUDGET_KEY} 为单次请求指定预算，
+ * CHAT_MEMORY_RETRIEVE_SIZE_KEY 仍可用于限制候选历史消息的最大条数。
+ */
+@Slf4j
+public class TokenBudgetChatMemoryAdvisor extends AbstractChatMemoryAdvisor<ChatMemory> {
+
+    /**
+     * 单次请求的 token 预算（系统提示词 + 历史消息 + 用户消息）
+     */
+    public static final String CHAT_MEMORY_TOKEN_BUDGET_KEY = "chat_memory_token_budget";
+
+    /**
+     * 本次请求历史消息占用的 token 数（写入 advise context）
+     */
+    public static final String CHAT_MEMORY_HISTORY_TOKENS_KEY = "chat_memory_history_tokens";
+
+    /**
+     * 本次请求相对固定条数窗口节省的 token 数（写入 advise context，可能为负）
+     */
+    public static final String CHAT_MEMORY_TOKENS_SAVED_KEY = "chat_memory_tokens_saved";
+
+    // 默认最多考虑的历史消息条数
+    private static final int DEFAULT_MAX_CANDIDATES = 50;
+
+    // 对比用的固定窗口条数（原来的 CHAT_MEMORY_RETRIEVE_SIZE）
+    private static final int BASELINE_WINDOW = 10;
+
+    private final int defaultTokenBudget;
+
+    public TokenBudgetChatMemoryAdvisor(ChatMemory chatMemory, int defaultTokenBudget) {
+        super(chatMemory, DEFAULT_CHAT_MEMORY_CONVERSATION_ID, DEFAULT_MAX_CANDIDATES, true);
+        this.defaultTokenBudget = defaultTokenBudget;
+    }
+
+    @Override
+    public AdvisedResponse aroundCall(AdvisedRequest advisedRequest, CallAroundAdvisorChain chain) {
+
+        advisedRequest = before(advisedRequest);
+
+        AdvisedResponse advisedResponse = chain.nextAroundCall(advisedRequest);
+
+        observeAfter(advisedResponse);
+
+        return advisedResponse;
+    }
+
+    @Override
+    public Flux<AdvisedResponse> aroundStream(AdvisedRequest advisedRequest, StreamAroundAdvisorChain chain) {
+
+        Flux<AdvisedResponse> advisedResponses = doNextWithProtectFromBlockingBefore(advisedRequest, chain, this::before);
+
+        return new MessageAggregator().aggregateAdvisedResponse(advisedResponses, this::observeAfter);
+    }
+
+    private AdvisedRequest before(AdvisedRequest request) {
+        String conversationId = doGetConversationId(request.adviseContext());
+        int maxCandidates = doGetChatMemoryRetrieveSize(request.adviseContext());
+        int tokenBudget = getTokenBudget(request.adviseContext());
+
+        // 系统提示词、已有消息和本轮用户消息必须保留，剩余预算分配给历史消息
+        int reserved = TokenEstimator.estimate(request.systemText())
+                + TokenEstimator.estimate(request.messages())
+                + TokenEstimator.estimate(request.userText());
+        int historyBudget = Math.max(0, tokenBudget - reserved);
+
+        List<Message> candidates = getChatMemoryStore().get(conversationId, maxCandidates);
+        int[] tokens = new int[candidates.size()];
+        int used = 0;
+        int from = candidates.size();
+        for (int i = candidates.size() - 1; i >= 0; i--) {
+            tokens[i] = TokenEstimator.estimate(candidates.get(i));
+            if (used + tokens[i] > historyBudget) {
+                break;
+            }
+            used += tokens[i];
+            from = i;
+        }
+        List<Message> memoryMessages = candidates.subList(from, candidates.size());
+
+        int baseline = 0;
+        for (int i = Math.max(0, candidates.size() - BASELINE_WINDOW); i < candidates.size(); i++) {
+            baseline += tokens[i] > 0 ? tokens[i] : TokenEstimator.estimate(candidates.get(i));
+        }
+        int saved = baseline - used;
+        log.info("Chat memory {}: kept {}/{} messages, history {} tokens (budget {}, reserved {}), saved {} tokens vs last {}",
+                conversationId, memoryMessages.size(), candidates.size(), used, historyBudget, reserved, saved, BASELINE_WINDOW);
+
+        List<Message> advisedMessages = new ArrayList<>(request.messages());
+        advisedMessages.addAll(memoryMessages);
+        Map<String, Object> adviseContext = new HashMap<>(request.adviseContext());
+        adviseContext.put(CHAT_MEMORY_HISTORY_TOKENS_KEY, used);
+        adviseContext.put(CHAT_MEMORY_TOKENS_SAVED_KEY, saved);
+        AdvisedRequest advisedRequest = AdvisedRequest.from(request)
+                .messages(advisedMessages)
+                .adviseContext(adviseContext)
+                .build();
+
+        UserMessage userMessage = new UserMessage(request.userText(), request.media());
+        getChatMemoryStore().add(conversationId, userMessage);
+
+        return advisedRequest;
+    }
+
+    private void observeAfter(AdvisedResponse advisedResponse) {
+        List<Message> assistantMessages = advisedResponse.response()
+                .getResults()
+                .stream()
+                .map(generation -> (Message) generation.getOutput())
+                .toList();
+        getChatMemoryStore().add(doGetConversationId(advisedResponse.adviseContext()), assistantMessages);
+    }
+
+    private int getTokenBudget(Map<String, Object> context) {
+        Object budget = context.get(CHAT_MEMORY_TOKEN_BUDGET_KEY);
+        return budget != null ? Integer.parseInt(budget.toString()) : defaultTokenBudget;
+    }
+}
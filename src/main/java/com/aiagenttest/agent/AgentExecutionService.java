@@ -0,0 +1,206 @@
+package com.aiagenttest.agent;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 代理执行服务
+ * <p>
+ * 代理运行过程中包含大量阻塞调用（大模型、数据库、工具 HTTP 请求、打字机等待），
+ * 不能放在公共 ForkJoinPool 中执行。默认使用虚拟线程（每个任务一个），
+ * 运行环境不支持虚拟线程或显式配置为 platform 时，退化为有界的平台线程池。
+ * <p>
+ * 代理运行中会阻塞等待的子任务（检索预取、工具调用）不能提交到有界的代理线程池：所有线程都在等待子任务时，
+ * 子任务排在队列里永远得不到执行。平台线程模式下子任务使用单独的线程池，不排队，线程耗尽时拒绝，由调用方就地执行。
+ */
+@Component
+@Slf4j
+public class AgentExecutionService {
+
+    private final ExecutorService executor;
+
+    // 检索预取执行器，虚拟线程模式下与 executor 相同
+    private final ExecutorService prefetchExecutor;
+
+    // 工具调用执行器，虚拟线程模式下与 executor 相同
+    private final ExecutorService toolExecutor;
+
+    // 实际使用的执行器类型：virtual / platform
+    private final String executorType;
+
+    // 已提交但尚未开始执行的任务数
+    private final AtomicInteger queuedRuns = new AtomicInteger();
+
+    // 正在执行的任务数
+    private final AtomicInteger activeRuns = new AtomicInteger();
+
+    private final AtomicLong completedRuns = new AtomicLong();
+
+    private final AtomicLong rejectedRuns = new AtomicLong();
+
+    public AgentExecutionService(@Value("${agent.executor.type:virtual}") String type,
+                                 @Value("${agent.executor.pool-size:32}") int poolSize,
+                                 @Value("${agent.executor.queue-capacity:200}") int queueCapacity,
+                                 @Value("${agent.executor.prefetch-pool-size:16}") int prefetchPoolSize,
+                                 @Value("${agent.executor.tool-pool-size:64}") int toolPoolSize) {
+        ExecutorService virtualExecutor = "virtual".equalsIgnoreCase(type) ? createVirtualExecutor() : null;
+        if (virtualExecutor != null) {
+            this.executor = virtualExecutor;
+            this.prefetchExecutor = virtualExecutor;
+            this.toolExecutor = virtualExecutor;
+            this.executorType = "virtual";
+        } else {
+            this.executor = createPlatformExecutor(poolSize, queueCapacity);
+            this.prefetchExecutor = createHandoffExecutor("rag-prefetch-", prefetchPoolSize);
+            this.toolExecutor = createHandoffExecutor("agent-tool-", toolPoolSize);
+            this.executorType = "platform";
+        }
+        log.info("Agent execution service started with {} threads", executorType);
+    }
+
+    /**
+     * 异步执行代理任务
+     *
+     * @param task 代理任务
+     * @return 任务完成的 Future；执行器饱和时返回以 {@link RejectedExecutionException} 失败的 Future
+     */
+    public CompletableFuture<Void> submit(Runnable task) {
+        queuedRuns.incrementAndGet();
+        try {
+            return CompletableFuture.runAsync(() -> {
+                queuedRuns.decrementAndGet();
+                activeRuns.incrementAndGet();
+                try {
+                    task.run();
+                } finally {
+                    activeRuns.decrementAndGet();
+                    completedRuns.incrementAndGet();
+                }
+            }, executor);
+        } catch (RejectedExecutionException e) {
+            queuedRuns.decrementAndGet();
+            rejectedRuns.incrementAndGet();
+            log.warn("Agent run rejected, executor saturated (active={}, queued={})", activeRuns.get(), queuedRuns.get());
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * 底层执行器，只用于代理任务本身；代理任务中需要等待的子任务使用 {@link #getPrefetchExecutor()}、{@link #getToolExecutor()}
+     */
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * 检索预取执行器，不会与代理任务争抢线程；饱和时抛出 {@link RejectedExecutionException}
+     */
+    public ExecutorService getPrefetchExecutor() {
+        return prefetchExecutor;
+    }
+
+    /**
+     * 工具调用执行器，不会与代理任务争抢线程；饱和时抛出 {@link RejectedExecutionException}
+     */
+    public ExecutorService getToolExecutor() {
+        return toolExecutor;
+    }
+
+    public int getQueuedRuns() {
+        return queuedRuns.get();
+    }
+
+    public int getActiveRuns() {
+        return activeRuns.get();
+    }
+
+    /**
+     * 执行器指标
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("executorType", executorType);
+        metrics.put("queuedRuns", queuedRuns.get());
+        metrics.put("activeRuns", activeRuns.get());
+        metrics.put("completedRuns", completedRuns.get());
+        metrics.put("rejectedRuns", rejectedRuns.get());
+        return metrics;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (prefetchExecutor != executor) {
+            prefetchExecutor.shutdownNow();
+        }
+        if (toolExecutor != executor) {
+            toolExecutor.shutdownNow();
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 通过反射创建虚拟线程执行器，JDK 21 以下返回 null
+     */
+    private static ExecutorService createVirtualExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            log.warn("Virtual threads are not available on this JVM, falling back to platform threads");
+            return null;
+        }
+    }
+
+    private static ExecutorService createPlatformExecutor(int poolSize, int queueCapacity) {
+        AtomicInteger threadIndex = new AtomicInteger();
+        ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(poolSize, poolSize,
+                60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                r -> {
+                    Thread thread = new Thread(r, "agent-run-" + threadIndex.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+        threadPoolExecutor.allowCoreThreadTimeOut(true);
+        return threadPoolExecutor;
+    }
+
+    /**
+     * 不排队的有界平台线程池，没有空闲线程时直接拒绝
+     */
+    private static ExecutorService createHandoffExecutor(String threadPrefix, int maxThreads) {
+        AtomicInteger threadIndex = new AtomicInteger();
+        return new ThreadPoolExecutor(0, Math.max(1, maxThreads),
+                60L, TimeUnit.SECONDS,
+                new SynchronousQueue<>(),
+                r -> {
+                    Thread thread = new Thread(r, threadPrefix + threadIndex.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+}
@@ -0,0 +1,245 @@
+package com.aiagenttest.agent;
+
+import cn.hutool.core.util.StrUtil;
+import com.aiagenttest.agent.model.AgentState;
+import com.aiagenttest.chatmemory.ChatHistoryCache;
+import com.aiagenttest.chatmemory.ChatMessageJournal;
+import com.aiagenttest.chatmemory.ConversationSummarizer;
+import com.aiagenttest.repository.ChatMessageRepository;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.client.ChatClient;
+import org.springframework.ai.chat.client.advisor.api.Advisor;
+import org.springframework.ai.chat.model.ChatModel;
+import org.springframework.ai.chat.prompt.ChatOptions;
+import org.springframework.ai.model.tool.ToolCallingManager;
+import org.springframework.ai.rag.retrieval.search.DocumentRetriever;
+import org.springframework.ai.tool.ToolCallback;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * AiManus 会话工厂
+ * <p>
+ * 按会话ID创建相互隔离的 {@link AiManus} 实例（各自持有 messageList、state、conversationId 等可变状态），
+ * 所有实例复用同一份 ChatClient、工具列表、工具调用管理者和选项，并定期回收空闲会话。
+ * <p>
+ * {@link #obtain} 为会话加一个租约，代理运行结束时释放；只回收没有租约且未在运行的会话，
+ * 避免在取得实例到开始运行之间被回收，导致同一会话出现两个实例。
+ */
+@Component
+@Slf4j
+public class AiManusFactory {
+
+    // 共享的不可变组件
+    private final ToolCallback[] allTools;
+    private final ChatClient chatClient;
+    private final ToolCallingManager toolCallingManager;
+    private final ChatOptions chatOptions;
+
+    // 需要手动注入到会话实例中的依赖
+    private final ChatMessageRepository chatMessageRepository;
+    private final Advisor loveAppRagCloudAdvisor;
+    // 预取检索使用的检索器，关闭预取时为 null
+    private final DocumentRetriever loveAppDocumentRetriever;
+    // 等待预取结果的最长时间
+    private final long ragPrefetchTimeoutMillis;
+    private final AgentExecutionService agentExecutionService;
+    private final TypewriterScheduler typewriterScheduler;
+    private final ConcurrentToolExecutor concurrentToolExecutor;
+    private final ChatHistoryCache chatHistoryCache;
+    private final ChatMessageJournal chatMessageJournal;
+    private final ConversationSummarizer conversationSummarizer;
+
+    // 会话ID -> 会话
+    private final Map<String, AgentSession> sessions = new ConcurrentHashMap<>();
+
+    // 空闲会话回收线程
+    private final ScheduledExecutorService evictionExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "agent-session-evictor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // 会话空闲超时时间
+    private final long idleTimeoutMillis;
+
+    // 最大会话数量
+    private final int maxSessions;
+
+    public AiManusFactory(ToolCallback[] allTools,
+                          ChatModel dashscopeChatModel,
+                          ChatMessageRepository chatMessageRepository,
+                          @Qualifier("loveAppRagCloudAdvisor") Advisor loveAppRagCloudAdvisor,
+                          @Qualifier("loveAppDocumentRetriever") DocumentRetriever loveAppDocumentRetriever,
+                          AgentExecutionService agentExecutionService,
+                          TypewriterScheduler typewriterScheduler,
+                          ConcurrentToolExecutor concurrentToolExecutor,
+                          ChatHistoryCache chatHistoryCache,
+                          ChatMessageJournal chatMessageJournal,
+                          ConversationSummarizer conversationSummarizer,
+                          @Value("${agent.session.idle-timeout-minutes:30}") long idleTimeoutMinutes,
+                          @Value("${agent.session.max-sessions:1000}") int maxSessions,
+                          @Value("${agent.rag.prefetch:true}") boolean ragPrefetch,
+                          @Value("${agent.rag.prefetch-timeout-millis:5000}") long ragPrefetchTimeoutMillis) {
+        this.allTools = allTools;
+        this.chatClient = AiManus.createChatClient(dashscopeChatModel);
+        this.toolCallingManager = ToolCallingManager.builder().build();
+        this.chatOptions = ToolCallAgent.createChatOptions();
+        this.chatMessageRepository = chatMessageRepository;
+        this.loveAppRagCloudAdvisor = loveAppRagCloudAdvisor;
+        this.loveAppDocumentRetriever = ragPrefetch ? loveAppDocumentRetriever : null;
+        this.ragPrefetchTimeoutMillis = ragPrefetchTimeoutMillis;
+        this.agentExecutionService = agentExecutionService;
+        this.typewriterScheduler = typewriterScheduler;
+        this.concurrentToolExecutor = concurrentToolExecutor;
+        this.chatHistoryCache = chatHistoryCache;
+        this.chatMessageJournal = chatMessageJournal;
+        this.conversationSummarizer = conversationSummarizer;
+        this.idleTimeoutMillis = TimeUnit.MINUTES.toMillis(idleTimeoutMinutes);
+        this.maxSessions = maxSessions;
+        evictionExecutor.scheduleWithFixedDelay(this::evictIdleSessions, 1, 1, TimeUnit.MINUTES);
+    }
+
+    /**
+     * 获取会话对应的代理实例，不存在则创建
+     *
+     * @param conversationId 会话ID
+     * @return 该会话独占的代理实例
+     */
+    public AiManus obtain(String conversationId) {
+        if (StrUtil.isBlank(conversationId)) {
+            throw new IllegalArgumentException("conversationId must not be blank");
+        }
+        // 创建、加租约与回收都在 map 的原子操作中完成
+        AgentSession session = sessions.compute(conversationId, (id, existing) -> {
+            AgentSession current = existing != null ? existing : new AgentSession(createAgent(id));
+            current.acquire();
+            return current;
+        });
+        if (sessions.size() > maxSessions) {
+            evictOldestIdleSession();
+        }
+        return session.agent;
+    }
+
+    /**
+     * 主动移除会话
+     */
+    public void remove(String conversationId) {
+        if (sessions.remove(conversationId) != null) {
+            chatMessageJournal.forget(conversationId);
+        }
+    }
+
+    /**
+     * 当前活跃会话数量
+     */
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    private AiManus createAgent(String conversationId) {
+        AiManus agent = new AiManus(allTools, chatClient, toolCallingManager, chatOptions);
+        agent.setConversationId(conversationId);
+        agent.setChatMessageRepository(chatMessageRepository);
+        agent.setLoveAppRagCloudAdvisor(loveAppRagCloudAdvisor);
+        agent.setDocumentRetriever(loveAppDocumentRetriever);
+        agent.setPrefetchTimeoutMillis(ragPrefetchTimeoutMillis);
+        agent.setAgentExecutionService(agentExecutionService);
+        agent.setTypewriterScheduler(typewriterScheduler);
+        agent.setConcurrentToolExecutor(concurrentToolExecutor);
+        agent.setChatHistoryCache(chatHistoryCache);
+        agent.setChatMessageJournal(chatMessageJournal);
+        agent.setConversationSummarizer(conversationSummarizer);
+        agent.setEnhancedSystemPrompt();
+        log.info("Created agent session for conversation: {}", conversationId);
+        return agent;
+    }
+
+    /**
+     * 回收超过空闲时间且没有租约的会话
+     */
+    private void evictIdleSessions() {
+        long now = System.currentTimeMillis();
+        for (String conversationId : sessions.keySet()) {
+            evictIf(conversationId, session -> now - session.lastAccessTime > idleTimeoutMillis, "idle");
+        }
+    }
+
+    /**
+     * 会话数量超过上限时，回收最久未访问的空闲会话
+     */
+    private void evictOldestIdleSession() {
+        sessions.entrySet().stream()
+                .filter(entry -> entry.getValue().isIdle())
+                .min(Comparator.comparingLong(entry -> entry.getValue().lastAccessTime))
+                .ifPresent(entry -> evictIf(entry.getKey(), session -> session == entry.getValue(), "over capacity"));
+    }
+
+    /**
+     * 在 map 的原子操作中再次确认会话空闲后移除，与 {@link #obtain} 加租约互斥
+     */
+    private void evictIf(String conversationId, Predicate<AgentSession> condition, String reason) {
+        boolean[] evicted = new boolean[1];
+        sessions.computeIfPresent(conversationId, (id, session) -> {
+            if (session.isIdle() && condition.test(session)) {
+                evicted[0] = true;
+                return null;
+            }
+            return session;
+        });
+        if (evicted[0]) {
+            chatMessageJournal.forget(conversationId);
+            log.info("Evicted agent session ({}): {}", reason, conversationId);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        evictionExecutor.shutdownNow();
+        sessions.clear();
+    }
+
+    /**
+     * 会话：代理实例、最近访问时间和租约数量
+     */
+    private static class AgentSession {
+
+        private final AiManus agent;
+
+        private volatile long lastAccessTime = System.currentTimeMillis();
+
+        // 已获取但尚未运行结束的次数
+        private final AtomicInteger leases = new AtomicInteger();
+
+        AgentSession(AiManus agent) {
+            this.agent = agent;
+            agent.setRunCompletionListener(this::release);
+        }
+
+        void acquire() {
+            leases.incrementAndGet();
+            this.lastAccessTime = System.currentTimeMillis();
+        }
+
+        void release() {
+            leases.updateAndGet(count -> Math.max(0, count - 1));
+            this.lastAccessTime = System.currentTimeMillis();
+        }
+
+        boolean isIdle() {
+            return leases.get() == 0 && agent.getState() != AgentState.RUNNING;
+        }
+    }
+}
@@ -3,25 +3,36 @@ package com.aiagenttest.agent;
 import cn.hutool.core.util.StrUtil;
 
 import com.aiagenttest.agent.model.AgentState;
+import com.aiagenttest.chatmemory.ChatHistoryCache;
+import com.aiagenttest.chatmemory.ChatMessageJournal;
+import com.aiagenttest.chatmemory.ConversationSummarizer;
 import com.aiagenttest.model.ChatMessage;
 import com.aiagenttest.repository.ChatMessageRepository;
 import jakarta.annotation.Resource;
 import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.ai.chat.client.ChatClient;
+import org.springframework.ai.chat.client.advisor.RetrievalAugmentationAdvisor;
 import org.springframework.ai.chat.client.advisor.api.Advisor;
 import org.springframework.ai.chat.messages.AssistantMessage;
 import org.springframework.ai.chat.messages.Message;
 import org.springframework.ai.chat.messages.MessageType;
 import org.springframework.ai.chat.messages.UserMessage;
-
+import org.springframework.ai.document.Document;
+import org.springframework.ai.rag.Query;
+import org.springframework.ai.rag.retrieval.search.DocumentRetriever;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * 抽象基础代理类，用于管理代理状态和执行流程。
@@ -57,14 +68,50 @@ public abstract class BaseAgent {
     @Autowired
     private ChatMessageRepository chatMessageRepository;
 
+    // 对话历史缓存（每个会话只查询一次数据库）
+    private ChatHistoryCache chatHistoryCache;
+
+    // 聊天消息异步批量写入（响应链路不等待数据库）
+    private ChatMessageJournal chatMessageJournal;
+
+    // 当前实例是否已加载过历史记忆
+    private boolean historyLoaded = false;
+
+    // 长对话滚动摘要
+    private ConversationSummarizer conversationSummarizer;
+
+    // 已折叠进摘要的早期对话内容，附加在系统提示词之后
+    private String conversationSummary;
+
+    // 后台生成中的摘要
+    private PendingSummary pendingSummary;
+
     // RAG云知识库
     @Resource
     private Advisor loveAppRagCloudAdvisor;
 
+    // 知识库检索器，非空时在加载历史的同时预取检索结果
+    private DocumentRetriever documentRetriever;
+
+    // 本轮对话的 RAG 顾问（直接使用预取结果），未预取时为 null
+    private Advisor turnRagAdvisor;
+
+    // 等待预取结果的最长时间，超时后放弃预取，就地检索
+    private long prefetchTimeoutMillis = 5000;
+
     // 打字机效果配置
     private long typewriterDelay = 50; // 每个字符的延迟（毫秒）
     private boolean enableTypewriter = true;
 
+    // 代理执行服务（异步运行代理，避免占用公共线程池）
+    private AgentExecutionService agentExecutionService;
+
+    // 打字机调度器（共享调度线程，按时间窗口合并输出）
+    private TypewriterScheduler typewriterScheduler;
+
+    // 每次运行（同步或流式）结束时回调一次，会话工厂用它释放获取会话时加的租约
+    private Runnable runCompletionListener;
+
     /**
      * 运行代理
      *
@@ -72,6 +119,14 @@ public abstract class BaseAgent {
      * @return 执行结果
      */
     public String run(String userPrompt) {
+        try {
+            return runSteps(userPrompt);
+        } finally {
+            notifyRunCompleted();
+        }
+    }
+
+    private String runSteps(String userPrompt) {
         // 1、基础校验
         if (this.state != AgentState.IDLE) {
             throw new RuntimeException("Cannot run agent from state: " + this.state);
@@ -79,7 +134,11 @@ public abstract class BaseAgent {
         if (StrUtil.isBlank(userPrompt)) {
             throw new RuntimeException("Cannot run agent with empty user prompt");
         }
-        // 2、执行，更改状态
+        // 2、与流式运行相同：先开始检索，再加载历史对话记忆，应用上一轮结束后生成的摘要
+        prefetchRetrieval(userPrompt);
+        loadTurnHistory();
+        applyPendingSummary();
+        // 3、执行，更改状态
         this.state = AgentState.RUNNING;
         // 记录消息上下文
         messageList.add(new UserMessage(userPrompt));
@@ -101,13 +160,15 @@ public abstract class BaseAgent {
                 state = AgentState.FINISHED;
                 results.add("Terminated: Reached max steps (" + maxSteps + ")");
             }
+            // 与流式运行相同：上下文过长时在后台生成摘要，下一轮开始时生效
+            scheduleSummary(getRunConversationId());
             return String.join("\n", results);
         } catch (Exception e) {
             state = AgentState.ERROR;
             log.error("error executing agent", e);
             return "执行错误" + e.getMessage();
         } finally {
-            // 3、清理资源
+            // 4、清理资源
             this.cleanup();
         }
     }
@@ -122,23 +183,28 @@ public abstract class BaseAgent {
         // 创建一个超时时间较长的 SseEmitter
         SseEmitter sseEmitter = new SseEmitter(300000L); // 5 分钟超时
 
+        // 打字机会话：代理线程只负责入队，由共享调度线程按时间窗口合并发送
+        TypewriterSession typewriter = openTypewriter(sseEmitter);
+
         // 使用线程异步处理，避免阻塞主线程
-        CompletableFuture.runAsync(() -> {
+        runAsync(() -> {
             try {
                 // 1、基础校验
                 if (this.state != AgentState.IDLE) {
-                    sendWithTypewriter(sseEmitter, "错误：无法从状态运行代理：" + this.state);
-                    sseEmitter.complete();
+                    typewriter.write("错误：无法从状态运行代理：" + this.state);
+                    typewriter.drain().thenRun(sseEmitter::complete);
                     return;
                 }
                 if (StrUtil.isBlank(userPrompt)) {
-                    sendWithTypewriter(sseEmitter, "错误：不能使用空提示词运行代理");
-                    sseEmitter.complete();
+                    typewriter.write("错误：不能使用空提示词运行代理");
+                    typewriter.drain().thenRun(sseEmitter::complete);
                     return;
                 }
 
-                // 2、加载历史对话记忆
+                // 2、先开始检索，再加载历史对话记忆，应用上一轮结束后生成的摘要
+                prefetchRetrieval(userPrompt);
                 loadChatHistory(conversationId);
+                applyPendingSummary();
 
                 // 3、构建用户消息（RAG会通过Advisor自动处理）
                 String enhancedUserPrompt = userPrompt;
@@ -167,7 +233,11 @@ public abstract class BaseAgent {
                     fullResponse.append(stepResult).append("\n");
 
                     // 使用打字机效果输出当前每一步的结果到 SSE
-                    sendWithTypewriter(sseEmitter, result);
+                    typewriter.write(result);
+                    if (typewriter.isClosed()) {
+                        log.warn("Client disconnected during step output, terminating early");
+                        return;
+                    }
                 }
 
                 // 检查是否超出步骤限制
@@ -175,107 +245,275 @@ public abstract class BaseAgent {
                     state = AgentState.FINISHED;
                     String terminationMsg = "执行结束：达到最大步骤（" + maxSteps + "）";
                     results.add(terminationMsg);
-                    sendWithTypewriter(sseEmitter, terminationMsg);
+                    typewriter.write(terminationMsg);
                 }
 
                 // 保存助手回复到数据库
                 saveAssistantMessage(fullResponse.toString(), conversationId);
+                scheduleSummary(conversationId);
 
-                // 正常完成
-                sseEmitter.complete();
+                // 输出完毕后正常完成
+                typewriter.drain().thenRun(sseEmitter::complete);
 
             } catch (Exception e) {
                 state = AgentState.ERROR;
                 log.error("error executing agent", e);
-                try {
-                    sendWithTypewriter(sseEmitter, "执行错误：" + e.getMessage());
-                    sseEmitter.complete();
-                } catch (IOException ex) {
-                    sseEmitter.completeWithError(ex);
-                }
+                typewriter.write("执行错误：" + e.getMessage());
+                typewriter.drain().thenRun(sseEmitter::complete);
             } finally {
                 // 清理资源
                 this.cleanup();
             }
+        }).whenComplete((result, throwable) -> {
+            notifyRunCompleted();
+            // 执行器饱和拒绝任务时直接结束连接
+            if (throwable != null) {
+                log.error("agent run was not executed", throwable);
+                sseEmitter.completeWithError(throwable);
+            }
         });
 
         // 设置超时回调
+        // 连接回调可能在本次运行结束、会话租约释放之后才触发，此时代理可能已在执行下一次运行，
+        // 因此回调只关闭本次运行的打字机会话，不修改代理状态；代理状态由运行自身的 finally 清理
         sseEmitter.onTimeout(() -> {
-            this.state = AgentState.ERROR;
-            this.cleanup();
+            typewriter.close();
             log.warn("SSE connection timeout");
         });
 
         // 设置完成回调
-        sseEmitter.onCompletion(() -> {
-            if (this.state == AgentState.RUNNING) {
-                this.state = AgentState.FINISHED;
-            }
-            this.cleanup();
-            log.info("SSE connection completed");
-        });
+        sseEmitter.onCompletion(() -> log.info("SSE connection completed"));
 
         return sseEmitter;
     }
 
     /**
-     * 打字机效果发送消息
+     * 同步运行使用的会话ID（用于调度摘要）；基类不持有会话ID，返回 null 时不生成摘要
+     */
+    protected String getRunConversationId() {
+        return null;
+    }
+
+    /**
+     * 同步运行开始、加入用户消息之前加载历史对话记忆；基类不持有会话ID，由子类按自己的会话加载
      */
-    private void sendWithTypewriter(SseEmitter sseEmitter, String message) throws IOException {
-        if (!enableTypewriter) {
-            sseEmitter.send(message);
+    protected void loadTurnHistory() {
+    }
+
+    /**
+     * 通知本次运行已结束，任务被拒绝时同样调用
+     */
+    protected void notifyRunCompleted() {
+        if (runCompletionListener == null) {
             return;
         }
+        try {
+            runCompletionListener.run();
+        } catch (RuntimeException e) {
+            log.warn("Run completion listener failed", e);
+        }
+    }
 
-        // 逐字符发送，实现打字机效果
-        for (char c : message.toCharArray()) {
-            try {
-                sseEmitter.send(String.valueOf(c));
-                Thread.sleep(typewriterDelay);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                break;
-            }
+    /**
+     * 在代理执行服务上异步运行任务，未配置执行服务时退化为公共线程池
+     */
+    protected CompletableFuture<Void> runAsync(Runnable task) {
+        if (agentExecutionService == null) {
+            return CompletableFuture.runAsync(task);
         }
-        // 发送换行符
-        sseEmitter.send("\n");
+        return agentExecutionService.submit(task);
+    }
+
+    /**
+     * 按当前打字机配置为连接打开打字机会话，关闭打字机效果时为即时模式
+     */
+    protected TypewriterSession openTypewriter(SseEmitter sseEmitter) {
+        TypewriterScheduler scheduler = typewriterScheduler != null ? typewriterScheduler : TypewriterScheduler.getDefault();
+        return scheduler.open(sseEmitter, typewriterDelay, enableTypewriter);
+    }
+
+    /**
+     * 异步开始检索用户提示词，与加载历史、保存消息和拼装提示词并行；本轮的 RAG 顾问直接使用预取结果
+     */
+    protected void prefetchRetrieval(String userPrompt) {
+        turnRagAdvisor = null;
+        if (documentRetriever == null || StrUtil.isBlank(userPrompt)) {
+            return;
+        }
+        Query query = new Query(userPrompt);
+        CompletableFuture<List<Document>> prefetched;
+        try {
+            // 预取使用单独的执行器：代理线程会阻塞等待预取结果，共用有界的代理线程池可能互相等待
+            prefetched = agentExecutionService != null
+                    ? CompletableFuture.supplyAsync(() -> documentRetriever.retrieve(query), agentExecutionService.getPrefetchExecutor())
+                    : CompletableFuture.supplyAsync(() -> documentRetriever.retrieve(query));
+        } catch (RejectedExecutionException e) {
+            // 执行器饱和时不预取，由默认顾问在调用模型时检索
+            log.warn("Retrieval prefetch rejected, falling back to inline retrieval");
+            return;
+        }
+        turnRagAdvisor = RetrievalAugmentationAdvisor.builder()
+                .documentRetriever(ignored -> awaitPrefetched(prefetched, query))
+                .build();
+    }
+
+    private List<Document> awaitPrefetched(CompletableFuture<List<Document>> prefetched, Query query) {
+        try {
+            return prefetched.get(prefetchTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            prefetched.cancel(false);
+            log.warn("Retrieval prefetch not finished within {}ms, retrying inline", prefetchTimeoutMillis);
+        } catch (ExecutionException | CancellationException e) {
+            log.warn("Retrieval prefetch failed, retrying inline: {}", e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return List.of();
+        }
+        return documentRetriever.retrieve(query);
+    }
+
+    /**
+     * 当前使用的 RAG 顾问：本轮有预取结果时使用预取结果，否则使用知识库顾问
+     */
+    protected Advisor currentRagAdvisor() {
+        return turnRagAdvisor != null ? turnRagAdvisor : getLoveAppRagCloudAdvisor();
     }
 
     /**
      * 加载聊天历史记忆
      */
     private void loadChatHistory(String conversationId) {
-        if (StrUtil.isBlank(conversationId)) {
+        // 同一会话实例只加载一次历史，之后的对话直接使用内存中的 messageList
+        if (StrUtil.isBlank(conversationId) || historyLoaded) {
             return;
         }
 
+        // 之前加载失败时内存中只有失败后的几轮对话，这些消息都已保存，重新加载成功后以加载结果为准；
+        // 再次失败时保留原列表，下一轮继续重试
+        List<Message> previous = messageList;
+        messageList = new ArrayList<>();
         try {
-            // 从数据库加载历史消息
-            List<ChatMessage> historyMessages = chatMessageRepository.lambdaQuery()
-                    .eq(ChatMessage::getConversationId, conversationId)
-                    .orderByAsc(ChatMessage::getCreateTime)
-                    .list();
-
-            // 转换为Message对象并添加到消息列表
-            for (ChatMessage chatMessage : historyMessages) {
-                Message message;
-                if (chatMessage.getMessageType() == MessageType.USER) {
-                    message = new UserMessage(chatMessage.getContent());
-                } else if (chatMessage.getMessageType() == MessageType.ASSISTANT) {
-                    message = new AssistantMessage(chatMessage.getContent());
-                } else {
-                    continue; // 跳过其他类型的消息
+            if (loadSummarizedHistory(conversationId)) {
+                historyLoaded = true;
+                return;
+            }
+            if (chatHistoryCache != null) {
+                // 从历史缓存加载（未命中时缓存会查询数据库）
+                messageList.addAll(chatHistoryCache.getHistory(conversationId));
+            } else {
+                // 从数据库加载历史消息
+                List<ChatMessage> historyMessages = chatMessageRepository.listLastN(conversationId, 0);
+
+                // 转换为Message对象并添加到消息列表
+                for (ChatMessage chatMessage : historyMessages) {
+                    Message message;
+                    if (chatMessage.getMessageType() == MessageType.USER) {
+                        message = new UserMessage(chatMessage.getContent());
+                    } else if (chatMessage.getMessageType() == MessageType.ASSISTANT) {
+                        message = new AssistantMessage(chatMessage.getContent());
+                    } else {
+                        continue; // 跳过其他类型的消息
+                    }
+                    messageList.add(message);
                 }
-                messageList.add(message);
+                log.info("Loaded {} messages from conversation: {}", historyMessages.size(), conversationId);
             }
-
-            log.info("Loaded {} messages from conversation: {}", historyMessages.size(), conversationId);
+            historyLoaded = true;
         } catch (Exception e) {
+            messageList = previous;
             log.error("Failed to load chat history for conversation: " + conversationId, e);
         }
     }
 
+    /**
+     * 会话已有摘要时，加载摘要和摘要之后的消息
+     *
+     * @return 是否已加载
+     */
+    protected boolean loadSummarizedHistory(String conversationId) {
+        if (conversationSummarizer == null) {
+            return false;
+        }
+        ConversationSummarizer.SummarizedHistory history = conversationSummarizer.loadHistory(conversationId);
+        if (history == null) {
+            return false;
+        }
+        conversationSummary = history.summary();
+        messageList.addAll(history.messages());
+        return true;
+    }
+
+    /**
+     * 系统提示词，有摘要时在其后附加早期对话摘要
+     */
+    protected String buildSystemPrompt() {
+        if (StrUtil.isBlank(conversationSummary)) {
+            return systemPrompt;
+        }
+        return StrUtil.nullToEmpty(systemPrompt) + "\n\n以下是与用户此前对话的摘要，请结合摘要理解上下文：\n" + conversationSummary;
+    }
+
+    /**
+     * 一轮对话结束后检查上下文大小，超过阈值时在后台把较早的消息折叠为摘要
+     */
+    protected void scheduleSummary(String conversationId) {
+        dropStalePendingSummary();
+        if (conversationSummarizer == null || pendingSummary != null || StrUtil.isBlank(conversationId)) {
+            return;
+        }
+        int foldIndex = conversationSummarizer.foldIndex(messageList, conversationSummary);
+        if (foldIndex <= 0) {
+            return;
+        }
+        List<Message> folded = messageList.subList(0, foldIndex);
+        pendingSummary = new PendingSummary(
+                conversationSummarizer.summarizeAsync(conversationId, conversationSummary, folded),
+                folded.get(foldIndex - 1),
+                foldIndex,
+                System.currentTimeMillis());
+    }
+
+    /**
+     * 放弃超时仍未完成的摘要，避免一个卡住的摘要任务让本会话再也无法触发新的摘要
+     */
+    private void dropStalePendingSummary() {
+        PendingSummary pending = pendingSummary;
+        if (pending == null || pending.future().isDone() || conversationSummarizer == null) {
+            return;
+        }
+        if (System.currentTimeMillis() - pending.startedAt() > conversationSummarizer.getTimeoutMillis()) {
+            pending.future().cancel(true);
+            pendingSummary = null;
+            log.warn("Conversation summary timed out, will retry after a later turn");
+        }
+    }
 
+    /**
+     * 应用已生成的摘要：用摘要代替被折叠的消息（消息列表在此期间被替换过时放弃）
+     */
+    protected void applyPendingSummary() {
+        dropStalePendingSummary();
+        PendingSummary pending = pendingSummary;
+        if (pending == null || !pending.future().isDone()) {
+            return;
+        }
+        pendingSummary = null;
+        String summary;
+        try {
+            summary = pending.future().join();
+        } catch (CompletionException | CancellationException e) {
+            log.warn("Conversation summary failed, keeping full history: {}", e.getMessage());
+            return;
+        }
+        int foldCount = pending.foldCount();
+        if (messageList.size() < foldCount || messageList.get(foldCount - 1) != pending.lastFolded()) {
+            log.warn("Message list changed while summarizing, summary not applied");
+            return;
+        }
+        conversationSummary = summary;
+        messageList = new ArrayList<>(messageList.subList(foldCount, messageList.size()));
+        log.info("Folded {} messages into conversation summary, {} messages remain", foldCount, messageList.size());
+    }
 
     /**
      * 保存用户消息到数据库
@@ -288,7 +526,9 @@ public abstract class BaseAgent {
                     .content(content)
                     .metadata(new java.util.HashMap<>()) // 设置空的metadata
                     .build();
-            chatMessageRepository.save(chatMessage);
+            if (persist(chatMessage)) {
+                appendToHistoryCache(conversationId, new UserMessage(content));
+            }
         } catch (Exception e) {
             log.error("Failed to save user message", e);
         }
@@ -305,12 +545,36 @@ public abstract class BaseAgent {
                     .content(content)
                     .metadata(new java.util.HashMap<>()) // 设置空的metadata
                     .build();
-            chatMessageRepository.save(chatMessage);
+            if (persist(chatMessage)) {
+                appendToHistoryCache(conversationId, new AssistantMessage(content));
+            }
         } catch (Exception e) {
             log.error("Failed to save assistant message", e);
         }
     }
 
+    /**
+     * 保存消息：配置了异步写入日志时入队批量写入，否则同步写入数据库
+     *
+     * @return 是否保存（被异步写入日志作为重复消息丢弃时返回 false）
+     */
+    protected boolean persist(ChatMessage chatMessage) {
+        if (chatMessageJournal != null) {
+            return chatMessageJournal.append(chatMessage);
+        }
+        chatMessageRepository.save(chatMessage);
+        return true;
+    }
+
+    /**
+     * 已保存的消息增量追加到历史缓存，保持缓存与数据库一致
+     */
+    protected void appendToHistoryCache(String conversationId, Message message) {
+        if (chatHistoryCache != null && StrUtil.isNotBlank(conversationId)) {
+            chatHistoryCache.append(conversationId, message);
+        }
+    }
+
     /**
      * 定义单个步骤
      *
@@ -323,6 +587,13 @@ public abstract class BaseAgent {
      */
     protected void cleanup() {
         // 子类可以重写此方法来清理资源
+        this.turnRagAdvisor = null;
+    }
+
+    /**
+     * 后台生成中的摘要，以及生成时被折叠的消息数量、最后一条被折叠的消息（用于确认消息列表未变）和开始时间
+     */
+    private record PendingSummary(CompletableFuture<String> future, Message lastFolded, int foldCount, long startedAt) {
     }
 
     /**
@@ -0,0 +1,183 @@
+package com.aiagenttest.agent;
+
+import cn.hutool.core.util.StrUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.ToolResponseMessage;
+import org.springframework.ai.tool.ToolCallback;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 并发工具执行器
+ * <p>
+ * 大模型在一次响应中返回多个相互独立的工具调用时，同时执行这些调用，一步的耗时由最慢的工具决定，
+ * 而不是所有工具耗时之和。每个工具有全局并发上限（所有会话共享），每次调用有超时时间（可按工具单独配置），
+ * 返回结果的顺序与模型给出的工具调用顺序一致。只有一个工具调用时同样经过这里执行，超时和并发上限同样生效。
+ * <p>
+ * 工具在 {@link AgentExecutionService#getToolExecutor()} 上执行，不占用代理线程池；执行器饱和时在当前线程直接执行。
+ * 超时的调用会中断其执行线程，工具响应中断后释放并发许可。
+ */
+@Component
+@Slf4j
+public class ConcurrentToolExecutor {
+
+    // 工具名称 -> 工具
+    private final Map<String, ToolCallback> toolsByName = new HashMap<>();
+
+    // 工具名称 -> 并发许可
+    private final Map<String, Semaphore> permits = new ConcurrentHashMap<>();
+
+    private final AgentExecutionService agentExecutionService;
+
+    // 单个工具默认并发上限
+    private final int defaultConcurrency;
+
+    // 单独配置的工具并发上限
+    private final Map<String, Integer> concurrencyOverrides;
+
+    // 单次工具调用默认超时时间
+    private final long timeoutMillis;
+
+    // 单独配置的工具超时时间（毫秒）
+    private final Map<String, Long> timeoutOverrides;
+
+    public ConcurrentToolExecutor(ToolCallback[] allTools,
+                                  AgentExecutionService agentExecutionService,
+                                  @Value("${agent.tools.default-concurrency:8}") int defaultConcurrency,
+                                  @Value("${agent.tools.concurrency:}") String concurrency,
+                                  @Value("${agent.tools.timeout-seconds:60}") long timeoutSeconds,
+                                  @Value("${agent.tools.timeouts:}") String timeouts) {
+        for (ToolCallback tool : allTools) {
+            toolsByName.put(tool.getToolDefinition().name(), tool);
+        }
+        this.agentExecutionService = agentExecutionService;
+        this.defaultConcurrency = defaultConcurrency;
+        this.concurrencyOverrides = parseOverrides(concurrency);
+        this.timeoutMillis = TimeUnit.SECONDS.toMillis(timeoutSeconds);
+        Map<String, Long> timeoutOverrides = new HashMap<>();
+        parseOverrides(timeouts).forEach((name, seconds) -> timeoutOverrides.put(name, TimeUnit.SECONDS.toMillis(seconds)));
+        this.timeoutOverrides = timeoutOverrides;
+    }
+
+    /**
+     * 执行工具调用，多个调用并发执行
+     *
+     * @param toolCalls 模型返回的工具调用
+     * @return 与 toolCalls 顺序一致的工具响应消息
+     */
+    public ToolResponseMessage execute(List<AssistantMessage.ToolCall> toolCalls) {
+        long start = System.currentTimeMillis();
+        List<Future<String>> futures = new ArrayList<>(toolCalls.size());
+        for (AssistantMessage.ToolCall toolCall : toolCalls) {
+            long deadline = start + timeoutMillis(toolCall.name());
+            try {
+                futures.add(agentExecutionService.getToolExecutor().submit(() -> invoke(toolCall, deadline)));
+            } catch (RejectedExecutionException e) {
+                // 工具线程耗尽时在当前线程执行，无法按超时中断
+                log.warn("Tool executor saturated, running {} inline", toolCall.name());
+                futures.add(invokeInline(toolCall, deadline));
+            }
+        }
+
+        List<ToolResponseMessage.ToolResponse> responses = new ArrayList<>(toolCalls.size());
+        for (int i = 0; i < toolCalls.size(); i++) {
+            AssistantMessage.ToolCall toolCall = toolCalls.get(i);
+            Future<String> future = futures.get(i);
+            long timeout = timeoutMillis(toolCall.name());
+            String responseData;
+            try {
+                long remaining = Math.max(0, start + timeout - System.currentTimeMillis());
+                responseData = future.get(remaining, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // 中断执行线程，工具响应中断后在 invoke 中释放许可
+                future.cancel(true);
+                log.warn("Tool {} timed out after {}ms", toolCall.name(), timeout);
+                responseData = "Error executing tool " + toolCall.name() + ": timed out";
+            } catch (ExecutionException e) {
+                log.error("Tool {} failed", toolCall.name(), e.getCause());
+                responseData = "Error executing tool " + toolCall.name() + ": " + e.getCause().getMessage();
+            } catch (CancellationException e) {
+                responseData = "Error executing tool " + toolCall.name() + ": cancelled";
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                future.cancel(true);
+                responseData = "Error executing tool " + toolCall.name() + ": interrupted";
+            }
+            responses.add(new ToolResponseMessage.ToolResponse(toolCall.id(), toolCall.name(), responseData));
+        }
+        return new ToolResponseMessage(responses, Map.of());
+    }
+
+    /**
+     * 单个工具的超时时间
+     */
+    private long timeoutMillis(String toolName) {
+        return timeoutOverrides.getOrDefault(toolName, timeoutMillis);
+    }
+
+    private Future<String> invokeInline(AssistantMessage.ToolCall toolCall, long deadline) {
+        try {
+            return CompletableFuture.completedFuture(invoke(toolCall, deadline));
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * 在工具并发许可内执行单个工具调用
+     */
+    private String invoke(AssistantMessage.ToolCall toolCall, long deadline) {
+        ToolCallback tool = toolsByName.get(toolCall.name());
+        if (tool == null) {
+            return "Error: tool " + toolCall.name() + " not found";
+        }
+        Semaphore semaphore = permits.computeIfAbsent(toolCall.name(),
+                name -> new Semaphore(concurrencyOverrides.getOrDefault(name, defaultConcurrency)));
+        try {
+            long remaining = deadline - System.currentTimeMillis();
+            if (!semaphore.tryAcquire(remaining, TimeUnit.MILLISECONDS)) {
+                return "Error executing tool " + toolCall.name() + ": too many concurrent calls";
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "Error executing tool " + toolCall.name() + ": interrupted";
+        }
+        try {
+            long start = System.currentTimeMillis();
+            String result = tool.call(toolCall.arguments());
+            log.info("Tool {} finished in {}ms", toolCall.name(), System.currentTimeMillis() - start);
+            return result;
+        } finally {
+            semaphore.release();
+        }
+    }
+
+    /**
+     * 解析按工具配置的数值，格式：searchWeb=4,scrapeWebPage=2
+     */
+    private static Map<String, Integer> parseOverrides(String overrides) {
+        Map<String, Integer> result = new HashMap<>();
+        for (String entry : StrUtil.split(overrides, ',', true, true)) {
+            List<String> pair = StrUtil.split(entry, '=', true, true);
+            if (pair.size() == 2) {
+                result.put(pair.get(0), Integer.parseInt(pair.get(1)));
+            }
+        }
+        return result;
+    }
+}
@@ -10,6 +10,7 @@ import jakarta.annotation.Resource;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.client.ChatClient;
 import org.springframework.ai.chat.client.advisor.api.Advisor;
 import org.springframework.ai.chat.messages.AssistantMessage;
 import org.springframework.ai.chat.messages.Message;
@@ -17,6 +18,7 @@ import org.springframework.ai.chat.messages.MessageType;
 import org.springframework.ai.chat.messages.ToolResponseMessage;
 import org.springframework.ai.chat.messages.UserMessage;
 import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.chat.model.Generation;
 import org.springframework.ai.chat.prompt.ChatOptions;
 import org.springframework.ai.chat.prompt.Prompt;
 import org.springframework.ai.model.tool.ToolCallingManager;
@@ -25,9 +27,11 @@ import org.springframework.ai.tool.ToolCallback;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
-import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.CompletableFuture;
+import java.util.Map;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 /**
@@ -47,6 +51,9 @@ public class ToolCallAgent extends ReActAgent {
     // 工具调用管理者
     private final ToolCallingManager toolCallingManager;
 
+    // 并发工具执行器（一次响应包含多个工具调用时使用）
+    private ConcurrentToolExecutor concurrentToolExecutor;
+
     // 禁用 Spring AI 内置的工具调用机制，自己维护选项和消息上下文
     private final ChatOptions chatOptions;
 
@@ -60,19 +67,32 @@ public class ToolCallAgent extends ReActAgent {
     @Resource
     private Advisor loveAppRagCloudAdvisor;
 
-    // 打字机效果配置
-    private long typewriterDelay = 50; // 每个字符的延迟（毫秒）
-    private boolean enableTypewriter = true;
-    
     // 会话ID
     private String conversationId;
 
+    // 是否使用模型流式调用（文本增量收到即输出，同时聚合文本和工具调用；
+    // 本步最终调用了工具时发送 retract 事件，已输出的文本改为按工具思考过程展示）
+    private boolean enableModelStreaming = true;
+
     public ToolCallAgent(ToolCallback[] availableTools) {
+        this(availableTools, ToolCallingManager.builder().build(), createChatOptions());
+    }
+
+    /**
+     * 使用外部共享的工具调用管理者和选项创建代理（多个会话实例复用这些不可变组件）
+     */
+    public ToolCallAgent(ToolCallback[] availableTools, ToolCallingManager toolCallingManager, ChatOptions chatOptions) {
         super();
         this.availableTools = availableTools;
-        this.toolCallingManager = ToolCallingManager.builder().build();
-        // 禁用 Spring AI 内置的工具调用机制，自己维护选项和消息上下文
-        this.chatOptions = DashScopeChatOptions.builder()
+        this.toolCallingManager = toolCallingManager;
+        this.chatOptions = chatOptions;
+    }
+
+    /**
+     * 创建禁用 Spring AI 内置工具调用机制的选项，自己维护选项和消息上下文
+     */
+    public static ChatOptions createChatOptions() {
+        return DashScopeChatOptions.builder()
                 .withProxyToolCalls(true)
                 .build();
     }
@@ -84,6 +104,16 @@ public class ToolCallAgent extends ReActAgent {
      */
     @Override
     public boolean think() {
+        return think(null);
+    }
+
+    /**
+     * 处理当前状态并决定下一步行动，可选以流式方式调用大模型
+     *
+     * @param onDelta 非空时使用流式调用，每收到一段助手文本增量立即回调；为空时使用普通调用
+     * @return 是否需要执行行动
+     */
+    public boolean think(Consumer<String> onDelta) {
         // 1、校验提示词，拼接用户提示词
         if (StrUtil.isNotBlank(getNextStepPrompt())) {
             UserMessage userMessage = new UserMessage(getNextStepPrompt());
@@ -91,18 +121,19 @@ public class ToolCallAgent extends ReActAgent {
         }
         
         // 2、加载历史对话记忆（如果有会话ID）
-        loadChatHistory();
+        loadChatHistory(false);
         
         // 3、调用 AI 大模型，集成RAG和工具调用
         List<Message> messageList = getMessageList();
         Prompt prompt = new Prompt(messageList, this.chatOptions);
         try {
-            ChatResponse chatResponse = getChatClient().prompt(prompt)
-                    .system(getSystemPrompt())
-                    .advisors(loveAppRagCloudAdvisor) // 集成阿里RAG
-                    .tools(availableTools)
-                    .call()
-                    .chatResponse();
+            ChatClient.ChatClientRequestSpec request = getChatClient().prompt(prompt)
+                    .system(buildSystemPrompt())
+                    .advisors(currentRagAdvisor()) // 集成阿里RAG（优先使用本轮预取的检索结果）
+                    .tools(availableTools);
+            ChatResponse chatResponse = onDelta == null
+                    ? request.call().chatResponse()
+                    : streamChatResponse(request, onDelta);
             // 记录响应，用于等下 Act
             this.toolCallChatResponse = chatResponse;
             
@@ -144,6 +175,54 @@ public class ToolCallAgent extends ReActAgent {
         }
     }
 
+    /**
+     * 流式调用大模型：文本增量实时回调，同时聚合完整文本和工具调用，组装成与普通调用等价的响应供 act 使用
+     */
+    private ChatResponse streamChatResponse(ChatClient.ChatClientRequestSpec request, Consumer<String> onDelta) {
+        StringBuilder text = new StringBuilder();
+        Map<String, AssistantMessage.ToolCall> toolCalls = new LinkedHashMap<>();
+        request.stream()
+                .chatResponse()
+                .doOnNext(chunk -> {
+                    if (chunk.getResult() == null || chunk.getResult().getOutput() == null) {
+                        return;
+                    }
+                    AssistantMessage output = chunk.getResult().getOutput();
+                    if (StrUtil.isNotEmpty(output.getText())) {
+                        text.append(output.getText());
+                        onDelta.accept(output.getText());
+                    }
+                    if (output.hasToolCalls()) {
+                        output.getToolCalls().forEach(toolCall -> mergeToolCall(toolCalls, toolCall));
+                    }
+                })
+                .blockLast();
+        AssistantMessage assistantMessage = new AssistantMessage(text.toString(), Map.of(), new ArrayList<>(toolCalls.values()));
+        return new ChatResponse(List.of(new Generation(assistantMessage)));
+    }
+
+    /**
+     * 合并流式返回的工具调用片段：同一 id 的参数可能是累计值也可能是增量片段，没有 id 的片段归属上一个工具调用
+     */
+    private static void mergeToolCall(Map<String, AssistantMessage.ToolCall> toolCalls, AssistantMessage.ToolCall fragment) {
+        String key = StrUtil.isNotBlank(fragment.id()) || toolCalls.isEmpty()
+                ? StrUtil.nullToEmpty(fragment.id())
+                : CollUtil.getLast(toolCalls.keySet());
+        AssistantMessage.ToolCall existing = toolCalls.get(key);
+        if (existing == null) {
+            toolCalls.put(key, fragment);
+            return;
+        }
+        String existingArguments = StrUtil.nullToEmpty(existing.arguments());
+        String fragmentArguments = StrUtil.nullToEmpty(fragment.arguments());
+        String arguments = fragmentArguments.startsWith(existingArguments)
+                ? fragmentArguments
+                : existingArguments + fragmentArguments;
+        String name = StrUtil.isNotBlank(fragment.name()) ? fragment.name() : existing.name();
+        String type = StrUtil.isNotBlank(fragment.type()) ? fragment.type() : existing.type();
+        toolCalls.put(key, new AssistantMessage.ToolCall(existing.id(), type, name, arguments));
+    }
+
     /**
      * 执行工具调用并处理结果
      *
@@ -154,13 +233,25 @@ public class ToolCallAgent extends ReActAgent {
         if (!toolCallChatResponse.hasToolCalls()) {
             return "没有工具需要调用";
         }
-        // 调用工具
-        Prompt prompt = new Prompt(getMessageList(), this.chatOptions);
-        // 第一个参数表示消息上下文，第二个参数表示AI大模型返回的响应
-        ToolExecutionResult toolExecutionResult = toolCallingManager.executeToolCalls(prompt, toolCallChatResponse);
-        // 记录消息上下文，conversationHistory 已经包含了助手消息和工具调用返回的结果
-        setMessageList(toolExecutionResult.conversationHistory());
-        ToolResponseMessage toolResponseMessage = (ToolResponseMessage) CollUtil.getLast(toolExecutionResult.conversationHistory());
+        AssistantMessage assistantMessage = toolCallChatResponse.getResult().getOutput();
+        ToolResponseMessage toolResponseMessage;
+        if (concurrentToolExecutor != null) {
+            // 所有工具调用（包括只有一个时）都经过并发执行器，统一受超时和并发上限约束；
+            // 多个相互独立的工具调用并发执行，结果顺序与调用顺序一致
+            toolResponseMessage = concurrentToolExecutor.execute(assistantMessage.getToolCalls());
+            List<Message> conversationHistory = new ArrayList<>(getMessageList());
+            conversationHistory.add(assistantMessage);
+            conversationHistory.add(toolResponseMessage);
+            setMessageList(conversationHistory);
+        } else {
+            // 调用工具
+            Prompt prompt = new Prompt(getMessageList(), this.chatOptions);
+            // 第一个参数表示消息上下文，第二个参数表示AI大模型返回的响应
+            ToolExecutionResult toolExecutionResult = toolCallingManager.executeToolCalls(prompt, toolCallChatResponse);
+            // 记录消息上下文，conversationHistory 已经包含了助手消息和工具调用返回的结果
+            setMessageList(toolExecutionResult.conversationHistory());
+            toolResponseMessage = (ToolResponseMessage) CollUtil.getLast(toolExecutionResult.conversationHistory());
+        }
         // 判断是否调用了终止工具
         boolean terminateToolCalled = toolResponseMessage.getResponses().stream()
                 .anyMatch(response -> response.name().equals("doTerminate"));
@@ -177,38 +268,68 @@ public class ToolCallAgent extends ReActAgent {
 
     // ========== 增强功能方法 ==========
 
+    @Override
+    protected String getRunConversationId() {
+        return conversationId;
+    }
+
+    @Override
+    protected void loadTurnHistory() {
+        loadChatHistory(true);
+    }
+
     /**
      * 加载聊天历史记忆
+     *
+     * @param turnStart 是否在一轮对话开始、加入本轮用户消息之前调用
      */
-    private void loadChatHistory() {
-        if (StrUtil.isBlank(conversationId) || chatMessageRepository == null) {
+    private void loadChatHistory(boolean turnStart) {
+        // 每个会话实例只加载一次，之后的思考步骤和对话轮次直接使用内存中的 messageList
+        // 加载失败时不设置标记，下一轮开始时重试
+        if (isHistoryLoaded() || StrUtil.isBlank(conversationId) || chatMessageRepository == null) {
+            return;
+        }
+
+        // 轮次中途不重试：消息列表中有本轮尚未保存的工具调用消息，不能被加载结果替换
+        if (!turnStart && !getMessageList().isEmpty()) {
             return;
         }
 
+        // 之前加载失败时内存中只有失败后的几轮对话，这些消息都已保存，重新加载成功后以加载结果为准
+        List<Message> previous = getMessageList();
+        setMessageList(new ArrayList<>());
         try {
+            // 已有摘要的长对话只加载摘要和摘要之后的消息
+            if (loadSummarizedHistory(conversationId)) {
+                setHistoryLoaded(true);
+                return;
+            }
+            if (getChatHistoryCache() != null) {
+                // 从历史缓存加载（未命中时缓存会查询数据库）
+                getMessageList().addAll(getChatHistoryCache().getHistory(conversationId));
+                setHistoryLoaded(true);
+                return;
+            }
+
             // 从数据库加载历史消息
-            List<ChatMessage> historyMessages = chatMessageRepository.lambdaQuery()
-                    .eq(ChatMessage::getConversationId, conversationId)
-                    .orderByAsc(ChatMessage::getCreateTime)
-                    .list();
-
-            // 只有在消息列表为空时才加载历史记录，避免重复加载
-            if (getMessageList().isEmpty() && !historyMessages.isEmpty()) {
-                for (ChatMessage chatMessage : historyMessages) {
-                    Message message;
-                    if (chatMessage.getMessageType() == MessageType.USER) {
-                        message = new UserMessage(chatMessage.getContent());
-                    } else if (chatMessage.getMessageType() == MessageType.ASSISTANT) {
-                        message = new AssistantMessage(chatMessage.getContent());
-                    } else {
-                        continue; // 跳过其他类型的消息
-                    }
-                    getMessageList().add(message);
+            List<ChatMessage> historyMessages = chatMessageRepository.listLastN(conversationId, 0);
+
+            for (ChatMessage chatMessage : historyMessages) {
+                Message message;
+                if (chatMessage.getMessageType() == MessageType.USER) {
+                    message = new UserMessage(chatMessage.getContent());
+                } else if (chatMessage.getMessageType() == MessageType.ASSISTANT) {
+                    message = new AssistantMessage(chatMessage.getContent());
+                } else {
+                    continue; // 跳过其他类型的消息
                 }
+                getMessageList().add(message);
             }
+            setHistoryLoaded(true);
             
             log.info("Loaded {} messages from conversation: {}", historyMessages.size(), conversationId);
         } catch (Exception e) {
+            setMessageList(previous);
             log.error("Failed to load chat history for conversation: " + conversationId, e);
         }
     }
@@ -228,7 +349,9 @@ public class ToolCallAgent extends ReActAgent {
                     .content(content)
                     .metadata(new java.util.HashMap<>()) // 设置空的metadata
                     .build();
-            chatMessageRepository.save(chatMessage);
+            if (persist(chatMessage)) {
+                appendToHistoryCache(conversationId, new UserMessage(content));
+            }
         } catch (Exception e) {
             log.error("Failed to save user message", e);
         }
@@ -249,12 +372,28 @@ public class ToolCallAgent extends ReActAgent {
                     .content(content)
                     .metadata(new java.util.HashMap<>()) // 设置空的metadata
                     .build();
-            chatMessageRepository.save(chatMessage);
+            if (persist(chatMessage)) {
+                appendToHistoryCache(conversationId, new AssistantMessage(content));
+            }
         } catch (Exception e) {
             log.error("Failed to save assistant message", e);
         }
     }
 
+    /**
+     * 保存消息：配置了异步写入日志时入队批量写入，否则同步写入数据库
+     *
+     * @return 是否保存（被异步写入日志作为重复消息丢弃时返回 false）
+     */
+    @Override
+    protected boolean persist(ChatMessage chatMessage) {
+        if (getChatMessageJournal() != null) {
+            return getChatMessageJournal().append(chatMessage);
+        }
+        chatMessageRepository.save(chatMessage);
+        return true;
+    }
+
     /**
      * 增强版运行方法，带打字机效果的流式输出
      */
@@ -274,25 +413,26 @@ public class ToolCallAgent extends ReActAgent {
         // 创建一个超时时间较长的 SseEmitter
         SseEmitter sseEmitter = new SseEmitter(300000L); // 5 分钟超时
 
+        // 打字机会话：代理线程只负责入队，由共享调度线程按时间窗口合并发送
+        TypewriterSession typewriter = openTypewriter(sseEmitter);
+
         // 使用线程异步处理，避免阻塞主线程
-        CompletableFuture.runAsync(() -> {
+        runAsync(() -> {
             try {
                 // 1、重置Agent状态为IDLE，准备新的对话
                 this.setState(AgentState.IDLE);
                 
                 // 2、基础校验
                 if (StrUtil.isBlank(userPrompt)) {
-                    try {
-                        sendWithTypewriter(sseEmitter, "错误：不能使用空提示词运行代理");
-                    } catch (IOException e) {
-                        log.warn("Client disconnected during error message");
-                    }
-                    sseEmitter.complete();
+                    typewriter.write("错误：不能使用空提示词运行代理");
+                    typewriter.drain().thenRun(sseEmitter::complete);
                     return;
                 }
 
-                // 2、加载历史对话记忆
-                loadChatHistory();
+                // 2、先开始检索，再加载历史对话记忆，应用上一轮结束后生成的摘要
+                prefetchRetrieval(userPrompt);
+                loadChatHistory(true);
+                applyPendingSummary();
 
                 // 3、执行，更改状态
                 this.setState(AgentState.RUNNING);
@@ -310,171 +450,127 @@ public class ToolCallAgent extends ReActAgent {
                     setCurrentStep(stepNumber);
                     log.info("Executing step {}/{}", stepNumber, getMaxSteps());
                     
-                    // 执行思考
-                    boolean needsAction = think();
-                    String thinkResult = "思考阶段完成";
+                    // 执行思考。流式模式下文本增量收到即输出，流结束前无法确定本步是否调用工具
+                    StringBuilder streamedText = new StringBuilder();
+                    boolean needsAction = enableModelStreaming
+                            ? think(delta -> {
+                                streamedText.append(delta);
+                                typewriter.append(delta);
+                            })
+                            : think();
+                    String thinkResult = streamedText.isEmpty() ? "思考阶段完成" : streamedText.toString();
                     
                     if (needsAction) {
+                        if (!streamedText.isEmpty()) {
+                            // 本步调用了工具：通知前端把刚输出的这段文本（按字符数）从回复中移到工具思考过程
+                            typewriter.send(SseEmitter.event()
+                                    .name("retract")
+                                    .data(streamedText.length()));
+                        }
                         // 执行行动
                         String actionResult = act();
                         String stepResult = "第" + stepNumber + "步: " + thinkResult + " -> " + actionResult;
                         
                         // 发送工具调用思考过程（使用特殊事件类型）,这部分内容不直接显示在ai回复内容中，做特殊处理
-                        try {
-                            sseEmitter.send(SseEmitter.event()
-                                    .name("tool_thinking")
-                                    .data(stepResult));
-                        } catch (IOException e) {
-                            log.warn("Client disconnected during step output, terminating early");
-                            return; // 客户端断开连接，提前结束
-                        }
+                        typewriter.send(SseEmitter.event()
+                                .name("tool_thinking")
+                                .data(stepResult));
                     } else {
                         // 没有工具调用，获取AI的实际响应内容
                         String aiResponse = getLastAssistantResponse();
-                        if (StrUtil.isNotBlank(aiResponse)) {
-                            try {
-                                // 发送正常AI回复（使用打字机效果）
-                                sendWithTypewriter(sseEmitter, aiResponse);
-                                // 保存AI回复到数据库
-                                saveAssistantMessage(aiResponse);
-                                hasFinalResponse = true;
-                            } catch (IOException e) {
-                                log.warn("Client disconnected during AI response output, terminating early");
-                                return;
-                            }
+                        String finalResult = StrUtil.isNotBlank(aiResponse) ? aiResponse : "任务完成";
+                        // 保存的是实际发送给前端的内容
+                        String sent = streamedText.toString();
+                        String reply;
+                        if (sent.isEmpty()) {
+                            typewriter.write(finalResult);
+                            reply = finalResult;
+                        } else if (finalResult.equals(sent)) {
+                            // 回复已经流式输出，只补换行
+                            typewriter.append("\n");
+                            reply = sent;
                         } else {
-                            String finalResult = "任务完成";
-                            try {
-                                sendWithTypewriter(sseEmitter, finalResult);
-                                // 保存最终结果到数据库
-                                saveAssistantMessage(finalResult);
-                                hasFinalResponse = true;
-                            } catch (IOException e) {
-                                log.warn("Client disconnected during final result output, terminating early");
-                                return;
-                            }
+                            // 流式输出中途出错：已发送的部分文本之后追加错误说明
+                            typewriter.append("\n");
+                            typewriter.write(finalResult);
+                            reply = sent + "\n" + finalResult;
                         }
+                        // 保存AI回复到数据库
+                        saveAssistantMessage(reply);
+                        hasFinalResponse = true;
                         break;
                     }
+                    if (typewriter.isClosed()) {
+                        log.warn("Client disconnected during step output, terminating early");
+                        return; // 客户端断开连接，提前结束
+                    }
                 }
 
                 // 检查是否超出步骤限制
                 if (getCurrentStep() >= getMaxSteps()) {
                     setState(AgentState.FINISHED);
                     String terminationMsg = "执行结束：达到最大步骤（" + getMaxSteps() + "）";
-                    try {
-                        sendWithTypewriter(sseEmitter, terminationMsg);
-                    } catch (IOException e) {
-                        log.warn("Client disconnected during termination message, completing silently");
-                    }
+                    typewriter.write(terminationMsg);
                 }
 
                 // 检查是否达到最大步骤且还没有最终回复
-                if (getCurrentStep() >= getMaxSteps() && !hasFinalResponse) {
+                if (getCurrentStep() >= getMaxSteps() && !hasFinalResponse && !typewriter.isClosed()) {
                     setState(AgentState.FINISHED);
                     // 强制生成最终回复
                     String finalSummary = generateFinalSummary();
                     if (StrUtil.isNotBlank(finalSummary)) {
-                        try {
-                            sendWithTypewriter(sseEmitter, finalSummary);
-                        } catch (IOException e) {
-                            log.warn("Client disconnected during final summary, terminating early");
-                            return;
-                        }
+                        typewriter.write(finalSummary);
                         // 保存最终回复到数据库
                         saveAssistantMessage(finalSummary);
                         hasFinalResponse = true;
                     }
                 }
 
-                // 发送结束信号给前端
-                try {
-                    sseEmitter.send(SseEmitter.event().name("close").data("DONE"));
-                } catch (IOException e) {
-                    log.warn("Failed to send close event: {}", e.getMessage());
-                }
-                
-                // 正常完成
-                sseEmitter.complete();
+                // 上下文过长时在后台生成摘要，下一轮开始时生效
+                scheduleSummary(this.conversationId);
+
+                // 发送结束信号给前端，全部输出完毕后正常完成
+                typewriter.send(SseEmitter.event().name("close").data("DONE"));
+                typewriter.drain().thenRun(sseEmitter::complete);
                 
             } catch (Exception e) {
                 setState(AgentState.ERROR);
                 log.error("error executing enhanced agent", e);
-                try {
-                    sendWithTypewriter(sseEmitter, "执行错误：" + e.getMessage());
-                    sseEmitter.complete();
-                } catch (IOException ex) {
-                    log.warn("Client disconnected during error message transmission");
-                    sseEmitter.completeWithError(ex);
-                }
+                typewriter.write("执行错误：" + e.getMessage());
+                typewriter.drain().thenRun(sseEmitter::complete);
             } finally {
                 // 清理资源
                 cleanup();
             }
+        }).whenComplete((result, throwable) -> {
+            notifyRunCompleted();
+            // 执行器饱和拒绝任务时直接结束连接
+            if (throwable != null) {
+                log.error("enhanced agent run was not executed", throwable);
+                sseEmitter.completeWithError(throwable);
+            }
         });
 
         // 设置超时回调
+        // 连接回调可能在本次运行结束、会话租约释放之后才触发，此时代理可能已在执行下一次运行，
+        // 因此回调只关闭本次运行的打字机会话，不修改代理状态；代理状态由运行自身的 finally 清理
         sseEmitter.onTimeout(() -> {
-            this.setState(AgentState.ERROR);
-            cleanup();
+            typewriter.close();
             log.warn("SSE connection timeout");
         });
         
         // 设置完成回调
-        sseEmitter.onCompletion(() -> {
-            if (this.getState() == AgentState.RUNNING) {
-                this.setState(AgentState.FINISHED);
-            }
-            cleanup();
-            log.info("SSE connection completed");
-        });
+        sseEmitter.onCompletion(() -> log.info("SSE connection completed"));
         
         return sseEmitter;
     }
 
-    /**
-     * 打字机效果发送消息
-     */
-    private void sendWithTypewriter(SseEmitter sseEmitter, String message) throws IOException {
-        if (!enableTypewriter) {
-            try {
-                sseEmitter.send(message);
-            } catch (IOException e) {
-                log.warn("Failed to send message to SSE client: {}", e.getMessage());
-                throw e;
-            }
-            return;
-        }
-
-        // 逐字符发送，实现打字机效果
-        for (char c : message.toCharArray()) {
-            try {
-                sseEmitter.send(String.valueOf(c));
-                Thread.sleep(typewriterDelay);  // 延时50ms后进行发送，类似打字机的效果
-            } catch (IOException e) {
-                log.warn("SSE connection closed by client, stopping typewriter effect");
-                return; // 连接关闭，停止发送
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                log.warn("Typewriter thread interrupted");
-                return;
-            }
-        }
-        
-        // 发送换行符
-        try {
-            sseEmitter.send("\n");
-        } catch (IOException e) {
-            log.warn("Failed to send newline to SSE client: {}", e.getMessage());
-            // 不重新抛出异常，因为消息主体已经发送完成
-        }
-    }
-
     /**
      * 增强的清理方法
      */
     protected void cleanup() {
         this.toolCallChatResponse = null;
+        setTurnRagAdvisor(null);
         // 重置Agent状态为IDLE，准备下次对话
         this.setState(AgentState.IDLE);
         log.info("Enhanced ToolCallAgent cleanup completed");
@@ -505,20 +601,6 @@ public class ToolCallAgent extends ReActAgent {
         setSystemPrompt(enhancedPrompt);
     }
 
-    /**
-     * 设置打字机效果延迟
-     */
-    public void setTypewriterDelay(long delayMs) {
-        this.typewriterDelay = delayMs;
-    }
-
-    /**
-     * 启用/禁用打字机效果
-     */
-    public void setEnableTypewriter(boolean enable) {
-        this.enableTypewriter = enable;
-    }
-
     /**
      * 获取最后一条助手响应的内容
      */
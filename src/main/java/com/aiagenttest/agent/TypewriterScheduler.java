@@ -0,0 +1,88 @@
+package com.aiagenttest.agent;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 打字机效果调度器
+ * <p>
+ * 所有 SSE 连接共享少量调度线程：每个时间窗口（tick）把该窗口内应输出的字符合并为一个 SSE 事件发送，
+ * 两次 tick 之间不占用任何线程，代替原来每个字符一次 send + Thread.sleep 的实现。
+ */
+@Component
+@Slf4j
+public class TypewriterScheduler {
+
+    private static volatile TypewriterScheduler defaultScheduler;
+
+    private final ScheduledExecutorService scheduler;
+
+    // 时间窗口（毫秒），窗口内的字符合并为一个事件
+    private final long tickMillis;
+
+    // 单个事件最多包含的字符（字素）数量
+    private final int maxGraphemesPerChunk;
+
+    public TypewriterScheduler(@Value("${agent.typewriter.scheduler-threads:2}") int schedulerThreads,
+                               @Value("${agent.typewriter.tick-millis:100}") long tickMillis,
+                               @Value("${agent.typewriter.max-graphemes-per-chunk:64}") int maxGraphemesPerChunk) {
+        AtomicInteger threadIndex = new AtomicInteger();
+        this.scheduler = Executors.newScheduledThreadPool(schedulerThreads, r -> {
+            Thread thread = new Thread(r, "typewriter-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.tickMillis = tickMillis;
+        this.maxGraphemesPerChunk = maxGraphemesPerChunk;
+    }
+
+    /**
+     * 为一个 SSE 连接打开打字机会话
+     *
+     * @param sseEmitter 目标连接
+     * @param delayMs    每个字符的延迟（毫秒）
+     * @param enabled    是否启用打字机效果，false 表示即时模式，文本到达后立即整段发送
+     */
+    public TypewriterSession open(SseEmitter sseEmitter, long delayMs, boolean enabled) {
+        if (!enabled || delayMs <= 0) {
+            return new TypewriterSession(sseEmitter, scheduler, 0, 0, Integer.MAX_VALUE);
+        }
+        long tick = Math.max(tickMillis, delayMs);
+        return new TypewriterSession(sseEmitter, scheduler, tick, (double) tick / delayMs, maxGraphemesPerChunk);
+    }
+
+    /**
+     * 供未通过 Spring 创建的代理使用的默认调度器
+     */
+    static TypewriterScheduler getDefault() {
+        if (defaultScheduler == null) {
+            synchronized (TypewriterScheduler.class) {
+                if (defaultScheduler == null) {
+                    defaultScheduler = new TypewriterScheduler(1, 100, 64);
+                }
+            }
+        }
+        return defaultScheduler;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdown();
+        try {
+            if (!scheduler.awaitTermination(5, TimeUnit.SECONDS)) {
+                scheduler.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            scheduler.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package com.aiagenttest.agent;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.text.BreakIterator;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 单个 SSE 连接的打字机会话
+ * <p>
+ * 代理线程只负责把文本和事件放入队列后立即返回，由 {@link TypewriterScheduler} 的调度线程按时间窗口
+ * 合并输出。文本与事件严格按入队顺序发送；客户端断开后会话关闭，后续内容直接丢弃。
+ */
+@Slf4j
+public class TypewriterSession {
+
+    private final SseEmitter sseEmitter;
+
+    private final ScheduledExecutorService scheduler;
+
+    // 时间窗口（毫秒），0 表示即时模式
+    private final long tickMillis;
+
+    // 每个时间窗口可输出的字符数（可以是小数，余量累计到下个窗口）
+    private final double graphemesPerTick;
+
+    private final int maxGraphemesPerChunk;
+
+    // 待发送内容：TextSegment / SseEmitter.SseEventBuilder / CompletableFuture（drain 标记）
+    private final Deque<Object> queue = new ArrayDeque<>();
+
+    private final Object lock = new Object();
+
+    // 是否已有 tick 在调度中（同一时刻只有一个 tick 执行，保证发送顺序）
+    private boolean scheduled;
+
+    // 累计的可输出字符额度
+    private double credit;
+
+    private volatile boolean closed;
+
+    TypewriterSession(SseEmitter sseEmitter, ScheduledExecutorService scheduler,
+                      long tickMillis, double graphemesPerTick, int maxGraphemesPerChunk) {
+        this.sseEmitter = sseEmitter;
+        this.scheduler = scheduler;
+        this.tickMillis = tickMillis;
+        this.graphemesPerTick = graphemesPerTick;
+        this.maxGraphemesPerChunk = maxGraphemesPerChunk;
+    }
+
+    /**
+     * 追加一段文本（不换行）
+     */
+    public void append(String text) {
+        if (text != null && !text.isEmpty()) {
+            enqueue(new TextSegment(text));
+        }
+    }
+
+    /**
+     * 输出一条完整消息，末尾追加换行符
+     */
+    public void write(String message) {
+        append(message);
+        append("\n");
+    }
+
+    /**
+     * 按顺序发送一个命名事件（不参与打字机节奏）
+     */
+    public void send(SseEmitter.SseEventBuilder event) {
+        enqueue(event);
+    }
+
+    /**
+     * 等待队列中已有的内容全部发送完毕
+     *
+     * @return 发送完毕（或连接已关闭）时完成的 Future
+     */
+    public CompletableFuture<Void> drain() {
+        CompletableFuture<Void> drained = new CompletableFuture<>();
+        enqueue(drained);
+        return drained;
+    }
+
+    /**
+     * 客户端是否已断开
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    private void enqueue(Object item) {
+        synchronized (lock) {
+            if (closed) {
+                completeIfMarker(item);
+                return;
+            }
+            queue.addLast(item);
+            if (!scheduled) {
+                scheduled = true;
+                scheduleTick(0);
+            }
+        }
+    }
+
+    private void scheduleTick(long delay) {
+        try {
+            scheduler.schedule(this::tick, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            log.warn("Typewriter scheduler is shut down, dropping pending output");
+            close();
+        }
+    }
+
+    /**
+     * 取出当前时间窗口内应发送的内容，在锁外发送，然后决定是否继续调度
+     * <p>
+     * 出现意外异常时关闭会话并释放所有等待中的 drain，同时清除调度标记，避免后续内容永远得不到发送、
+     * 代理线程一直阻塞在 drain 上
+     */
+    private void tick() {
+        List<Object> outbound = new ArrayList<>();
+        boolean rescheduled = false;
+        try {
+            synchronized (lock) {
+                int budget;
+                if (tickMillis == 0) {
+                    budget = Integer.MAX_VALUE;
+                } else {
+                    credit = Math.min(credit + graphemesPerTick, maxGraphemesPerChunk);
+                    budget = (int) credit;
+                }
+                StringBuilder chunk = new StringBuilder();
+                while (!queue.isEmpty()) {
+                    Object head = queue.peekFirst();
+                    if (head instanceof TextSegment text) {
+                        if (budget == 0) {
+                            break;
+                        }
+                        int taken = text.take(chunk, budget);
+                        budget -= taken;
+                        if (tickMillis != 0) {
+                            credit -= taken;
+                        }
+                        if (text.isDone()) {
+                            queue.pollFirst();
+                        }
+                    } else {
+                        if (!chunk.isEmpty()) {
+                            outbound.add(chunk.toString());
+                            chunk.setLength(0);
+                        }
+                        outbound.add(queue.pollFirst());
+                    }
+                }
+                if (!chunk.isEmpty()) {
+                    outbound.add(chunk.toString());
+                }
+            }
+
+            for (Object item : outbound) {
+                deliver(item);
+            }
+
+            synchronized (lock) {
+                if (!closed && !queue.isEmpty()) {
+                    rescheduled = true;
+                    scheduleTick(tickMillis);
+                }
+            }
+        } catch (RuntimeException e) {
+            log.error("Typewriter tick failed, closing session", e);
+            outbound.forEach(this::completeIfMarker);
+            close();
+        } finally {
+            if (!rescheduled) {
+                synchronized (lock) {
+                    scheduled = false;
+                }
+            }
+        }
+    }
+
+    private void deliver(Object item) {
+        if (completeIfMarker(item) || closed) {
+            return;
+        }
+        try {
+            if (item instanceof String chunk) {
+                sseEmitter.send(chunk);
+            } else {
+                sseEmitter.send((SseEmitter.SseEventBuilder) item);
+            }
+        } catch (IOException | IllegalStateException e) {
+            log.warn("SSE connection closed by client, stopping typewriter effect");
+            close();
+        }
+    }
+
+    /**
+     * 关闭会话，丢弃未发送的内容并释放等待中的 drain（连接超时时由代理调用）
+     */
+    void close() {
+        List<Object> pending;
+        synchronized (lock) {
+            closed = true;
+            pending = new ArrayList<>(queue);
+            queue.clear();
+        }
+        pending.forEach(this::completeIfMarker);
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean completeIfMarker(Object item) {
+        if (item instanceof CompletableFuture<?> marker) {
+            ((CompletableFuture<Void>) marker).complete(null);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 待输出的文本，按字素（用户可见字符）切分，避免拆开代理对和组合字符
+     */
+    private static class TextSegment {
+
+        private final String text;
+
+        private final BreakIterator boundary = BreakIterator.getCharacterInstance();
+
+        private int position;
+
+        TextSegment(String text) {
+            this.text = text;
+            this.boundary.setText(text);
+        }
+
+        /**
+         * 最多取出 limit 个字素追加到 chunk
+         *
+         * @return 实际取出的字素数量
+         */
+        int take(StringBuilder chunk, int limit) {
+            int start = position;
+            int taken = 0;
+            while (taken < limit && position < text.length()) {
+                position = boundary.following(position);
+                taken++;
+            }
+            chunk.append(text, start, position);
+            return taken;
+        }
+
+        boolean isDone() {
+            return position >= text.length();
+        }
+    }
+}
@@ -1,15 +1,15 @@
 package com.aiagenttest.app;
 
+import com.aiagenttest.advisor.TokenBudgetChatMemoryAdvisor;
 import com.aiagenttest.chatmemory.DatabaseChatMemory;
 import org.springframework.ai.chat.client.ChatClient;
-import org.springframework.ai.chat.client.advisor.MessageChatMemoryAdvisor;
 import org.springframework.ai.chat.model.ChatModel;
 import org.springframework.ai.chat.model.ChatResponse;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import static org.springframework.ai.chat.client.advisor.AbstractChatMemoryAdvisor.CHAT_MEMORY_CONVERSATION_ID_KEY;
-import static org.springframework.ai.chat.client.advisor.AbstractChatMemoryAdvisor.CHAT_MEMORY_RETRIEVE_SIZE_KEY;
 
 @Component
 public class EcApp {
@@ -26,14 +26,16 @@ public class EcApp {
             + "2. 危机情况（如自伤倾向）立即提供专业援助渠道；"
             + "3. 避免诊断结论，强调‘非替代医疗建议’。";
 
-    public EcApp(ChatModel dashscopeChatModel, DatabaseChatMemory databaseChatMemory) {
+    public EcApp(ChatModel dashscopeChatModel, DatabaseChatMemory databaseChatMemory,
+                 @Value("${chat.memory.token-budget:4000}") int chatMemoryTokenBudget) {
         String memoryPath = System.getProperty("user.dir") + "/tmp/chat-memory";
         // ChatMemory chatMemory = new InMemoryChatMemory();
         // ChatMemory chatMemory = new FileBasedChatMemory(memoryPath);
         chatClient = ChatClient.builder(dashscopeChatModel)
                 .defaultSystem(SYSTEM_PROMPT)
                 .defaultAdvisors(
-                        new MessageChatMemoryAdvisor(databaseChatMemory)
+                        // 按 token 预算选取历史消息，代替固定的 10 条
+                        new TokenBudgetChatMemoryAdvisor(databaseChatMemory, chatMemoryTokenBudget)
                 )
                 .build();
     }
@@ -42,8 +44,7 @@ public class EcApp {
         ChatResponse response = chatClient
                 .prompt()
                 .user(message)
-                .advisors(spec -> spec.param(CHAT_MEMORY_CONVERSATION_ID_KEY, chatId) //指定对话id
-                        .param(CHAT_MEMORY_RETRIEVE_SIZE_KEY, 10)) //指定历史消息的数量，10条，添加到当前会话的提示词中
+                .advisors(spec -> spec.param(CHAT_MEMORY_CONVERSATION_ID_KEY, chatId)) //指定对话id
                 .call()
                 .chatResponse();
         String content = response.getResult().getOutput().getText();
@@ -1,26 +1,31 @@
 package com.aiagenttest.app;
 
 import com.aiagenttest.advisor.MyLoggerAdvisor;
+import com.aiagenttest.advisor.TokenBudgetChatMemoryAdvisor;
 import com.aiagenttest.chatmemory.FileBasedChatMemory;
+import com.aiagenttest.rag.SemanticAnswerCache;
 import jakarta.annotation.Resource;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.ai.chat.client.ChatClient;
-import org.springframework.ai.chat.client.advisor.MessageChatMemoryAdvisor;
 import org.springframework.ai.chat.client.advisor.QuestionAnswerAdvisor;
+import org.springframework.ai.chat.client.advisor.RetrievalAugmentationAdvisor;
 import org.springframework.ai.chat.client.advisor.api.Advisor;
 import org.springframework.ai.chat.memory.ChatMemory;
 import org.springframework.ai.chat.memory.InMemoryChatMemory;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.UserMessage;
 import org.springframework.ai.chat.model.ChatModel;
 import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.document.Document;
 import org.springframework.ai.tool.ToolCallback;
 import org.springframework.ai.tool.ToolCallbackProvider;
 import org.springframework.ai.vectorstore.VectorStore;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import java.util.List;
 
 import static org.springframework.ai.chat.client.advisor.AbstractChatMemoryAdvisor.CHAT_MEMORY_CONVERSATION_ID_KEY;
-import static org.springframework.ai.chat.client.advisor.AbstractChatMemoryAdvisor.CHAT_MEMORY_RETRIEVE_SIZE_KEY;
 
 @Component
 @Slf4j
@@ -28,6 +33,8 @@ public class LoveApp {
 
     private final ChatClient chatClient;
 
+    private final ChatMemory chatMemory;
+
     @Resource
     private VectorStore loveAppVectorStore;
 
@@ -64,14 +71,16 @@ public class LoveApp {
 //                .build();
 //    }
 
-    public LoveApp(ChatModel dashscopeChatModel) {
+    public LoveApp(ChatModel dashscopeChatModel,
+                   @Value("${chat.memory.token-budget:4000}") int chatMemoryTokenBudget) {
         // 初始化基于文件的对话记忆
         String fileDir = System.getProperty("user.dir") + "/chat-memory";
-        ChatMemory chatMemory = new FileBasedChatMemory(fileDir);
+        chatMemory = new FileBasedChatMemory(fileDir);
         chatClient = ChatClient.builder(dashscopeChatModel)
                 .defaultSystem(SYSTEM_PROMPT)
                 .defaultAdvisors(
-                        new MessageChatMemoryAdvisor(chatMemory)
+                        // 按 token 预算选取历史消息，代替固定的 10 条
+                        new TokenBudgetChatMemoryAdvisor(chatMemory, chatMemoryTokenBudget)
                 )
                 .build();
     }
@@ -81,8 +90,7 @@ public class LoveApp {
         ChatResponse response = chatClient
                 .prompt()
                 .user(message)
-                .advisors(spec -> spec.param(CHAT_MEMORY_CONVERSATION_ID_KEY, chatId) //指定对话id
-                        .param(CHAT_MEMORY_RETRIEVE_SIZE_KEY, 10)) //指定历史消息的数量，10条，添加到当前会话的提示词中
+                .advisors(spec -> spec.param(CHAT_MEMORY_CONVERSATION_ID_KEY, chatId)) //指定对话id
                 .call()
                 .chatResponse();
         String content = response.getResult().getOutput().getText();
@@ -110,8 +118,7 @@ public class LoveApp {
         HealthReport report = chatClient.prompt()
                 .system(SYSTEM_PROMPT + "每次对话后都需要生成报告结果，标题为{用户名}的健康报告，内容为建议列表")
                 .user(message)
-                .advisors(s -> s.param(CHAT_MEMORY_CONVERSATION_ID_KEY, chatId)  //s是AdvisorSpec 是一个对话记忆和上下文管理的配置器，它的核心作用是为当前对话设置记忆存储规则、上下文检索策略
-                        .param(CHAT_MEMORY_RETRIEVE_SIZE_KEY, 10))
+                .advisors(s -> s.param(CHAT_MEMORY_CONVERSATION_ID_KEY, chatId)) //s是AdvisorSpec 是一个对话记忆和上下文管理的配置器，它的核心作用是为当前对话设置记忆存储规则、上下文检索策略
                 .call()
                 .entity(HealthReport.class);
         return report;
@@ -139,8 +146,7 @@ public class LoveApp {
         ChatResponse response = chatClient
                 .prompt()
                 .user(message)
-                .advisors(spec -> spec.param(CHAT_MEMORY_CONVERSATION_ID_KEY, chatId)
-                        .param(CHAT_MEMORY_RETRIEVE_SIZE_KEY, 10))
+                .advisors(spec -> spec.param(CHAT_MEMORY_CONVERSATION_ID_KEY, chatId))
                 // 开启日志，便于观察效果
                 .advisors(new MyLoggerAdvisor())
                 .tools(allTools)
@@ -155,20 +161,49 @@ public class LoveApp {
 
     @Resource
     private Advisor loveAppRagCloudAdvisor;
-    // 基于云知识库进行问答
+
+    @Resource
+    private SemanticAnswerCache semanticAnswerCache;
+
+    // 基于云知识库进行问答，未指定租户，相似问题只复用检索结果
     public String doChatWithRag(String message, String chatId) {
+        return doChatWithRag(message, chatId, null);
+    }
+
+    /**
+     * 基于云知识库进行问答，相似问题复用缓存的回答或检索结果
+     *
+     * @param tenantId 调用方的租户（或用户）ID，缓存的回答只在同一租户内复用；为 null 时不复用回答
+     */
+    public String doChatWithRag(String message, String chatId, String tenantId) {
+        long start = System.currentTimeMillis();
+        // 会话中已有历史消息时回答依赖个人情况，不复用也不缓存回答，只复用检索结果
+        boolean personal = !chatMemory.get(chatId, 1).isEmpty();
+        SemanticAnswerCache.Match match = semanticAnswerCache.lookup(tenantId, message, !personal);
+        if (match.kind() == SemanticAnswerCache.Kind.ANSWER) {
+            // 缓存的回答也写入对话记忆，保持会话连续
+            chatMemory.add(chatId, List.of(new UserMessage(message), new AssistantMessage(match.answer())));
+            semanticAnswerCache.complete(match, match.answer(), match.context(), System.currentTimeMillis() - start);
+            log.info("Answer cache hit (similarity {}): {}", match.similarity(), match.answer());
+            return match.answer();
+        }
+        Advisor ragAdvisor = match.kind() == SemanticAnswerCache.Kind.CONTEXT
+                // 复用相似问题的检索结果，跳过知识库检索
+                ? RetrievalAugmentationAdvisor.builder().documentRetriever(query -> match.context()).build()
+                : loveAppRagCloudAdvisor;
         ChatResponse chatResponse = chatClient
                 .prompt()
                 .user(message)
-                .advisors(spec -> spec.param(CHAT_MEMORY_CONVERSATION_ID_KEY, chatId)
-                        .param(CHAT_MEMORY_RETRIEVE_SIZE_KEY, 10))
+                .advisors(spec -> spec.param(CHAT_MEMORY_CONVERSATION_ID_KEY, chatId))
                 // 开启日志，便于观察效果
                 .advisors(new MyLoggerAdvisor())
                 // 应用增强检索服务（云知识库服务）
-                .advisors(loveAppRagCloudAdvisor)
+                .advisors(ragAdvisor)
                 .call()
                 .chatResponse();
         String content = chatResponse.getResult().getOutput().getText();
+        List<Document> context = chatResponse.getMetadata().get(RetrievalAugmentationAdvisor.DOCUMENT_CONTEXT);
+        semanticAnswerCache.complete(match, personal ? null : content, context, System.currentTimeMillis() - start);
         log.info("content: {}", content);
         return content;
     }
@@ -181,8 +216,7 @@ public class LoveApp {
         ChatResponse response = chatClient
                 .prompt()
                 .user(message)
-                .advisors(spec -> spec.param(CHAT_MEMORY_CONVERSATION_ID_KEY, chatId)
-                        .param(CHAT_MEMORY_RETRIEVE_SIZE_KEY, 10))
+                .advisors(spec -> spec.param(CHAT_MEMORY_CONVERSATION_ID_KEY, chatId))
                 // 开启日志，便于观察效果
                 .advisors(new MyLoggerAdvisor())
                 .tools(toolCallbackProvider)
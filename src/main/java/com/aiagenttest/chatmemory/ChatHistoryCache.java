@@ -0,0 +1,174 @@
+package com.aiagenttest.chatmemory;
+
+import com.aiagenttest.model.ChatMessage;
+import com.aiagenttest.repository.ChatMessageRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.MessageType;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 代理对话历史缓存
+ * <p>
+ * 每个会话的历史消息只从数据库完整查询一次，之后新保存的消息增量追加到缓存中。
+ * 从数据库加载期间追加的消息先暂存，加载完成后合并到结果末尾（已在查询结果中的跳过）。
+ * 按最近访问顺序淘汰，最多缓存 maxConversations 个会话。
+ */
+@Component
+@Slf4j
+public class ChatHistoryCache {
+
+    private final ChatMessageRepository chatMessageRepository;
+
+    // 会话ID -> 历史消息（按访问顺序排列，用于 LRU 淘汰）
+    private final LinkedHashMap<String, List<Message>> cache;
+
+    // 正在从数据库加载的会话ID -> 加载期间追加的消息，由 cache 的锁保护
+    private final Map<String, List<Message>> loading = new HashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    public ChatHistoryCache(ChatMessageRepository chatMessageRepository,
+                            @Value("${chat.history-cache.max-conversations:1000}") int maxConversations) {
+        this.chatMessageRepository = chatMessageRepository;
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<Message>> eldest) {
+                return size() > maxConversations;
+            }
+        };
+    }
+
+    /**
+     * 获取会话历史（仅用户消息和助手消息），未命中时从数据库加载
+     *
+     * @return 历史消息副本
+     */
+    public List<Message> getHistory(String conversationId) {
+        synchronized (cache) {
+            List<Message> cached = cache.get(conversationId);
+            if (cached != null) {
+                hits.incrementAndGet();
+                return new ArrayList<>(cached);
+            }
+            loading.computeIfAbsent(conversationId, id -> new ArrayList<>());
+        }
+        misses.incrementAndGet();
+        List<Message> history;
+        try {
+            history = loadFromDatabase(conversationId);
+        } catch (RuntimeException e) {
+            synchronized (cache) {
+                loading.remove(conversationId);
+            }
+            throw e;
+        }
+        synchronized (cache) {
+            List<Message> appended = loading.remove(conversationId);
+            // 加载期间可能已有其他线程放入并追加了消息，以已有的为准
+            List<Message> cached = cache.get(conversationId);
+            if (cached != null) {
+                return new ArrayList<>(cached);
+            }
+            if (appended != null) {
+                merge(history, appended);
+            }
+            cache.put(conversationId, history);
+            return new ArrayList<>(history);
+        }
+    }
+
+    /**
+     * 新消息保存后增量追加到缓存（会话未缓存且不在加载中时忽略，下次访问会从数据库加载）
+     */
+    public void append(String conversationId, Message message) {
+        if (message.getMessageType() != MessageType.USER && message.getMessageType() != MessageType.ASSISTANT) {
+            return;
+        }
+        synchronized (cache) {
+            List<Message> cached = cache.get(conversationId);
+            if (cached != null) {
+                cached.add(message);
+                return;
+            }
+            List<Message> pending = loading.get(conversationId);
+            if (pending != null) {
+                pending.add(message);
+            }
+        }
+    }
+
+    /**
+     * 使会话缓存失效
+     */
+    public void invalidate(String conversationId) {
+        synchronized (cache) {
+            cache.remove(conversationId);
+        }
+    }
+
+    /**
+     * 缓存命中指标
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("hits", hits.get());
+        metrics.put("misses", misses.get());
+        synchronized (cache) {
+            metrics.put("conversations", cache.size());
+        }
+        return metrics;
+    }
+
+    /**
+     * 把加载期间追加的消息接到查询结果末尾：查询可能已经读到其中开头的若干条（写入先于查询完成），
+     * 找出查询结果末尾与追加消息开头的最长重叠部分，只追加剩余的消息
+     */
+    private static void merge(List<Message> history, List<Message> appended) {
+        int overlap = Math.min(history.size(), appended.size());
+        while (overlap > 0 && !sameMessages(history.subList(history.size() - overlap, history.size()),
+                appended.subList(0, overlap))) {
+            overlap--;
+        }
+        history.addAll(appended.subList(overlap, appended.size()));
+    }
+
+    private static boolean sameMessages(List<Message> a, List<Message> b) {
+        for (int i = 0; i < a.size(); i++) {
+            if (a.get(i).getMessageType() != b.get(i).getMessageType()
+                    || !Objects.equals(a.get(i).getText(), b.get(i).getText())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private List<Message> loadFromDatabase(String conversationId) {
+        List<ChatMessage> historyMessages = chatMessageRepository.listLastN(conversationId, 0);
+
+        // 转换为Message对象，跳过其他类型的消息
+        List<Message> messages = new ArrayList<>(historyMessages.size());
+        for (ChatMessage chatMessage : historyMessages) {
+            if (chatMessage.getMessageType() == MessageType.USER) {
+                messages.add(new UserMessage(chatMessage.getContent()));
+            } else if (chatMessage.getMessageType() == MessageType.ASSISTANT) {
+                messages.add(new AssistantMessage(chatMessage.getContent()));
+            }
+        }
+        log.info("Loaded {} messages from conversation: {}", historyMessages.size(), conversationId);
+        return messages;
+    }
+}
@@ -0,0 +1,231 @@
+package com.aiagenttest.chatmemory;
+
+import com.aiagenttest.model.ChatMessage;
+import com.aiagenttest.repository.ChatMessageRepository;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.messages.MessageType;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 聊天消息异步写入日志（write-behind）
+ * <p>
+ * 响应链路只把消息放入内存队列，由后台线程按数量（batchSize）或时间（flushIntervalMillis）触发批量插入。
+ * 同一会话中与上一条消息类型和内容都相同的消息（如每一步重复保存的 nextStepPrompt）会被去重，
+ * 去重状态按 LRU 保留最近 dedupConversations 个会话，会话被回收时由调用方通过 {@link #forget} 释放。
+ * 应用关闭时会把队列中剩余的消息全部写入数据库。
+ */
+@Component
+@Slf4j
+public class ChatMessageJournal {
+
+    private final ChatMessageRepository chatMessageRepository;
+
+    private final BlockingQueue<PendingMessage> queue;
+
+    private final int batchSize;
+
+    private final long flushIntervalMillis;
+
+    private final int maxRetries;
+
+    // 会话ID -> 最近一条入队消息（按访问顺序排列，用于 LRU 淘汰），用于去重
+    private final LinkedHashMap<String, LastMessage> lastMessages;
+
+    private final Thread flusher;
+
+    private volatile boolean running = true;
+
+    // 指标
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong deduplicated = new AtomicLong();
+    private final AtomicLong flushed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private volatile long lastFlushMillis;
+
+    public ChatMessageJournal(ChatMessageRepository chatMessageRepository,
+                              @Value("${chat.journal.batch-size:100}") int batchSize,
+                              @Value("${chat.journal.flush-interval-millis:200}") long flushIntervalMillis,
+                              @Value("${chat.journal.capacity:10000}") int capacity,
+                              @Value("${chat.journal.max-retries:3}") int maxRetries,
+                              @Value("${chat.journal.dedup-conversations:10000}") int dedupConversations) {
+        this.chatMessageRepository = chatMessageRepository;
+        this.queue = new LinkedBlockingQueue<>(capacity);
+        this.batchSize = batchSize;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.maxRetries = maxRetries;
+        this.lastMessages = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, LastMessage> eldest) {
+                return size() > dedupConversations;
+            }
+        };
+        this.flusher = new Thread(this::flushLoop, "chat-message-journal");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * 追加一条待保存的消息
+     *
+     * @return 是否入队（重复消息返回 false，调用方不应再把它加入历史缓存）
+     */
+    public boolean append(ChatMessage chatMessage) {
+        LastMessage current = new LastMessage(chatMessage.getMessageType(), chatMessage.getContent());
+        LastMessage previous;
+        synchronized (lastMessages) {
+            previous = lastMessages.put(chatMessage.getConversationId(), current);
+        }
+        if (current.equals(previous)) {
+            deduplicated.incrementAndGet();
+            return false;
+        }
+        // 记录入队时间作为创建时间，保证批量插入后仍能按产生顺序排序
+        if (chatMessage.getCreateTime() == null) {
+            chatMessage.setCreateTime(new Date());
+        }
+        enqueued.incrementAndGet();
+        if (!running || !queue.offer(new PendingMessage(chatMessage, System.currentTimeMillis()))) {
+            // 队列已满或正在关闭，退化为同步写入，宁可慢也不丢消息
+            log.warn("Chat message journal is full or stopped, saving synchronously");
+            saveWithRetry(List.of(chatMessage));
+        }
+        return true;
+    }
+
+    /**
+     * 会话清空或被回收后释放去重状态
+     */
+    public void forget(String conversationId) {
+        synchronized (lastMessages) {
+            lastMessages.remove(conversationId);
+        }
+    }
+
+    /**
+     * 写入指标：待写入数量、最早待写入消息的等待时间（写入延迟）等
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        PendingMessage oldest = queue.peek();
+        metrics.put("pending", queue.size());
+        metrics.put("lagMillis", oldest == null ? 0 : System.currentTimeMillis() - oldest.enqueueTime);
+        metrics.put("enqueued", enqueued.get());
+        metrics.put("deduplicated", deduplicated.get());
+        metrics.put("flushed", flushed.get());
+        metrics.put("failed", failed.get());
+        metrics.put("batches", batches.get());
+        metrics.put("lastFlushMillis", lastFlushMillis);
+        return metrics;
+    }
+
+    private void flushLoop() {
+        List<PendingMessage> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingMessage first = queue.poll(flushIntervalMillis, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                // 等待凑满一批或到达刷新间隔
+                long deadline = first.enqueueTime + flushIntervalMillis;
+                while (batch.size() < batchSize) {
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        queue.drainTo(batch, batchSize - batch.size());
+                        break;
+                    }
+                    PendingMessage next = queue.poll(wait, TimeUnit.MILLISECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                flush(batch);
+            } catch (InterruptedException e) {
+                // 关闭时被中断，写入已取出的消息后继续循环把剩余消息写完
+                running = false;
+                if (!batch.isEmpty()) {
+                    flush(batch);
+                }
+            } catch (Exception e) {
+                log.error("Chat message journal flush loop failed", e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void flush(List<PendingMessage> batch) {
+        List<ChatMessage> chatMessages = batch.stream().map(PendingMessage::chatMessage).toList();
+        long start = System.currentTimeMillis();
+        saveWithRetry(chatMessages);
+        lastFlushMillis = System.currentTimeMillis() - start;
+        batches.incrementAndGet();
+    }
+
+    private void saveWithRetry(List<ChatMessage> chatMessages) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                chatMessageRepository.saveBatch(chatMessages, chatMessages.size());
+                flushed.addAndGet(chatMessages.size());
+                return;
+            } catch (Exception e) {
+                if (attempt >= maxRetries) {
+                    failed.addAndGet(chatMessages.size());
+                    log.error("Failed to save {} chat messages after {} attempts", chatMessages.size(), attempt, e);
+                    return;
+                }
+                log.warn("Failed to save chat messages, retrying ({}/{})", attempt, maxRetries);
+                try {
+                    Thread.sleep(100L * attempt);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        running = false;
+        flusher.interrupt();
+        try {
+            flusher.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // 兜底：刷新线程未能在超时内写完时，在当前线程写入剩余消息
+        List<PendingMessage> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        if (!remaining.isEmpty()) {
+            flush(remaining);
+        }
+        log.info("Chat message journal stopped, {} messages flushed in total", flushed.get());
+    }
+
+    /**
+     * 会话最近一条入队消息的类型和内容
+     */
+    private record LastMessage(MessageType messageType, String content) {
+    }
+
+    /**
+     * 待写入的消息及入队时间
+     */
+    private record PendingMessage(ChatMessage chatMessage, long enqueueTime) {
+    }
+}
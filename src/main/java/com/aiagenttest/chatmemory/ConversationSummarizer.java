@@ -0,0 +1,285 @@
+package com.aiagenttest.chatmemory;
+
+import cn.hutool.core.util.StrUtil;
+import com.aiagenttest.model.ChatMessage;
+import com.aiagenttest.repository.ChatMessageRepository;
+import com.aiagenttest.utils.TokenEstimator;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.client.ChatClient;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.MessageType;
+import org.springframework.ai.chat.messages.ToolResponseMessage;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.ai.chat.model.ChatModel;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 长对话滚动摘要
+ * <p>
+ * 会话上下文的 token 数超过阈值时，把较早的消息连同已有摘要一起交给大模型，生成新的摘要代替这些消息，
+ * 只保留最近的若干条原始消息，使每一轮发送给模型的上下文大小基本恒定。
+ * <p>
+ * 摘要作为一条 SYSTEM 类型、seq 为 0 的 ChatMessage 与会话消息保存在同一张表中（不会出现在按 seq 读取的历史里），
+ * metadata 中的 coveredSeq 记录摘要覆盖到的最后一条消息序号。重新加载会话时只需读取摘要和 coveredSeq 之后的消息。
+ * 摘要在后台线程生成，不阻塞当前回复。
+ */
+@Component
+@Slf4j
+public class ConversationSummarizer {
+
+    /**
+     * 摘要消息的 metadata 标记
+     */
+    public static final String SUMMARY_METADATA_KEY = "summary";
+
+    /**
+     * 摘要覆盖到的最后一条消息序号
+     */
+    public static final String COVERED_SEQ_METADATA_KEY = "coveredSeq";
+
+    private static final String SUMMARY_SYSTEM_PROMPT = "你是心理咨询对话的记录员。请把已有摘要和新增的对话内容合并为一份新的摘要，"
+            + "保留用户的基本情况、主要困扰、情绪变化、已经给出的建议和尚未解决的问题，删除寒暄和重复内容。"
+            + "使用第三人称、简洁的中文条目，不要编造对话中没有的信息，不超过 %d 字。";
+
+    // 工具返回结果在摘要输入中的最大长度
+    private static final int MAX_TOOL_RESPONSE_CHARS = 500;
+
+    private final ChatClient chatClient;
+
+    private final ChatMessageRepository chatMessageRepository;
+
+    private final boolean enabled;
+
+    // 上下文超过该 token 数时触发摘要
+    private final int triggerTokens;
+
+    // 摘要后至少保留的最近消息条数
+    private final int keepRecentMessages;
+
+    // 摘要的最大长度（字）
+    private final int maxSummaryChars;
+
+    // 后台摘要的最长等待时间，超时未完成的摘要被放弃，下一轮重新触发
+    private final long timeoutMillis;
+
+    private final ExecutorService executor;
+
+    public ConversationSummarizer(ChatModel dashscopeChatModel,
+                                  ChatMessageRepository chatMessageRepository,
+                                  @Value("${chat.summary.enabled:true}") boolean enabled,
+                                  @Value("${chat.summary.trigger-tokens:6000}") int triggerTokens,
+                                  @Value("${chat.summary.keep-recent-messages:6}") int keepRecentMessages,
+                                  @Value("${chat.summary.max-summary-chars:800}") int maxSummaryChars,
+                                  @Value("${chat.summary.timeout-seconds:120}") long timeoutSeconds) {
+        this.chatClient = ChatClient.builder(dashscopeChatModel).build();
+        this.chatMessageRepository = chatMessageRepository;
+        this.enabled = enabled;
+        this.triggerTokens = triggerTokens;
+        this.keepRecentMessages = keepRecentMessages;
+        this.maxSummaryChars = maxSummaryChars;
+        this.timeoutMillis = TimeUnit.SECONDS.toMillis(timeoutSeconds);
+        // 核心线程数等于最大线程数：有界队列前面的线程池只有在队列满后才会创建非核心线程。
+        // 队列满时拒绝任务（summarizeAsync 返回失败的 Future），由调用方在下一轮重新触发
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(2, 2, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(100), r -> {
+            Thread thread = new Thread(r, "conversation-summarizer");
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.AbortPolicy());
+        pool.allowCoreThreadTimeOut(true);
+        this.executor = pool;
+    }
+
+    /**
+     * 计算需要折叠进摘要的消息数量
+     * <p>
+     * 上下文未超过阈值时返回 0；否则在保留至少 keepRecentMessages 条最近消息的前提下，
+     * 在用户消息处切分（不会把工具调用和工具结果拆开），返回切分点之前的消息数量。
+     */
+    public int foldIndex(List<Message> messages, String currentSummary) {
+        if (!enabled || messages.size() <= keepRecentMessages) {
+            return 0;
+        }
+        int tokens = TokenEstimator.estimate(messages) + TokenEstimator.estimate(currentSummary);
+        if (tokens <= triggerTokens) {
+            return 0;
+        }
+        for (int i = messages.size() - keepRecentMessages; i > 0; i--) {
+            if (messages.get(i) instanceof UserMessage) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * 异步生成新的摘要并保存
+     *
+     * @param previousSummary 已有摘要，可为空
+     * @param folded          需要折叠进摘要的消息
+     * @return 新的摘要，失败或队列已满被拒绝时为异常完成
+     */
+    public CompletableFuture<String> summarizeAsync(String conversationId, String previousSummary, List<Message> folded) {
+        List<Message> snapshot = new ArrayList<>(folded);
+        try {
+            return CompletableFuture.supplyAsync(() -> summarize(conversationId, previousSummary, snapshot), executor);
+        } catch (RejectedExecutionException e) {
+            log.warn("Summarizer queue is full, skipping summary for conversation {}", conversationId);
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * 后台摘要的最长等待时间（毫秒）
+     */
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * 读取会话摘要及其之后的消息，没有摘要时返回 null
+     */
+    public SummarizedHistory loadHistory(String conversationId) {
+        if (!enabled) {
+            return null;
+        }
+        ChatMessage summary = findSummary(conversationId);
+        if (summary == null) {
+            return null;
+        }
+        long coveredSeq = getCoveredSeq(summary);
+        List<Message> messages = new ArrayList<>();
+        for (ChatMessage chatMessage : chatMessageRepository.listAfterSeq(conversationId, coveredSeq, 0)) {
+            if (chatMessage.getMessageType() == MessageType.USER) {
+                messages.add(new UserMessage(chatMessage.getContent()));
+            } else if (chatMessage.getMessageType() == MessageType.ASSISTANT) {
+                messages.add(new AssistantMessage(chatMessage.getContent()));
+            }
+        }
+        log.info("Loaded summary and {} messages after seq {} for conversation: {}", messages.size(), coveredSeq, conversationId);
+        return new SummarizedHistory(summary.getContent(), messages);
+    }
+
+    private String summarize(String conversationId, String previousSummary, List<Message> folded) {
+        long start = System.currentTimeMillis();
+        String summary = chatClient.prompt()
+                .system(String.format(SUMMARY_SYSTEM_PROMPT, maxSummaryChars))
+                .user(buildSummaryInput(previousSummary, folded))
+                .call()
+                .content();
+        if (StrUtil.isBlank(summary)) {
+            throw new IllegalStateException("Empty summary returned for conversation " + conversationId);
+        }
+        saveSummary(conversationId, summary, folded);
+        log.info("Summarized {} messages of conversation {} into {} chars in {}ms",
+                folded.size(), conversationId, summary.length(), System.currentTimeMillis() - start);
+        return summary;
+    }
+
+    private String buildSummaryInput(String previousSummary, List<Message> folded) {
+        StringBuilder input = new StringBuilder();
+        input.append("【已有摘要】\n").append(StrUtil.blankToDefault(previousSummary, "无")).append("\n\n【新增对话】\n");
+        for (Message message : folded) {
+            if (message instanceof UserMessage) {
+                input.append("用户：").append(message.getText()).append('\n');
+            } else if (message instanceof AssistantMessage && StrUtil.isNotBlank(message.getText())) {
+                input.append("助手：").append(message.getText()).append('\n');
+            } else if (message instanceof ToolResponseMessage toolResponseMessage) {
+                for (ToolResponseMessage.ToolResponse response : toolResponseMessage.getResponses()) {
+                    input.append("工具 ").append(response.name()).append(" 返回：")
+                            .append(StrUtil.maxLength(response.responseData(), MAX_TOOL_RESPONSE_CHARS)).append('\n');
+                }
+            }
+        }
+        return input.toString();
+    }
+
+    /**
+     * 保存摘要，并按内容顺序匹配已入库的消息，确定摘要覆盖到的序号
+     */
+    private void saveSummary(String conversationId, String summary, List<Message> folded) {
+        ChatMessage existing = findSummary(conversationId);
+        long coveredSeq = existing != null ? getCoveredSeq(existing) : 0;
+        coveredSeq = matchCoveredSeq(conversationId, coveredSeq, folded);
+
+        Map<String, Object> metadata = new HashMap<>();
+        metadata.put(SUMMARY_METADATA_KEY, true);
+        metadata.put(COVERED_SEQ_METADATA_KEY, coveredSeq);
+        if (existing != null) {
+            existing.setContent(summary);
+            existing.setMetadata(metadata);
+            chatMessageRepository.updateById(existing);
+        } else {
+            chatMessageRepository.save(ChatMessage.builder()
+                    .conversationId(conversationId)
+                    .messageType(MessageType.SYSTEM)
+                    .seq(0L)
+                    .content(summary)
+                    .metadata(metadata)
+                    .build());
+        }
+    }
+
+    /**
+     * 折叠的消息中只有用户消息和助手文本会入库（连续重复的消息只保存一次），
+     * 按顺序在 afterSeq 之后的记录中匹配，最后一条匹配记录的序号即为新的覆盖位置
+     */
+    private long matchCoveredSeq(String conversationId, long afterSeq, List<Message> folded) {
+        List<ChatMessage> rows = chatMessageRepository.listAfterSeq(conversationId, afterSeq, 0);
+        long coveredSeq = afterSeq;
+        int row = 0;
+        for (Message message : folded) {
+            if (!(message instanceof UserMessage) && !(message instanceof AssistantMessage)) {
+                continue;
+            }
+            for (int i = row; i < rows.size(); i++) {
+                ChatMessage chatMessage = rows.get(i);
+                if (chatMessage.getMessageType() == message.getMessageType()
+                        && StrUtil.equals(chatMessage.getContent(), message.getText())) {
+                    coveredSeq = chatMessage.getSeq();
+                    row = i + 1;
+                    break;
+                }
+            }
+        }
+        return coveredSeq;
+    }
+
+    private ChatMessage findSummary(String conversationId) {
+        return chatMessageRepository.lambdaQuery()
+                .eq(ChatMessage::getConversationId, conversationId)
+                .eq(ChatMessage::getMessageType, MessageType.SYSTEM)
+                .eq(ChatMessage::getSeq, 0L)
+                .last("LIMIT 1")
+                .one();
+    }
+
+    private static long getCoveredSeq(ChatMessage summary) {
+        Object coveredSeq = summary.getMetadata() != null ? summary.getMetadata().get(COVERED_SEQ_METADATA_KEY) : null;
+        return coveredSeq instanceof Number number ? number.longValue() : 0;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * 会话摘要及其之后的消息
+     */
+    public record SummarizedHistory(String summary, List<Message> messages) {
+    }
+}
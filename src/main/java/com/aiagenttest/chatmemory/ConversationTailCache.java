@@ -0,0 +1,189 @@
+package com.aiagenttest.chatmemory;
+
+import org.springframework.ai.chat.messages.Message;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 会话最近消息缓存（按内容长度加权的 LRU）
+ * <p>
+ * 每个会话最多缓存最近 maxMessagesPerConversation 条消息；所有会话消息的权重（内容长度 + 固定开销）之和
+ * 超过 maxWeight 时，淘汰最久未访问的会话。缓存中保存了会话完整历史时（数据库中的消息比请求的少），
+ * 任意 lastN 都可以直接返回。
+ * <p>
+ * 从数据库加载期间如果同一会话有写入或清空，加载结果可能已过期，此时不放入缓存。
+ */
+final class ConversationTailCache {
+
+    // 每条消息除内容外的估算开销
+    private static final int MESSAGE_OVERHEAD = 64;
+
+    private static final int VERSION_STRIPES = 64;
+
+    private final long maxWeight;
+
+    private final int maxMessagesPerConversation;
+
+    // 会话ID -> 最近消息（按访问顺序排列，用于 LRU 淘汰）
+    private final LinkedHashMap<String, Tail> tails = new LinkedHashMap<>(16, 0.75f, true);
+
+    // 按会话ID分段的写入版本号，用于发现加载期间发生的写入
+    private final AtomicLongArray versions = new AtomicLongArray(VERSION_STRIPES);
+
+    private long weight;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    ConversationTailCache(long maxWeight, int maxMessagesPerConversation) {
+        this.maxWeight = maxWeight;
+        this.maxMessagesPerConversation = maxMessagesPerConversation;
+    }
+
+    /**
+     * 每个会话最多缓存的消息数量，未命中时应至少从数据库加载这么多条
+     */
+    int getMaxMessagesPerConversation() {
+        return maxMessagesPerConversation;
+    }
+
+    /**
+     * 查询最近 lastN 条消息（lastN <= 0 表示全部）
+     *
+     * @return 命中时返回消息副本，未命中返回 null
+     */
+    synchronized List<Message> get(String conversationId, int lastN) {
+        Tail tail = tails.get(conversationId);
+        if (tail == null || !tail.covers(lastN)) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        int from = lastN > 0 ? Math.max(0, tail.messages.size() - lastN) : 0;
+        return new ArrayList<>(tail.messages.subList(from, tail.messages.size()));
+    }
+
+    /**
+     * 加载前记录版本号，传给 {@link #put}
+     */
+    long version(String conversationId) {
+        return versions.get(stripe(conversationId));
+    }
+
+    /**
+     * 放入从数据库加载的消息
+     *
+     * @param messages 按时间顺序排列的最近消息
+     * @param complete 是否为会话的全部消息
+     * @param version  加载前的版本号
+     */
+    synchronized void put(String conversationId, List<Message> messages, boolean complete, long version) {
+        if (versions.get(stripe(conversationId)) != version) {
+            return;
+        }
+        Tail tail = new Tail(complete);
+        Tail previous = tails.put(conversationId, tail);
+        if (previous != null) {
+            weight -= previous.weight;
+        }
+        appendTo(tail, messages);
+        evict();
+    }
+
+    /**
+     * 新消息写入数据库后追加到缓存（会话未缓存时忽略）
+     */
+    synchronized void append(String conversationId, List<Message> messages) {
+        versions.incrementAndGet(stripe(conversationId));
+        Tail tail = tails.get(conversationId);
+        if (tail != null) {
+            appendTo(tail, messages);
+            evict();
+        }
+    }
+
+    synchronized void invalidate(String conversationId) {
+        versions.incrementAndGet(stripe(conversationId));
+        Tail tail = tails.remove(conversationId);
+        if (tail != null) {
+            weight -= tail.weight;
+        }
+    }
+
+    synchronized Map<String, Object> getMetrics() {
+        long hitCount = hits.get();
+        long total = hitCount + misses.get();
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("hits", hitCount);
+        metrics.put("misses", misses.get());
+        metrics.put("hitRate", total == 0 ? 0.0 : (double) hitCount / total);
+        metrics.put("evictions", evictions.get());
+        metrics.put("conversations", tails.size());
+        metrics.put("weight", weight);
+        metrics.put("maxWeight", maxWeight);
+        return metrics;
+    }
+
+    private void appendTo(Tail tail, List<Message> messages) {
+        for (Message message : messages) {
+            long messageWeight = weigh(message);
+            tail.messages.add(message);
+            tail.weight += messageWeight;
+            weight += messageWeight;
+        }
+        // 超出单会话条数上限时丢弃最早的消息，缓存不再是完整历史
+        while (tail.messages.size() > maxMessagesPerConversation) {
+            long removed = weigh(tail.messages.remove(0));
+            tail.weight -= removed;
+            weight -= removed;
+            tail.complete = false;
+        }
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Tail>> iterator = tails.entrySet().iterator();
+        while (weight > maxWeight && iterator.hasNext()) {
+            Tail eldest = iterator.next().getValue();
+            iterator.remove();
+            weight -= eldest.weight;
+            evictions.incrementAndGet();
+        }
+    }
+
+    private static long weigh(Message message) {
+        String text = message.getText();
+        return MESSAGE_OVERHEAD + (text == null ? 0 : text.length());
+    }
+
+    private static int stripe(String conversationId) {
+        return Math.floorMod(conversationId.hashCode(), VERSION_STRIPES);
+    }
+
+    /**
+     * 单个会话的缓存消息
+     */
+    private static class Tail {
+
+        private final List<Message> messages = new ArrayList<>();
+
+        // 是否包含会话的全部消息
+        private boolean complete;
+
+        private long weight;
+
+        Tail(boolean complete) {
+            this.complete = complete;
+        }
+
+        boolean covers(int lastN) {
+            return complete || (lastN > 0 && messages.size() >= lastN);
+        }
+    }
+}
@@ -5,21 +5,37 @@ import com.aiagenttest.convertre.MessageConverter;
 import com.aiagenttest.model.ChatMessage;
 import com.aiagenttest.repository.ChatMessageRepository;
 import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
-import lombok.RequiredArgsConstructor;
 import org.springframework.ai.chat.memory.ChatMemory;
 import org.springframework.ai.chat.messages.Message;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
-import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
+/**
+ * 基于数据库的对话记忆
+ * <p>
+ * 前置一层会话最近消息缓存（{@link ConversationTailCache}）：add 写库后追加到缓存，clear 删库后使缓存失效，
+ * 稳定对话中每一轮的 get 都直接由缓存返回，不再查询数据库。
+ */
 @Component
-@RequiredArgsConstructor
 public class DatabaseChatMemory implements ChatMemory {
 
     private final ChatMessageRepository chatMessageRepository;
 
+    // 为 null 表示未开启缓存
+    private final ConversationTailCache tailCache;
+
+    public DatabaseChatMemory(ChatMessageRepository chatMessageRepository,
+                              @Value("${chat.memory-cache.enabled:true}") boolean cacheEnabled,
+                              @Value("${chat.memory-cache.max-weight:4000000}") long maxWeight,
+                              @Value("${chat.memory-cache.max-messages-per-conversation:50}") int maxMessagesPerConversation) {
+        this.chatMessageRepository = chatMessageRepository;
+        this.tailCache = cacheEnabled ? new ConversationTailCache(maxWeight, maxMessagesPerConversation) : null;
+    }
+
     @Override
     public void add(String conversationId, List<Message> messages) {
         List<ChatMessage> chatMessages = messages.stream()
@@ -27,35 +43,58 @@ public class DatabaseChatMemory implements ChatMemory {
                 .collect(Collectors.toList());
 
         chatMessageRepository.saveBatch(chatMessages, chatMessages.size());
+        if (tailCache != null) {
+            tailCache.append(conversationId, messages);
+        }
     }
 
     @Override
     public List<Message> get(String conversationId, int lastN) {
-        LambdaQueryWrapper<ChatMessage> queryWrapper = new LambdaQueryWrapper<>();
-        // 查询最近的 lastN 条消息
-        queryWrapper.eq(ChatMessage::getConversationId, conversationId)
-                .orderByDesc(ChatMessage::getCreateTime)
-                .last(lastN > 0, "LIMIT " + lastN);
-
-        List<ChatMessage> chatMessages = chatMessageRepository.list(queryWrapper);
-
-        // 按照时间顺序返回
-        if (!chatMessages.isEmpty()) {
-            Collections.reverse(chatMessages);
+        if (tailCache == null) {
+            return load(conversationId, lastN);
         }
-
-        return chatMessages
-                .stream()
-                .map(MessageConverter::toMessage)
-                .collect(Collectors.toList());
+        List<Message> cached = tailCache.get(conversationId, lastN);
+        if (cached != null) {
+            return cached;
+        }
+        // 未命中时至少加载缓存容量的消息，之后更小的 lastN 也能命中
+        long version = tailCache.version(conversationId);
+        int limit = lastN > 0 ? Math.max(lastN, tailCache.getMaxMessagesPerConversation()) : 0;
+        List<Message> messages = load(conversationId, limit);
+        boolean complete = limit <= 0 || messages.size() < limit;
+        tailCache.put(conversationId, messages, complete, version);
+        if (lastN > 0 && messages.size() > lastN) {
+            return messages.subList(messages.size() - lastN, messages.size());
+        }
+        return messages;
     }
 
     @Override
     public void clear(String conversationId) {
         LambdaQueryWrapper<ChatMessage> queryWrapper = new LambdaQueryWrapper<>();
         queryWrapper.eq(ChatMessage::getConversationId, conversationId);
+        chatMessageRepository.getBaseMapper().deleteSummary(conversationId);
         chatMessageRepository.remove(queryWrapper);
+        if (tailCache != null) {
+            tailCache.invalidate(conversationId);
+        }
     }
 
-}
+    /**
+     * 缓存命中率等指标
+     */
+    public Map<String, Object> getCacheMetrics() {
+        return tailCache != null ? tailCache.getMetrics() : Map.of("enabled", false);
+    }
+
+    private List<Message> load(String conversationId, int lastN) {
+        // 查询最近的 lastN 条消息，按序号顺序返回
+        List<ChatMessage> chatMessages = chatMessageRepository.listLastN(conversationId, lastN);
+
+        return chatMessages
+                .stream()
+                .map(MessageConverter::toMessage)
+                .collect(Collectors.toList());
+    }
 
+}
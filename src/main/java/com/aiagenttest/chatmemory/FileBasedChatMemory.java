@@ -1,36 +1,130 @@
 package com.aiagenttest.chatmemory;
 
-import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.ByteBufferInput;
 import com.esotericsoftware.kryo.io.Input;
-import com.esotericsoftware.kryo.io.Output;
-import org.objenesis.strategy.StdInstantiatorStrategy;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.ai.chat.memory.ChatMemory;
 import org.springframework.ai.chat.messages.Message;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 /**
  * 基于文件持久化的对话记忆
+ * <p>
+ * 每个会话一个目录，消息以追加方式写入分段日志文件（segment-N.log），每条记录为「4 字节长度 + Kryo 序列化内容」；
+ * 索引文件（index.idx）为每条记录保存「4 字节段号 + 8 字节偏移量」。因此 add 只写入新消息，
+ * get(lastN) 只读取索引尾部和最后 N 条记录。段数量超过阈值时合并压缩为一个段，
+ * 启动后首次访问会话时会校验并修复崩溃留下的不完整记录。旧版整体序列化的 .kryo 文件会自动迁移。
+ * <p>
+ * 序列化通过 {@link KryoMessageSerializer} 的 Kryo 对象池完成，不同会话可以并发读写，同一会话的读写按会话加锁。
+ * <p>
+ * 读取走内存映射：索引和段文件的映射缓存在 {@link MappedRegionCache} 中，get 直接在映射区域上反序列化，
+ * 不为每次调用分配堆内缓冲区。已封存的段映射一次后反复复用，正在写入的段和索引变长后按需重新映射。
+ * <p>
+ * 已打开的会话日志最多缓存 maxOpenLogs 个，超过后关闭最久未访问的一批，再次访问时重新打开。
  */
+@Slf4j
 public class FileBasedChatMemory implements ChatMemory {
 
+    /**
+     * 刷盘模式
+     */
+    public enum FsyncMode {
+        /**
+         * 由操作系统决定何时落盘，性能最好，进程崩溃不丢数据但机器掉电可能丢失最近的消息
+         */
+        NONE,
+        /**
+         * 每次 add 后强制刷盘（先数据后索引），掉电也不丢已返回的消息
+         */
+        ON_ADD
+    }
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final String INDEX_FILE = "index.idx";
+    private static final Pattern SEGMENT_PATTERN = Pattern.compile("segment-(\\d+)\\.log");
+
+    // 索引项：段号(int) + 偏移量(long)
+    private static final int INDEX_ENTRY_SIZE = Integer.BYTES + Long.BYTES;
+
+    // 记录头：内容长度(int)
+    private static final int RECORD_HEADER_SIZE = Integer.BYTES;
+
     private final String BASE_DIR;
-    private static final Kryo kryo = new Kryo();
 
-    static {
-        kryo.setRegistrationRequired(false);
-        // 设置实例化策略
-        kryo.setInstantiatorStrategy(new StdInstantiatorStrategy());
-    }
+    private final FsyncMode fsyncMode;
+
+    // 单个段文件的最大字节数，超过后滚动到新段
+    private final long maxSegmentBytes;
+
+    // 段数量超过该值时触发压缩
+    private final int compactionSegmentThreshold;
+
+    // 压缩时最多保留的消息数量，0 表示全部保留
+    private final int maxRetainedMessages;
+
+    // 会话ID -> 已打开的会话日志
+    private final Map<String, ConversationLog> logs = new ConcurrentHashMap<>();
+
+    // 最多缓存的会话日志数量
+    private final int maxOpenLogs;
+
+    // 索引和段文件的内存映射
+    private final MappedRegionCache mappedRegions;
 
     // 构造对象时，指定文件保存目录
     public FileBasedChatMemory(String dir) {
+        this(dir, FsyncMode.NONE, 4L * 1024 * 1024, 8, 0);
+    }
+
+    public FileBasedChatMemory(String dir, FsyncMode fsyncMode, long maxSegmentBytes,
+                               int compactionSegmentThreshold, int maxRetainedMessages) {
+        this(dir, fsyncMode, maxSegmentBytes, compactionSegmentThreshold, maxRetainedMessages, 256, 256L * 1024 * 1024);
+    }
+
+    /**
+     * @param maxMappedRegions 最多同时映射的文件数量
+     * @param maxMappedBytes   映射区域总字节数上限
+     */
+    public FileBasedChatMemory(String dir, FsyncMode fsyncMode, long maxSegmentBytes,
+                               int compactionSegmentThreshold, int maxRetainedMessages,
+                               int maxMappedRegions, long maxMappedBytes) {
+        this(dir, fsyncMode, maxSegmentBytes, compactionSegmentThreshold, maxRetainedMessages,
+                maxMappedRegions, maxMappedBytes, 10000);
+    }
+
+    /**
+     * @param maxOpenLogs 最多缓存的会话日志数量
+     */
+    public FileBasedChatMemory(String dir, FsyncMode fsyncMode, long maxSegmentBytes,
+                               int compactionSegmentThreshold, int maxRetainedMessages,
+                               int maxMappedRegions, long maxMappedBytes, int maxOpenLogs) {
         this.BASE_DIR = dir;
+        this.maxOpenLogs = Math.max(1, maxOpenLogs);
+        this.fsyncMode = fsyncMode;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.compactionSegmentThreshold = compactionSegmentThreshold;
+        this.maxRetainedMessages = maxRetainedMessages;
+        this.mappedRegions = new MappedRegionCache(maxMappedRegions, maxMappedBytes);
         File baseDir = new File(dir);
         if (!baseDir.exists()) {
             baseDir.mkdirs();
@@ -39,50 +133,547 @@ public class FileBasedChatMemory implements ChatMemory {
 
     @Override
     public void add(String conversationId, List<Message> messages) {
-        List<Message> conversationMessages = getOrCreateConversation(conversationId);
-        conversationMessages.addAll(messages);
-        saveConversation(conversationId, conversationMessages);
+        if (messages.isEmpty()) {
+            return;
+        }
+        while (true) {
+            ConversationLog conversationLog = openLog(conversationId);
+            synchronized (conversationLog) {
+                if (conversationLog.removed) {
+                    // 拿到锁之前会话已被清空，重新打开新的日志
+                    continue;
+                }
+                try {
+                    List<byte[]> records = new ArrayList<>(messages.size());
+                    for (Message message : messages) {
+                        records.add(serialize(message));
+                    }
+                    appendRecords(conversationLog, records);
+                    if (conversationLog.segmentCount > compactionSegmentThreshold) {
+                        compact(conversationLog);
+                    }
+                    return;
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Failed to append messages to conversation " + conversationId, e);
+                }
+            }
+        }
     }
 
     @Override
     public List<Message> get(String conversationId, int lastN) {
-        List<Message> allMessages = getOrCreateConversation(conversationId);
-        return allMessages.stream()
-                .skip(Math.max(0, allMessages.size() - lastN))
-                .toList();
+        if (lastN <= 0) {
+            return List.of();
+        }
+        while (true) {
+            if (!conversationExists(conversationId)) {
+                return List.of();
+            }
+            ConversationLog conversationLog = openLog(conversationId);
+            synchronized (conversationLog) {
+                if (conversationLog.removed) {
+                    // 拿到锁之前日志已被清空或关闭，重新检查并打开
+                    continue;
+                }
+                try (MappedRegionCache.Lease lease = mappedRegions.lease()) {
+                    long from = Math.max(0, conversationLog.recordCount - lastN);
+                    List<ByteBuffer> records = readRecords(lease, conversationLog, from, conversationLog.recordCount);
+                    List<Message> messages = new ArrayList<>(records.size());
+                    for (ByteBuffer record : records) {
+                        messages.add(deserialize(record));
+                    }
+                    return messages;
+                } catch (IOException e) {
+                    log.error("Failed to read conversation {}", conversationId, e);
+                    return List.of();
+                }
+            }
+        }
     }
 
+    /**
+     * 清空会话
+     * <p>
+     * 在 map 的 compute 中完成删除，期间同一会话的 openLog 会阻塞，不会并发恢复出新目录；
+     * 同时持有会话锁等待进行中的读写结束，并把日志标记为已删除，让已拿到旧日志的线程重新打开
+     */
     @Override
     public void clear(String conversationId) {
-        File file = getConversationFile(conversationId);
-        if (file.exists()) {
-            file.delete();
+        logs.compute(conversationId, (id, conversationLog) -> {
+            if (conversationLog == null) {
+                deleteConversationFiles(id);
+                return null;
+            }
+            synchronized (conversationLog) {
+                conversationLog.removed = true;
+                deleteConversationFiles(id);
+            }
+            return null;
+        });
+    }
+
+    private void deleteConversationFiles(String conversationId) {
+        // 先解除映射再删除文件，避免之后访问已删除文件的映射
+        mappedRegions.invalidateAll(getConversationDir(conversationId).toPath());
+        deleteRecursively(getConversationDir(conversationId).toPath());
+        File legacyFile = getLegacyConversationFile(conversationId);
+        if (legacyFile.exists()) {
+            legacyFile.delete();
+        }
+    }
+
+    // ========== 日志读写 ==========
+
+    /**
+     * 追加记录：先写数据段，再写索引；段写满后滚动到新段
+     */
+    private void appendRecords(ConversationLog conversationLog, List<byte[]> records) throws IOException {
+        ByteBuffer indexBuffer = ByteBuffer.allocate(INDEX_ENTRY_SIZE * records.size());
+        FileChannel data = openAppendChannel(segmentPath(conversationLog, conversationLog.activeSegment));
+        try {
+            for (byte[] record : records) {
+                long recordSize = RECORD_HEADER_SIZE + record.length;
+                if (conversationLog.activeSegmentLength > 0
+                        && conversationLog.activeSegmentLength + recordSize > maxSegmentBytes) {
+                    // 滚动到新段
+                    closeChannel(data);
+                    conversationLog.activeSegment++;
+                    conversationLog.activeSegmentLength = 0;
+                    conversationLog.segmentCount++;
+                    data = openAppendChannel(segmentPath(conversationLog, conversationLog.activeSegment));
+                }
+                ByteBuffer buffer = ByteBuffer.allocate((int) recordSize);
+                buffer.putInt(record.length).put(record).flip();
+                writeFully(data, buffer);
+                indexBuffer.putInt(conversationLog.activeSegment).putLong(conversationLog.activeSegmentLength);
+                conversationLog.activeSegmentLength += recordSize;
+            }
+        } finally {
+            closeChannel(data);
+        }
+        try (FileChannel index = openAppendChannel(conversationLog.indexPath)) {
+            indexBuffer.flip();
+            writeFully(index, indexBuffer);
+            if (fsyncMode == FsyncMode.ON_ADD) {
+                index.force(false);
+            }
+        }
+        conversationLog.recordCount += records.size();
+    }
+
+    /**
+     * 读取序号在 [from, to) 范围内的原始记录
+     *
+     * @return 指向映射区域的只读切片（不含记录头），仅在租约关闭前有效；
+     * 读取过程中重新映射或淘汰的旧映射由租约持有，先读到的切片仍然可用
+     */
+    private List<ByteBuffer> readRecords(MappedRegionCache.Lease lease, ConversationLog conversationLog,
+                                         long from, long to) throws IOException {
+        List<ByteBuffer> records = new ArrayList<>((int) Math.max(0, to - from));
+        if (from >= to) {
+            return records;
+        }
+        ByteBuffer index = lease.map(conversationLog.indexPath, to * INDEX_ENTRY_SIZE);
+        for (long i = from; i < to; i++) {
+            int position = (int) (i * INDEX_ENTRY_SIZE);
+            int segment = index.getInt(position);
+            long offset = index.getLong(position + Integer.BYTES);
+            records.add(readRecord(lease, segmentPath(conversationLog, segment), offset));
+        }
+        return records;
+    }
+
+    private ByteBuffer readRecord(MappedRegionCache.Lease lease, Path segment, long offset) throws IOException {
+        ByteBuffer region = lease.map(segment, offset + RECORD_HEADER_SIZE);
+        int length = region.getInt((int) offset);
+        long end = offset + RECORD_HEADER_SIZE + length;
+        if (end > region.capacity()) {
+            // 记录写在映射之后，按当前文件大小重新映射
+            region = lease.map(segment, end);
+        }
+        return region.slice((int) offset + RECORD_HEADER_SIZE, length).asReadOnlyBuffer();
+    }
+
+    /**
+     * 压缩：把（保留范围内的）全部记录复制到一个新段并原子替换索引，再删除旧段
+     * <p>
+     * 新段和新索引先写入临时文件并刷盘；索引替换是提交点，之后才把新段改为正式文件名，
+     * 崩溃恢复时根据索引引用的段号决定补全还是丢弃临时文件。
+     */
+    private void compact(ConversationLog conversationLog) throws IOException {
+        long from = maxRetainedMessages > 0 ? Math.max(0, conversationLog.recordCount - maxRetainedMessages) : 0;
+        int target = conversationLog.activeSegment + 1;
+        Path segmentTmp = tmpPath(segmentPath(conversationLog, target));
+        Path indexTmp = tmpPath(conversationLog.indexPath);
+
+        int retained;
+        ByteBuffer indexBuffer;
+        long length = 0;
+        try (MappedRegionCache.Lease lease = mappedRegions.lease();
+             FileChannel data = FileChannel.open(segmentTmp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            List<ByteBuffer> records = readRecords(lease, conversationLog, from, conversationLog.recordCount);
+            retained = records.size();
+            indexBuffer = ByteBuffer.allocate(INDEX_ENTRY_SIZE * retained);
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            for (ByteBuffer record : records) {
+                int recordLength = record.remaining();
+                header.clear();
+                header.putInt(recordLength).flip();
+                writeFully(data, header);
+                writeFully(data, record.duplicate());
+                indexBuffer.putInt(target).putLong(length);
+                length += RECORD_HEADER_SIZE + recordLength;
+            }
+            data.force(false);
+        }
+        try (FileChannel index = FileChannel.open(indexTmp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            indexBuffer.flip();
+            writeFully(index, indexBuffer);
+            index.force(false);
         }
+
+        // 旧索引和旧段即将被替换或删除，先解除映射（读取用的租约已关闭）
+        mappedRegions.invalidateAll(conversationLog.dir);
+        // 提交点：替换索引，然后启用新段
+        Files.move(indexTmp, conversationLog.indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(segmentTmp, segmentPath(conversationLog, target), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        for (int segment : listSegments(conversationLog.dir)) {
+            if (segment < target) {
+                Files.deleteIfExists(segmentPath(conversationLog, segment));
+            }
+        }
+        log.info("Compacted conversation log {}: {} segments -> 1, {} records retained",
+                conversationLog.dir.getFileName(), conversationLog.segmentCount, retained);
+        conversationLog.activeSegment = target;
+        conversationLog.activeSegmentLength = length;
+        conversationLog.segmentCount = 1;
+        conversationLog.recordCount = retained;
     }
 
-    private List<Message> getOrCreateConversation(String conversationId) {
-        File file = getConversationFile(conversationId);
-        List<Message> messages = new ArrayList<>();
-        if (file.exists()) {
-            try (Input input = new Input(new FileInputStream(file))) {
-                messages = kryo.readObject(input, ArrayList.class);
+    // ========== 打开与恢复 ==========
+
+    private ConversationLog openLog(String conversationId) {
+        ConversationLog conversationLog = logs.computeIfAbsent(conversationId, id -> {
+            try {
+                return recover(id);
             } catch (IOException e) {
-                e.printStackTrace();
+                throw new UncheckedIOException("Failed to open conversation log " + id, e);
             }
+        });
+        conversationLog.lastAccess = System.currentTimeMillis();
+        if (logs.size() > maxOpenLogs) {
+            closeIdleLogs();
         }
-        return messages;
+        return conversationLog;
     }
 
-    private void saveConversation(String conversationId, List<Message> messages) {
-        File file = getConversationFile(conversationId);
-        try (Output output = new Output(new FileOutputStream(file))) {
-            kryo.writeObject(output, messages);
+    /**
+     * 关闭最久未访问的会话日志，直到数量降到上限的 3/4，避免每次打开都触发
+     * <p>
+     * 与 clear 一样在 compute 中持有会话锁完成，标记为已删除后，已拿到旧日志的线程会重新打开；文件保留在磁盘上
+     */
+    private synchronized void closeIdleLogs() {
+        int target = maxOpenLogs * 3 / 4;
+        if (logs.size() <= target) {
+            return;
+        }
+        List<Map.Entry<String, ConversationLog>> entries = new ArrayList<>(logs.entrySet());
+        entries.sort(Comparator.comparingLong(entry -> entry.getValue().lastAccess));
+        for (int i = 0; i < entries.size() && logs.size() > target; i++) {
+            String conversationId = entries.get(i).getKey();
+            logs.computeIfPresent(conversationId, (id, conversationLog) -> {
+                synchronized (conversationLog) {
+                    conversationLog.removed = true;
+                    mappedRegions.invalidateAll(conversationLog.dir);
+                }
+                return null;
+            });
+        }
+    }
+
+    /**
+     * 打开会话日志：完成中断的压缩、丢弃指向不完整记录的索引项、为已写入但未建索引的完整记录补建索引、
+     * 截断末尾的不完整记录，最后迁移旧版 .kryo 文件
+     */
+    private ConversationLog recover(String conversationId) throws IOException {
+        Path dir = getConversationDir(conversationId).toPath();
+        Files.createDirectories(dir);
+        // 恢复过程可能截断文件，不能保留旧映射
+        mappedRegions.invalidateAll(dir);
+        ConversationLog conversationLog = new ConversationLog(dir);
+        Files.deleteIfExists(tmpPath(conversationLog.indexPath));
+
+        // 读取索引，丢弃不完整的索引项
+        long indexSize = Files.exists(conversationLog.indexPath) ? Files.size(conversationLog.indexPath) : 0;
+        long entries = indexSize / INDEX_ENTRY_SIZE;
+        ByteBuffer index = ByteBuffer.allocate((int) (entries * INDEX_ENTRY_SIZE));
+        if (entries > 0) {
+            try (FileChannel indexChannel = FileChannel.open(conversationLog.indexPath, StandardOpenOption.READ)) {
+                readFully(indexChannel, index, 0);
+            }
+        }
+        index.flip();
+        int firstSegment = entries > 0 ? index.getInt(0) : -1;
+
+        // 索引已提交但新段尚未改名的压缩：补全改名；其余临时段直接丢弃
+        for (int segment : listTmpSegments(dir)) {
+            Path tmp = tmpPath(segmentPath(conversationLog, segment));
+            if (segment == firstSegment) {
+                Files.move(tmp, segmentPath(conversationLog, segment), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } else {
+                Files.deleteIfExists(tmp);
+            }
+        }
+        // 删除压缩后残留的旧段
+        if (firstSegment > 0) {
+            for (int segment : listSegments(dir)) {
+                if (segment < firstSegment) {
+                    Files.deleteIfExists(segmentPath(conversationLog, segment));
+                }
+            }
+        }
+
+        // 从后往前丢弃指向不完整记录的索引项
+        long validEntries = entries;
+        long scanSegment = -1;
+        long scanOffset = 0;
+        while (validEntries > 0) {
+            int position = (int) ((validEntries - 1) * INDEX_ENTRY_SIZE);
+            int segment = index.getInt(position);
+            long offset = index.getLong(position + Integer.BYTES);
+            long end = recordEnd(segmentPath(conversationLog, segment), offset);
+            if (end >= 0) {
+                scanSegment = segment;
+                scanOffset = end;
+                break;
+            }
+            validEntries--;
+        }
+        if (validEntries < entries) {
+            log.warn("Discarding {} dangling index entries for conversation {}", entries - validEntries, conversationId);
+        }
+        try (FileChannel indexChannel = FileChannel.open(conversationLog.indexPath,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            indexChannel.truncate(validEntries * INDEX_ENTRY_SIZE);
+        }
+
+        // 扫描最后一个已建索引记录之后的内容，为完整记录补建索引，截断不完整的尾部
+        List<Integer> segments = listSegments(dir);
+        List<long[]> recovered = new ArrayList<>();
+        for (int segment : segments) {
+            if (segment < scanSegment) {
+                continue;
+            }
+            Path path = segmentPath(conversationLog, segment);
+            long offset = segment == scanSegment ? scanOffset : 0;
+            long end;
+            while ((end = recordEnd(path, offset)) >= 0) {
+                recovered.add(new long[]{segment, offset});
+                offset = end;
+            }
+            if (offset < Files.size(path)) {
+                log.warn("Truncating incomplete record at {}:{}", path, offset);
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                    channel.truncate(offset);
+                }
+            }
+        }
+        if (!recovered.isEmpty()) {
+            ByteBuffer missing = ByteBuffer.allocate(INDEX_ENTRY_SIZE * recovered.size());
+            for (long[] entry : recovered) {
+                missing.putInt((int) entry[0]).putLong(entry[1]);
+            }
+            missing.flip();
+            try (FileChannel indexChannel = openAppendChannel(conversationLog.indexPath)) {
+                writeFully(indexChannel, missing);
+                indexChannel.force(false);
+            }
+            log.warn("Rebuilt {} index entries for conversation {}", recovered.size(), conversationId);
+        }
+
+        segments = listSegments(dir);
+        conversationLog.recordCount = validEntries + recovered.size();
+        conversationLog.activeSegment = segments.isEmpty() ? 1 : segments.get(segments.size() - 1);
+        conversationLog.activeSegmentLength = segments.isEmpty() ? 0 : Files.size(segmentPath(conversationLog, conversationLog.activeSegment));
+        conversationLog.segmentCount = Math.max(1, segments.size());
+
+        migrateLegacyConversation(conversationId, conversationLog);
+        return conversationLog;
+    }
+
+    /**
+     * 校验 offset 处是否为完整记录
+     *
+     * @return 完整时返回记录结束位置，否则返回 -1
+     */
+    private long recordEnd(Path segment, long offset) throws IOException {
+        if (!Files.exists(segment)) {
+            return -1;
+        }
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (offset + RECORD_HEADER_SIZE > size) {
+                return -1;
+            }
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            readFully(channel, header, offset);
+            int length = header.getInt(0);
+            long end = offset + RECORD_HEADER_SIZE + length;
+            return length >= 0 && end <= size ? end : -1;
+        }
+    }
+
+    /**
+     * 把旧版整体序列化的 .kryo 文件迁移为追加日志
+     */
+    private void migrateLegacyConversation(String conversationId, ConversationLog conversationLog) throws IOException {
+        File legacyFile = getLegacyConversationFile(conversationId);
+        if (!legacyFile.exists()) {
+            return;
+        }
+        List<Message> messages;
+        try (Input input = new Input(new FileInputStream(legacyFile))) {
+            messages = KryoMessageSerializer.deserializeList(input);
+        }
+        List<byte[]> records = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            records.add(serialize(message));
+        }
+        if (!records.isEmpty()) {
+            appendRecords(conversationLog, records);
+        }
+        Files.delete(legacyFile.toPath());
+        log.info("Migrated {} messages of conversation {} to append-only log", records.size(), conversationId);
+    }
+
+    // ========== 工具方法 ==========
+
+    private boolean conversationExists(String conversationId) {
+        return logs.containsKey(conversationId)
+                || getConversationDir(conversationId).exists()
+                || getLegacyConversationFile(conversationId).exists();
+    }
+
+    private byte[] serialize(Message message) {
+        return KryoMessageSerializer.serialize(message);
+    }
+
+    private Message deserialize(ByteBuffer record) {
+        try (Input input = new ByteBufferInput(record)) {
+            return KryoMessageSerializer.deserialize(input);
+        }
+    }
+
+    private FileChannel openAppendChannel(Path path) throws IOException {
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * 关闭写入通道，ON_ADD 模式下先刷盘
+     */
+    private void closeChannel(FileChannel channel) throws IOException {
+        if (fsyncMode == FsyncMode.ON_ADD && channel.isOpen()) {
+            channel.force(false);
+        }
+        channel.close();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file at " + position);
+            }
+            position += read;
+        }
+    }
+
+    private static List<Integer> listSegments(Path dir) throws IOException {
+        return listSegmentNumbers(dir, SEGMENT_SUFFIX);
+    }
+
+    private static List<Integer> listTmpSegments(Path dir) throws IOException {
+        return listSegmentNumbers(dir, SEGMENT_SUFFIX + TMP_SUFFIX);
+    }
+
+    private static List<Integer> listSegmentNumbers(Path dir, String suffix) throws IOException {
+        List<Integer> segments = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.endsWith(suffix))
+                    .map(name -> SEGMENT_PATTERN.matcher(name.substring(0, name.length() - suffix.length()) + SEGMENT_SUFFIX))
+                    .filter(Matcher::matches)
+                    .forEach(matcher -> segments.add(Integer.parseInt(matcher.group(1))));
+        }
+        segments.sort(Comparator.naturalOrder());
+        return segments;
+    }
+
+    private static Path segmentPath(ConversationLog conversationLog, int segment) {
+        return conversationLog.dir.resolve(String.format("%s%06d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+    }
+
+    private static Path tmpPath(Path path) {
+        return path.resolveSibling(path.getFileName() + TMP_SUFFIX);
+    }
+
+    private static void deleteRecursively(Path dir) {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
         } catch (IOException e) {
-            e.printStackTrace();
+            log.error("Failed to delete {}", dir, e);
         }
     }
 
-    private File getConversationFile(String conversationId) {
+    private File getConversationDir(String conversationId) {
+        return new File(BASE_DIR, conversationId);
+    }
+
+    private File getLegacyConversationFile(String conversationId) {
         return new File(BASE_DIR, conversationId + ".kryo");
     }
+
+    /**
+     * 单个会话的日志状态，读写都在该对象上加锁
+     */
+    private static class ConversationLog {
+
+        private final Path dir;
+
+        private final Path indexPath;
+
+        // 当前写入的段号
+        private int activeSegment = 1;
+
+        // 当前写入段的长度
+        private long activeSegmentLength;
+
+        // 段数量
+        private int segmentCount = 1;
+
+        // 记录总数（等于索引项数量）
+        private long recordCount;
+
+        // 已被 clear 删除或因长时间未访问被关闭，持有旧引用的线程需要重新打开
+        private boolean removed;
+
+        // 最近一次打开的时间，用于关闭最久未访问的日志
+        private volatile long lastAccess;
+
+        ConversationLog(Path dir) {
+            this.dir = dir;
+            this.indexPath = dir.resolve(INDEX_FILE);
+        }
+    }
 }
@@ -0,0 +1,104 @@
+package com.aiagenttest.chatmemory;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.util.Pool;
+import org.objenesis.strategy.StdInstantiatorStrategy;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.MessageType;
+import org.springframework.ai.chat.messages.SystemMessage;
+import org.springframework.ai.chat.messages.ToolResponseMessage;
+import org.springframework.ai.chat.messages.UserMessage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * 线程安全的消息序列化器
+ * <p>
+ * Kryo 实例本身不是线程安全的，这里通过对象池为每次序列化借出独立的实例。
+ * 常用的 Spring AI 消息类型使用固定 ID 预先注册，序列化结果中只写入 ID 而不是完整类名；
+ * 仍允许未注册的类型（按类名写入），因此旧数据可以继续读取。
+ * <p>
+ * 注册 ID 一经写入文件就不能修改，新增类型只能追加新的 ID。
+ */
+final class KryoMessageSerializer {
+
+    private static final Pool<Kryo> KRYO_POOL = new Pool<>(true, false, 32) {
+        @Override
+        protected Kryo create() {
+            Kryo kryo = new Kryo();
+            kryo.setRegistrationRequired(false);
+            // 设置实例化策略
+            kryo.setInstantiatorStrategy(new StdInstantiatorStrategy());
+            kryo.register(ArrayList.class, 100);
+            kryo.register(HashMap.class, 101);
+            kryo.register(LinkedHashMap.class, 102);
+            kryo.register(MessageType.class, 103);
+            kryo.register(UserMessage.class, 110);
+            kryo.register(AssistantMessage.class, 111);
+            kryo.register(AssistantMessage.ToolCall.class, 112);
+            kryo.register(SystemMessage.class, 113);
+            kryo.register(ToolResponseMessage.class, 114);
+            kryo.register(ToolResponseMessage.ToolResponse.class, 115);
+            return kryo;
+        }
+    };
+
+    private KryoMessageSerializer() {
+    }
+
+    /**
+     * 序列化单条消息
+     */
+    static byte[] serialize(Message message) {
+        Kryo kryo = KRYO_POOL.obtain();
+        try (Output output = new Output(256, -1)) {
+            kryo.writeClassAndObject(output, message);
+            return output.toBytes();
+        } finally {
+            KRYO_POOL.free(kryo);
+        }
+    }
+
+    /**
+     * 反序列化单条消息
+     */
+    static Message deserialize(Input input) {
+        Kryo kryo = KRYO_POOL.obtain();
+        try {
+            return (Message) kryo.readClassAndObject(input);
+        } finally {
+            KRYO_POOL.free(kryo);
+        }
+    }
+
+    /**
+     * 按旧版格式整体写出消息列表（用于测试旧文件迁移）
+     */
+    static void serializeList(Output output, List<Message> messages) {
+        Kryo kryo = KRYO_POOL.obtain();
+        try {
+            kryo.writeObject(output, new ArrayList<>(messages));
+        } finally {
+            KRYO_POOL.free(kryo);
+        }
+    }
+
+    /**
+     * 读取旧版整体序列化的消息列表
+     */
+    @SuppressWarnings("unchecked")
+    static List<Message> deserializeList(Input input) {
+        Kryo kryo = KRYO_POOL.obtain();
+        try {
+            return kryo.readObject(input, ArrayList.class);
+        } finally {
+            KRYO_POOL.free(kryo);
+        }
+    }
+}
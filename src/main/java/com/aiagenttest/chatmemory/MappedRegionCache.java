@@ -0,0 +1,209 @@
+package com.aiagenttest.chatmemory;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 文件内存映射区域缓存
+ * <p>
+ * 按文件缓存只读的 MappedByteBuffer，最近访问的在后，超过数量或总字节数上限时淘汰最久未访问的映射。
+ * 文件变长后（追加写入）若已有映射不足以覆盖要读取的范围，会按当前文件大小重新映射。
+ * <p>
+ * 读取通过 {@link Lease} 进行：租约期间用到的映射都持有引用计数，租约关闭时释放。
+ * 映射被淘汰、重新映射或主动失效（{@link #invalidateAll}）时先移出缓存，没有租约引用时立即解除映射，
+ * 否则等最后一个租约关闭时再解除，因此解除映射后不会再有切片被读取，映射总字节数也真正受 maxBytes 约束
+ * （仍被租约引用、尚未解除的映射不计入，它们的数量受并发读取数限制）。
+ */
+@Slf4j
+final class MappedRegionCache {
+
+    private static final Object UNSAFE;
+
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (Exception e) {
+            log.warn("Explicit unmapping is unavailable, mapped regions will be released by GC: {}", e.getMessage());
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private final int maxRegions;
+
+    private final long maxBytes;
+
+    // 文件路径 -> 映射区域（按访问顺序排列，用于 LRU 淘汰）
+    private final LinkedHashMap<Path, Region> regions = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long mappedBytes;
+
+    MappedRegionCache(int maxRegions, long maxBytes) {
+        this.maxRegions = maxRegions;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * 开始一次读取，租约关闭前通过它拿到的映射都不会被解除
+     */
+    Lease lease() {
+        return new Lease();
+    }
+
+    /**
+     * 解除目录下所有文件的映射（文件即将被删除、截断或替换时调用）；仍被租约引用的映射在租约关闭时解除
+     */
+    synchronized void invalidateAll(Path dir) {
+        Iterator<Map.Entry<Path, Region>> iterator = regions.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Path, Region> entry = iterator.next();
+            if (entry.getKey().startsWith(dir)) {
+                iterator.remove();
+                retire(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * 获取至少覆盖 [0, requiredLength) 的只读映射，并增加引用计数
+     */
+    private synchronized Region acquire(Path path, long requiredLength) throws IOException {
+        Region region = regions.get(path);
+        if (region != null && region.buffer.capacity() >= requiredLength) {
+            region.refs++;
+            return region;
+        }
+        if (region != null) {
+            // 文件已追加内容，旧映射不够用，重新映射；旧映射在引用它的租约关闭后解除
+            regions.remove(path);
+            retire(region);
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < requiredLength) {
+                throw new IOException("Unexpected end of file " + path + ": size " + size + ", required " + requiredLength);
+            }
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File too large to map: " + path);
+            }
+            region = new Region(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        }
+        region.refs = 1;
+        regions.put(path, region);
+        mappedBytes += region.buffer.capacity();
+        evict();
+        return region;
+    }
+
+    private synchronized void release(Region region) {
+        region.refs--;
+        if (region.refs == 0 && region.retired) {
+            unmap(region.buffer);
+        }
+    }
+
+    /**
+     * 已移出缓存的映射：没有引用时立即解除，否则由最后一个引用释放时解除
+     */
+    private void retire(Region region) {
+        mappedBytes -= region.buffer.capacity();
+        region.retired = true;
+        if (region.refs == 0) {
+            unmap(region.buffer);
+        }
+    }
+
+    /**
+     * 超过上限时淘汰最久未访问的映射，至少保留最新的一个
+     */
+    private void evict() {
+        Iterator<Map.Entry<Path, Region>> iterator = regions.entrySet().iterator();
+        while ((regions.size() > maxRegions || mappedBytes > maxBytes) && regions.size() > 1) {
+            Region eldest = iterator.next().getValue();
+            iterator.remove();
+            retire(eldest);
+        }
+    }
+
+    private static void unmap(MappedByteBuffer buffer) {
+        if (INVOKE_CLEANER == null || buffer.capacity() == 0) {
+            return;
+        }
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        } catch (Exception e) {
+            log.warn("Failed to unmap buffer: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 单次读取持有的映射，只能由一个线程使用；返回的缓冲区只能使用绝对位置读取或 slice/duplicate 后读取，
+     * 读出的切片在租约关闭后不能再访问
+     */
+    final class Lease implements AutoCloseable {
+
+        // 本次读取已持有的映射，同一文件重复读取时不再访问缓存
+        private final Map<Path, Region> held = new HashMap<>();
+
+        // 全部引用（包括同一文件重新映射前的旧映射）
+        private final List<Region> acquired = new ArrayList<>();
+
+        ByteBuffer map(Path path, long requiredLength) throws IOException {
+            Region region = held.get(path);
+            if (region == null || region.buffer.capacity() < requiredLength) {
+                region = acquire(path, requiredLength);
+                held.put(path, region);
+                acquired.add(region);
+            }
+            return region.buffer;
+        }
+
+        @Override
+        public void close() {
+            for (Region region : acquired) {
+                release(region);
+            }
+            acquired.clear();
+            held.clear();
+        }
+    }
+
+    /**
+     * 映射及其引用计数，均在缓存的锁内修改
+     */
+    private static final class Region {
+
+        private final MappedByteBuffer buffer;
+
+        private int refs;
+
+        // 已移出缓存，引用计数归零时解除映射
+        private boolean retired;
+
+        Region(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+}
@@ -1,15 +1,23 @@
 package com.aiagenttest.controller;
 
 import cn.hutool.core.util.IdUtil;
+import com.aiagenttest.agent.AgentExecutionService;
 import com.aiagenttest.agent.AiManus;
+import com.aiagenttest.agent.AiManusFactory;
+import com.aiagenttest.chatmemory.ChatHistoryCache;
+import com.aiagenttest.chatmemory.ChatMessageJournal;
+import com.aiagenttest.chatmemory.DatabaseChatMemory;
+import com.aiagenttest.rag.CachingDocumentRetriever;
+import com.aiagenttest.rag.ResilientDocumentRetriever;
+import com.aiagenttest.rag.SemanticAnswerCache;
 import jakarta.annotation.Resource;
-import org.springframework.ai.chat.client.advisor.api.Advisor;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 /**
  * 增强版Agent控制器，展示集成RAG、数据库存储和打字机效果的使用
  */
@@ -18,21 +26,36 @@ import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 public class EnhancedAgentController {
 
     @Resource
-    private AiManus aiManus;
+    private AiManusFactory aiManusFactory;
+
+    @Resource
+    private AgentExecutionService agentExecutionService;
+
+    @Resource
+    private ChatHistoryCache chatHistoryCache;
+
+    @Resource
+    private ChatMessageJournal chatMessageJournal;
+
+    @Resource
+    private DatabaseChatMemory databaseChatMemory;
+
+    @Resource
+    private CachingDocumentRetriever loveAppDocumentRetriever;
 
-    @Autowired
-    @Qualifier("loveAppRagCloudAdvisor")
-    private Advisor ragAdvisor;
+    @Resource
+    private SemanticAnswerCache semanticAnswerCache;
+
+    @Resource
+    private ResilientDocumentRetriever loveAppCloudDocumentRetriever;
 
     /**
-     * 配置增强版Agent
+     * 配置增强版Agent（每个会话独立的实例，RAG云知识库和增强系统提示词由工厂注入）
      */
-    private AiManus configureEnhancedAgent() {
-        // 设置RAG云知识库
-        aiManus.setLoveAppRagCloudAdvisor(ragAdvisor);
-        
+    private AiManus configureEnhancedAgent(String conversationId) {
+        AiManus aiManus = aiManusFactory.obtain(conversationId);
+
         // 配置增强功能
-        aiManus.setEnhancedSystemPrompt();
         aiManus.setEnableTypewriter(true);
         aiManus.setTypewriterDelay(30); // 30毫秒延迟，可调整
         aiManus.setMaxSteps(3); // 限制最大步骤数为3，避免循环调用
@@ -51,7 +74,7 @@ public class EnhancedAgentController {
             conversationId = IdUtil.simpleUUID();
         }
         
-        AiManus agent = configureEnhancedAgent();
+        AiManus agent = configureEnhancedAgent(conversationId);
         
         try {
             String result = agent.run(message);
@@ -62,16 +85,20 @@ public class EnhancedAgentController {
     }
 
     /**
-     * 流式对话接口（带打字机效果）
+     * 流式对话接口（带打字机效果，typewriter=false 时为即时模式；stream=true 时模型增量输出实时推送）
      */
     @GetMapping(value = "/chat-stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
     public SseEmitter chatStream(@RequestParam String message,
-                                @RequestParam(required = false) String conversationId) {
+                                @RequestParam(required = false) String conversationId,
+                                @RequestParam(defaultValue = "true") boolean typewriter,
+                                @RequestParam(defaultValue = "true") boolean stream) {
         if (conversationId == null) {
             conversationId = IdUtil.simpleUUID();
         }
         
-        AiManus agent = configureEnhancedAgent();
+        AiManus agent = configureEnhancedAgent(conversationId);
+        agent.setEnableTypewriter(typewriter);
+        agent.setEnableModelStreaming(stream);
         
         return agent.runStreamWithTypewriter(message, conversationId);
     }
@@ -85,6 +112,22 @@ public class EnhancedAgentController {
         return String.format("打字机效果配置已更新: 启用=%s, 延迟=%dms", enable, delay);
     }
 
+    /**
+     * 运行指标（执行器排队/运行数量、会话数量、历史缓存命中、消息写入延迟）
+     */
+    @GetMapping("/metrics")
+    public Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>(agentExecutionService.getMetrics());
+        metrics.put("sessions", aiManusFactory.getSessionCount());
+        metrics.put("historyCache", chatHistoryCache.getMetrics());
+        metrics.put("messageJournal", chatMessageJournal.getMetrics());
+        metrics.put("chatMemoryCache", databaseChatMemory.getCacheMetrics());
+        metrics.put("ragRetrievalCache", loveAppDocumentRetriever.getMetrics());
+        metrics.put("ragAnswerCache", semanticAnswerCache.getMetrics());
+        metrics.put("ragCloudRetriever", loveAppCloudDocumentRetriever.getMetrics());
+        return metrics;
+    }
+
     /**
      * 健康检查
      */
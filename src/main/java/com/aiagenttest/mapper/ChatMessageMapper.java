@@ -1,8 +1,23 @@
 package com.aiagenttest.mapper;
 import com.aiagenttest.model.ChatMessage;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Delete;
 import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.annotations.Select;
 
 @Mapper
 public interface ChatMessageMapper extends BaseMapper<ChatMessage> {
+
+    /**
+     * 会话已用过的最大序号，包含逻辑删除的记录（它们仍占用唯一键 (conversation_id, seq)），没有记录时返回 0
+     */
+    @Select("select coalesce(max(seq), 0) from chat_message where conversation_id = #{conversationId}")
+    long selectMaxSeqIncludingDeleted(@Param("conversationId") String conversationId);
+
+    /**
+     * 物理删除会话摘要（seq 为 0 的记录）；逻辑删除会让旧摘要继续占用 (conversation_id, 0)，之后无法再写入新摘要
+     */
+    @Delete("delete from chat_message where conversation_id = #{conversationId} and seq = 0")
+    int deleteSummary(@Param("conversationId") String conversationId);
 }
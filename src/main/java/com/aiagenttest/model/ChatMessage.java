@@ -33,6 +33,12 @@ public class ChatMessage implements Serializable {
     @TableField("conversation_id")
     private String conversationId;
 
+    /**
+     * 会话内序号（单调递增，用于排序和 keyset 分页）
+     */
+    @TableField("seq")
+    private Long seq;
+
     /**
      * 消息类型
      */
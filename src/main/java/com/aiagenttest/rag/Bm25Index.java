@@ -0,0 +1,173 @@
+package com.aiagenttest.rag;
+
+import org.springframework.ai.document.Document;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 进程内 BM25 倒排索引
+ * <p>
+ * 与向量数据库收录相同的分片，使用 {@link ChineseTokenizer} 分词，弥补向量检索对精确词（药名、热线号码、年龄段等）不敏感的问题。
+ * 支持按ID增量写入和删除，读写锁保护，查询之间互不阻塞。
+ */
+@Component
+class Bm25Index {
+
+    // 词频饱和参数
+    private static final double K1 = 1.2;
+
+    // 文档长度归一化参数
+    private static final double B = 0.75;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // 文档ID -> 已索引的文档
+    private final Map<String, IndexedDocument> documents = new HashMap<>();
+
+    // 词 -> 文档ID -> 词频
+    private final Map<String, Map<String, Integer>> postings = new HashMap<>();
+
+    private long totalLength;
+
+    /**
+     * 写入文档，ID 已存在时替换
+     */
+    public void add(Collection<Document> documents) {
+        lock.writeLock().lock();
+        try {
+            for (Document document : documents) {
+                removeInternal(document.getId());
+                Map<String, Integer> termFrequencies = new HashMap<>();
+                List<String> tokens = ChineseTokenizer.tokenize(document.getText());
+                for (String token : tokens) {
+                    termFrequencies.merge(token, 1, Integer::sum);
+                }
+                termFrequencies.forEach((term, frequency) ->
+                        postings.computeIfAbsent(term, k -> new HashMap<>()).put(document.getId(), frequency));
+                this.documents.put(document.getId(), new IndexedDocument(document, termFrequencies, tokens.size()));
+                totalLength += tokens.size();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void delete(Collection<String> ids) {
+        lock.writeLock().lock();
+        try {
+            ids.forEach(this::removeInternal);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 清空后写入全部文档
+     */
+    public void replaceAll(Collection<Document> documents) {
+        lock.writeLock().lock();
+        try {
+            this.documents.clear();
+            postings.clear();
+            totalLength = 0;
+            add(documents);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return documents.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 查询得分最高的 topK 个文档，没有任何词命中的文档不会返回
+     * <p>
+     * 归一化得分为得分除以查询中各词 idf 之和（未收录的词按文档频率 0 计算），约等于文档覆盖的查询信息量比例：
+     * 只命中「怎么」「恋爱」这类常见词的文档归一化得分很低，可以和相似度一起判断本地结果是否可信。
+     *
+     * @return 按得分降序排列的结果
+     */
+    public List<ScoredDocument> search(String query, int topK) {
+        List<String> terms = new ArrayList<>(new LinkedHashSet<>(ChineseTokenizer.tokenize(query)));
+        lock.readLock().lock();
+        try {
+            if (terms.isEmpty() || documents.isEmpty()) {
+                return List.of();
+            }
+            int count = documents.size();
+            double averageLength = Math.max(1.0, (double) totalLength / count);
+            Map<String, Double> scores = new HashMap<>();
+            double maxScore = 0;
+            for (String term : terms) {
+                Map<String, Integer> posting = postings.get(term);
+                int documentFrequency = posting == null ? 0 : posting.size();
+                double idf = Math.log(1 + (count - documentFrequency + 0.5) / (documentFrequency + 0.5));
+                maxScore += idf;
+                if (posting == null) {
+                    continue;
+                }
+                posting.forEach((id, frequency) -> {
+                    double normalizedLength = 1 - B + B * documents.get(id).length() / averageLength;
+                    double score = idf * frequency * (K1 + 1) / (frequency + K1 * normalizedLength);
+                    scores.merge(id, score, Double::sum);
+                });
+            }
+            double normalizer = maxScore;
+            PriorityQueue<ScoredDocument> top = new PriorityQueue<>(Comparator.comparingDouble(ScoredDocument::score));
+            scores.forEach((id, score) -> {
+                if (top.size() < topK) {
+                    top.add(new ScoredDocument(documents.get(id).document(), score, Math.min(1, score / normalizer)));
+                } else if (score > top.peek().score()) {
+                    top.poll();
+                    top.add(new ScoredDocument(documents.get(id).document(), score, Math.min(1, score / normalizer)));
+                }
+            });
+            List<ScoredDocument> results = new ArrayList<>(top);
+            results.sort(Comparator.comparingDouble(ScoredDocument::score).reversed());
+            return results;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void removeInternal(String id) {
+        IndexedDocument existing = documents.remove(id);
+        if (existing == null) {
+            return;
+        }
+        totalLength -= existing.length();
+        for (String term : existing.termFrequencies().keySet()) {
+            Map<String, Integer> posting = postings.get(term);
+            posting.remove(id);
+            if (posting.isEmpty()) {
+                postings.remove(term);
+            }
+        }
+    }
+
+    private record IndexedDocument(Document document, Map<String, Integer> termFrequencies, int length) {
+    }
+
+    /**
+     * 文档及其 BM25 得分
+     *
+     * @param normalizedScore 归一化到 [0, 1] 的得分
+     */
+    record ScoredDocument(Document document, double score, double normalizedScore) {
+    }
+}
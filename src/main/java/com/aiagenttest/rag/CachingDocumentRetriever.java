@@ -0,0 +1,206 @@
+package com.aiagenttest.rag;
+
+import cn.hutool.core.util.StrUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.rag.Query;
+import org.springframework.ai.rag.retrieval.search.DocumentRetriever;
+
+import java.text.Normalizer;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 带两级缓存的检索器
+ * <p>
+ * 以规范化后的查询文本（NFKC、小写、合并空白、去掉末尾标点）为键：
+ * <ul>
+ *     <li>轮次缓存：TTL 较短（默认 2 分钟，覆盖一轮 ReAct 的多个步骤），代理每一步重复的检索只请求一次知识库；</li>
+ *     <li>全局缓存：同一问题被检索达到 popularThreshold 次（包括命中缓存的检索）后提升到全局缓存，TTL 较长，热门问题不再请求知识库。</li>
+ * </ul>
+ * 同一查询的并发请求合并为一次。本地知识库文件变化时清空缓存；云端知识库更新后，缓存结果最多在 TTL 内保持旧内容。
+ */
+@Slf4j
+public class CachingDocumentRetriever implements DocumentRetriever {
+
+    // 查询末尾可以忽略的标点
+    private static final String TRAILING_PUNCTUATION = "?？。.!！~～,，;；:： ";
+
+    private final DocumentRetriever delegate;
+
+    private final boolean enabled;
+
+    private final long turnTtlMillis;
+
+    private final long globalTtlMillis;
+
+    // 提升到全局缓存所需的检索次数
+    private final int popularThreshold;
+
+    // 查询键 -> 检索结果（按访问顺序排列，用于 LRU 淘汰）
+    private final LinkedHashMap<String, CachedResult> turnCache;
+
+    private final LinkedHashMap<String, CachedResult> globalCache;
+
+    // 查询键 -> 检索次数（命中缓存、合并的请求都计入）
+    private final LinkedHashMap<String, Integer> lookupCounts;
+
+    // 正在请求知识库的查询
+    private final Map<String, CompletableFuture<List<Document>>> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong turnHits = new AtomicLong();
+    private final AtomicLong globalHits = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong promotions = new AtomicLong();
+
+    public CachingDocumentRetriever(DocumentRetriever delegate, boolean enabled,
+                                    long turnTtlMillis, int turnMaxEntries,
+                                    long globalTtlMillis, int globalMaxEntries, int popularThreshold) {
+        this.delegate = delegate;
+        this.enabled = enabled;
+        this.turnTtlMillis = turnTtlMillis;
+        this.globalTtlMillis = globalTtlMillis;
+        this.popularThreshold = Math.max(1, popularThreshold);
+        this.turnCache = lruMap(turnMaxEntries);
+        this.globalCache = lruMap(globalMaxEntries);
+        this.lookupCounts = lruMap(Math.max(globalMaxEntries, turnMaxEntries) * 4);
+    }
+
+    @Override
+    public List<Document> retrieve(Query query) {
+        String key = normalize(query.text());
+        if (!enabled || key.isEmpty()) {
+            return delegate.retrieve(query);
+        }
+        List<Document> cached = lookup(key, true);
+        if (cached != null) {
+            return cached;
+        }
+        CompletableFuture<List<Document>> created = new CompletableFuture<>();
+        CompletableFuture<List<Document>> existing = inFlight.putIfAbsent(key, created);
+        if (existing != null) {
+            coalesced.incrementAndGet();
+            try {
+                return existing.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException runtimeException ? runtimeException : e;
+            }
+        }
+        try {
+            // 上一个请求可能刚刚写入缓存
+            cached = lookup(key, false);
+            if (cached == null) {
+                misses.incrementAndGet();
+                cached = List.copyOf(delegate.retrieve(query));
+                // 空结果和降级结果不缓存，云端恢复后重新检索
+                if (!cached.isEmpty() && !ResilientDocumentRetriever.isDegraded(cached)) {
+                    store(key, cached);
+                }
+            }
+            created.complete(cached);
+            return cached;
+        } catch (RuntimeException e) {
+            created.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, created);
+        }
+    }
+
+    /**
+     * 清空缓存（知识库更新后调用）
+     */
+    public synchronized void invalidateAll() {
+        turnCache.clear();
+        globalCache.clear();
+    }
+
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        long hits = turnHits.get() + globalHits.get() + coalesced.get();
+        long total = hits + misses.get();
+        metrics.put("turnHits", turnHits.get());
+        metrics.put("globalHits", globalHits.get());
+        metrics.put("coalesced", coalesced.get());
+        metrics.put("misses", misses.get());
+        metrics.put("hitRate", total == 0 ? 0.0 : (double) hits / total);
+        metrics.put("promotions", promotions.get());
+        synchronized (this) {
+            metrics.put("turnEntries", turnCache.size());
+            metrics.put("globalEntries", globalCache.size());
+        }
+        return metrics;
+    }
+
+    /**
+     * 查询缓存；count 为 true 时计入一次检索，轮次缓存命中且次数达到阈值时提升到全局缓存
+     */
+    private synchronized List<Document> lookup(String key, boolean count) {
+        long now = System.currentTimeMillis();
+        int lookups = count ? lookupCounts.merge(key, 1, Integer::sum) : lookupCounts.getOrDefault(key, 0);
+        CachedResult result = globalCache.get(key);
+        if (result != null) {
+            if (result.expiresAt > now) {
+                globalHits.incrementAndGet();
+                return result.documents;
+            }
+            globalCache.remove(key);
+        }
+        result = turnCache.get(key);
+        if (result != null) {
+            if (result.expiresAt > now) {
+                turnHits.incrementAndGet();
+                if (lookups >= popularThreshold) {
+                    promote(key, result.documents, now);
+                }
+                return result.documents;
+            }
+            turnCache.remove(key);
+        }
+        return null;
+    }
+
+    private synchronized void store(String key, List<Document> documents) {
+        long now = System.currentTimeMillis();
+        turnCache.put(key, new CachedResult(documents, now + turnTtlMillis));
+        if (lookupCounts.getOrDefault(key, 0) >= popularThreshold) {
+            promote(key, documents, now);
+        }
+    }
+
+    private void promote(String key, List<Document> documents, long now) {
+        globalCache.put(key, new CachedResult(documents, now + globalTtlMillis));
+        promotions.incrementAndGet();
+        log.debug("Promoted popular retrieval query to global cache: {}", key);
+    }
+
+    static String normalize(String text) {
+        if (StrUtil.isBlank(text)) {
+            return "";
+        }
+        String normalized = Normalizer.normalize(text, Normalizer.Form.NFKC).toLowerCase().trim().replaceAll("\\s+", " ");
+        int end = normalized.length();
+        while (end > 0 && TRAILING_PUNCTUATION.indexOf(normalized.charAt(end - 1)) >= 0) {
+            end--;
+        }
+        return normalized.substring(0, end);
+    }
+
+    private static <V> LinkedHashMap<String, V> lruMap(int maxEntries) {
+        return new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    private record CachedResult(List<Document> documents, long expiresAt) {
+    }
+}
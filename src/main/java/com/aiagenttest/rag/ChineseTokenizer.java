@@ -0,0 +1,99 @@
+package com.aiagenttest.rag;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 面向检索的中文分词
+ * <p>
+ * 不依赖词典：连续汉字切成重叠的二元组（"舍曲林" -> "舍曲"、"曲林"），单个汉字保留为一元词；
+ * 英文单词转小写；数字串整体保留，用 "-" 连接的多段数字在总长度达到电话号码长度时（如热线 "400-161-9995"）
+ * 额外生成去掉连接符的完整号码，年龄段 "18-25" 这类短数字只保留各段。
+ * 其余字符（标点、空白等）作为分隔符。
+ */
+final class ChineseTokenizer {
+
+    // 多段数字合并为完整号码的最小长度
+    private static final int MIN_PHONE_DIGITS = 7;
+
+    private ChineseTokenizer() {
+    }
+
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        if (text == null) {
+            return tokens;
+        }
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            int codePoint = text.codePointAt(i);
+            if (isHan(codePoint)) {
+                int start = i;
+                while (i < length && isHan(text.codePointAt(i))) {
+                    i += Character.charCount(text.codePointAt(i));
+                }
+                addHanTokens(text.substring(start, i), tokens);
+            } else if (isDigit(codePoint)) {
+                i = addNumberTokens(text, i, tokens);
+            } else if (Character.isLetter(codePoint)) {
+                int start = i;
+                while (i < length && Character.isLetter(text.codePointAt(i)) && !isHan(text.codePointAt(i))) {
+                    i += Character.charCount(text.codePointAt(i));
+                }
+                tokens.add(text.substring(start, i).toLowerCase());
+            } else {
+                i += Character.charCount(codePoint);
+            }
+        }
+        return tokens;
+    }
+
+    private static void addHanTokens(String run, List<String> tokens) {
+        int[] codePoints = run.codePoints().toArray();
+        if (codePoints.length == 1) {
+            tokens.add(run);
+            return;
+        }
+        for (int j = 0; j + 1 < codePoints.length; j++) {
+            tokens.add(new String(codePoints, j, 2));
+        }
+    }
+
+    /**
+     * @return 数字串之后的位置
+     */
+    private static int addNumberTokens(String text, int start, List<String> tokens) {
+        int length = text.length();
+        StringBuilder joined = new StringBuilder();
+        int parts = 0;
+        int i = start;
+        while (true) {
+            int partStart = i;
+            while (i < length && isDigit(text.charAt(i))) {
+                i++;
+            }
+            tokens.add(text.substring(partStart, i));
+            joined.append(text, partStart, i);
+            parts++;
+            // "-" 后面仍是数字时继续，作为同一个号码
+            if (i + 1 < length && text.charAt(i) == '-' && isDigit(text.charAt(i + 1))) {
+                i++;
+            } else {
+                break;
+            }
+        }
+        if (parts > 1 && joined.length() >= MIN_PHONE_DIGITS) {
+            tokens.add(joined.toString());
+        }
+        return i;
+    }
+
+    private static boolean isHan(int codePoint) {
+        return Character.UnicodeScript.of(codePoint) == Character.UnicodeScript.HAN;
+    }
+
+    private static boolean isDigit(int codePoint) {
+        return codePoint >= '0' && codePoint <= '9';
+    }
+}
@@ -0,0 +1,206 @@
+package com.aiagenttest.rag;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.ai.vectorstore.VectorStore;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 文档入库流水线
+ * <p>
+ * 并行读取、切分 Markdown 文件（输出分片 token 数分布），再按 batchSize 分批、以最多 concurrency 个并发请求计算向量，失败的批次按指数退避重试。
+ * 计算结果写入 {@link SnapshotEmbeddingModel} 的快照，随后向量数据库的 add 直接命中快照，不再请求向量服务，
+ * 入库耗时只受向量服务吞吐量限制。每个阶段结束时输出分片数和吞吐量（chunks/s）。
+ */
+@Component
+@Slf4j
+class DocumentIngestionPipeline {
+
+    private final LoveAppDocumentLoader loveAppDocumentLoader;
+
+    private final MarkdownChunkSplitter markdownChunkSplitter;
+
+    // 每次请求向量服务的分片数
+    private final int batchSize;
+
+    // 同时进行的向量请求数
+    private final int concurrency;
+
+    private final int maxRetries;
+
+    // 首次重试的等待时间，之后每次翻倍
+    private final long retryBackoffMillis;
+
+    DocumentIngestionPipeline(LoveAppDocumentLoader loveAppDocumentLoader,
+                              MarkdownChunkSplitter markdownChunkSplitter,
+                              @Value("${rag.ingestion.batch-size:10}") int batchSize,
+                              @Value("${rag.ingestion.concurrency:4}") int concurrency,
+                              @Value("${rag.ingestion.max-retries:3}") int maxRetries,
+                              @Value("${rag.ingestion.retry-backoff-millis:500}") long retryBackoffMillis) {
+        this.loveAppDocumentLoader = loveAppDocumentLoader;
+        this.markdownChunkSplitter = markdownChunkSplitter;
+        this.batchSize = Math.max(1, batchSize);
+        this.concurrency = Math.max(1, concurrency);
+        this.maxRetries = Math.max(1, maxRetries);
+        this.retryBackoffMillis = retryBackoffMillis;
+    }
+
+    /**
+     * 并行读取并切分所有 Markdown 文件，结果按文件顺序排列，分片ID由文件名和内容生成
+     */
+    public List<Document> load() {
+        long start = System.currentTimeMillis();
+        List<Resource> resources = loveAppDocumentLoader.listMarkdowns();
+        if (resources.isEmpty()) {
+            return List.of();
+        }
+        ExecutorService executor = newExecutor("document-loader", Math.min(resources.size(), Runtime.getRuntime().availableProcessors()));
+        try {
+            List<CompletableFuture<List<Document>>> futures = resources.stream()
+                    .map(resource -> CompletableFuture.supplyAsync(() -> withStableIds(loveAppDocumentLoader.loadMarkdown(resource)), executor))
+                    .toList();
+            List<Document> documents = new ArrayList<>();
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    documents.addAll(futures.get(i).join());
+                } catch (CompletionException e) {
+                    log.error("Markdown 文档加载失败: {}", resources.get(i).getFilename(), e.getCause());
+                }
+            }
+            long elapsed = Math.max(1, System.currentTimeMillis() - start);
+            log.info("Loaded {} chunks from {} files in {}ms ({} chunks/s)",
+                    documents.size(), resources.size(), elapsed, documents.size() * 1000L / elapsed);
+            // 用于调整 rag.chunking 参数
+            log.info("Chunk tokens (target {}): {}", markdownChunkSplitter.getTargetTokens(),
+                    MarkdownChunkSplitter.stats(documents));
+            return documents;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 读取并切分单个文件
+     */
+    public List<Document> loadFile(Path path) {
+        return withStableIds(loveAppDocumentLoader.loadMarkdown(new FileSystemResource(path)));
+    }
+
+    /**
+     * 计算向量并写入向量数据库
+     * <p>
+     * 任一批次重试后仍失败时抛出异常，已完成的批次结果保留在快照中，下次启动不必重新计算。
+     *
+     * @param fullSync 是否为全量入库，全量入库成功后会删除快照中本次未用到的向量；增量更新只追加
+     */
+    public void ingest(SnapshotEmbeddingModel embeddingModel, VectorStore vectorStore, List<Document> documents,
+                       boolean fullSync) {
+        long start = System.currentTimeMillis();
+        embeddingModel.beginCapture();
+        boolean completed = false;
+        try {
+            embed(embeddingModel, documents);
+            vectorStore.add(documents);
+            completed = true;
+        } finally {
+            embeddingModel.endCapture(completed && fullSync);
+        }
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        log.info("Ingested {} chunks in {}ms ({} chunks/s)", documents.size(), elapsed, documents.size() * 1000L / elapsed);
+    }
+
+    /**
+     * 分批并行计算所有分片的向量
+     */
+    private void embed(EmbeddingModel embeddingModel, List<Document> documents) {
+        if (documents.isEmpty()) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        List<List<String>> batches = new ArrayList<>();
+        for (int i = 0; i < documents.size(); i += batchSize) {
+            batches.add(documents.subList(i, Math.min(i + batchSize, documents.size())).stream()
+                    .map(Document::getText)
+                    .toList());
+        }
+        AtomicInteger retries = new AtomicInteger();
+        ExecutorService executor = newExecutor("document-embedder", Math.min(concurrency, batches.size()));
+        try {
+            List<CompletableFuture<Void>> futures = batches.stream()
+                    .map(batch -> CompletableFuture.runAsync(() -> embedWithRetry(embeddingModel, batch, retries), executor))
+                    .toList();
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException runtimeException ? runtimeException : e;
+        } finally {
+            // 有批次失败时取消尚未开始的批次
+            executor.shutdownNow();
+        }
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        log.info("Embedded {} chunks in {} batches (size {}, concurrency {}, {} retries) in {}ms ({} chunks/s)",
+                documents.size(), batches.size(), batchSize, concurrency, retries.get(), elapsed,
+                documents.size() * 1000L / elapsed);
+    }
+
+    private void embedWithRetry(EmbeddingModel embeddingModel, List<String> texts, AtomicInteger retries) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                embeddingModel.embed(texts);
+                return;
+            } catch (RuntimeException e) {
+                if (attempt >= maxRetries) {
+                    log.error("Failed to embed {} chunks after {} attempts", texts.size(), attempt);
+                    throw e;
+                }
+                retries.incrementAndGet();
+                log.warn("Failed to embed {} chunks, retrying ({}/{}): {}", texts.size(), attempt, maxRetries, e.getMessage());
+                try {
+                    Thread.sleep(retryBackoffMillis << (attempt - 1));
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * 用文件名和分片内容生成分片ID，同一分片在重启或文件修改后ID不变，内容变化的分片ID随之变化
+     */
+    static List<Document> withStableIds(List<Document> documents) {
+        List<Document> result = new ArrayList<>(documents.size());
+        for (Document document : documents) {
+            String key = document.getMetadata().get("filename") + "\n" + document.getText();
+            result.add(Document.builder()
+                    .id(UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8)).toString())
+                    .text(document.getText())
+                    .metadata(document.getMetadata())
+                    .build());
+        }
+        return result;
+    }
+
+    private static ExecutorService newExecutor(String name, int threads) {
+        AtomicInteger counter = new AtomicInteger();
+        return Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread thread = new Thread(r, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
@@ -0,0 +1,233 @@
+package com.aiagenttest.rag;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.vectorstore.VectorStore;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * 知识库目录监听，增量更新向量数据库
+ * <p>
+ * 用 NIO WatchService 监听知识库目录中 Markdown 文件的新增、修改和删除，等待 debounce 时间内没有新的事件后处理。
+ * 变化的文件重新切分，分片ID由文件名和内容生成，与当前索引中该文件的分片ID比较：
+ * 新出现的分片计算向量后写入，消失的分片删除，未变化的分片不处理；BM25 索引同步更新。
+ * 向量数据库的写入只短暂加锁，不阻塞查询。
+ */
+@Component
+@Slf4j
+class DocumentWatcher {
+
+    private final LoveAppDocumentLoader loveAppDocumentLoader;
+
+    private final DocumentIngestionPipeline documentIngestionPipeline;
+
+    private final Bm25Index bm25Index;
+
+    private final boolean enabled;
+
+    // 最后一个事件之后等待的时间，合并编辑器连续写入产生的多个事件
+    private final long debounceMillis;
+
+    // 文件名 -> 当前索引中该文件的分片ID，只在监听线程中修改
+    private final Map<String, Set<String>> chunkIdsByFile = new ConcurrentHashMap<>();
+
+    private VectorStore vectorStore;
+
+    private SnapshotEmbeddingModel embeddingModel;
+
+    private Runnable onChange;
+
+    // 每次增量更新后通知的监听器（如检索缓存）
+    private final List<Runnable> changeListeners = new CopyOnWriteArrayList<>();
+
+    private Path directory;
+
+    private WatchService watchService;
+
+    private Thread watcher;
+
+    DocumentWatcher(LoveAppDocumentLoader loveAppDocumentLoader,
+                    DocumentIngestionPipeline documentIngestionPipeline,
+                    Bm25Index bm25Index,
+                    @Value("${rag.documents.watch:true}") boolean enabled,
+                    @Value("${rag.documents.watch-debounce-millis:500}") long debounceMillis) {
+        this.loveAppDocumentLoader = loveAppDocumentLoader;
+        this.documentIngestionPipeline = documentIngestionPipeline;
+        this.bm25Index = bm25Index;
+        this.enabled = enabled;
+        this.debounceMillis = debounceMillis;
+    }
+
+    /**
+     * 开始监听知识库目录，未配置目录或未开启时不做任何事
+     *
+     * @param documents 已入库的分片
+     * @param onChange  每次增量更新后执行（如保存索引），可为 null
+     */
+    public synchronized void watch(VectorStore vectorStore, SnapshotEmbeddingModel embeddingModel,
+                                   List<Document> documents, Runnable onChange) {
+        Path directory = loveAppDocumentLoader.getDocumentDirectory();
+        if (!enabled || directory == null || watcher != null) {
+            return;
+        }
+        for (Document document : documents) {
+            String filename = String.valueOf(document.getMetadata().get("filename"));
+            chunkIdsByFile.computeIfAbsent(filename, k -> new HashSet<>()).add(document.getId());
+        }
+        try {
+            this.watchService = directory.getFileSystem().newWatchService();
+            directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException e) {
+            log.error("Failed to watch document directory {}", directory, e);
+            return;
+        }
+        this.vectorStore = vectorStore;
+        this.embeddingModel = embeddingModel;
+        this.onChange = onChange;
+        this.directory = directory;
+        this.watcher = new Thread(this::watchLoop, "document-watcher");
+        this.watcher.setDaemon(true);
+        this.watcher.start();
+        log.info("Watching document directory {} ({} files indexed)", directory, chunkIdsByFile.size());
+    }
+
+    /**
+     * 注册知识库变化监听器
+     */
+    public void addChangeListener(Runnable listener) {
+        changeListeners.add(listener);
+    }
+
+    private void watchLoop() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Set<Path> changed = new LinkedHashSet<>();
+                WatchKey key = watchService.take();
+                boolean overflow = collect(key, changed);
+                // 去抖：直到 debounce 时间内没有新事件
+                while ((key = watchService.poll(debounceMillis, TimeUnit.MILLISECONDS)) != null) {
+                    overflow |= collect(key, changed);
+                }
+                if (overflow) {
+                    changed.addAll(listAllFiles());
+                }
+                if (!changed.isEmpty()) {
+                    changed.forEach(this::reindex);
+                    if (onChange != null) {
+                        onChange.run();
+                    }
+                    changeListeners.forEach(Runnable::run);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // 应用关闭
+        }
+    }
+
+    /**
+     * @return 是否发生事件溢出（需要全量比对）
+     */
+    private boolean collect(WatchKey key, Set<Path> changed) {
+        boolean overflow = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                overflow = true;
+            } else if (event.context() instanceof Path path && path.toString().endsWith(".md")) {
+                changed.add(directory.resolve(path));
+            }
+        }
+        key.reset();
+        return overflow;
+    }
+
+    /**
+     * 目录中现有的文件和索引中已有的文件（可能已被删除）
+     */
+    private List<Path> listAllFiles() {
+        Set<Path> files = new LinkedHashSet<>();
+        try (Stream<Path> stream = Files.list(directory)) {
+            stream.filter(path -> path.toString().endsWith(".md")).forEach(files::add);
+        } catch (IOException e) {
+            log.warn("Failed to list document directory {}", directory, e);
+        }
+        chunkIdsByFile.keySet().forEach(filename -> files.add(directory.resolve(filename)));
+        return new ArrayList<>(files);
+    }
+
+    /**
+     * 比较文件的新旧分片，只写入新增分片、删除消失的分片
+     */
+    private void reindex(Path path) {
+        long start = System.currentTimeMillis();
+        String filename = path.getFileName().toString();
+        try {
+            List<Document> chunks = Files.isRegularFile(path) ? documentIngestionPipeline.loadFile(path) : List.of();
+            Set<String> previousIds = chunkIdsByFile.getOrDefault(filename, Set.of());
+            Set<String> currentIds = new HashSet<>();
+            List<Document> added = new ArrayList<>();
+            for (Document chunk : chunks) {
+                if (currentIds.add(chunk.getId()) && !previousIds.contains(chunk.getId())) {
+                    added.add(chunk);
+                }
+            }
+            List<String> removed = previousIds.stream().filter(id -> !currentIds.contains(id)).toList();
+            if (added.isEmpty() && removed.isEmpty()) {
+                return;
+            }
+            // 先写入新分片再删除旧分片，更新期间查询不会缺少该文件的内容
+            if (!added.isEmpty()) {
+                documentIngestionPipeline.ingest(embeddingModel, vectorStore, added, false);
+                bm25Index.add(added);
+            }
+            if (!removed.isEmpty()) {
+                vectorStore.delete(removed);
+                bm25Index.delete(removed);
+            }
+            if (currentIds.isEmpty()) {
+                chunkIdsByFile.remove(filename);
+            } else {
+                chunkIdsByFile.put(filename, currentIds);
+            }
+            log.info("Re-indexed {}: {} chunks added, {} removed, {} unchanged in {}ms", filename, added.size(),
+                    removed.size(), currentIds.size() - added.size(), System.currentTimeMillis() - start);
+        } catch (RuntimeException e) {
+            // 保留原有分片记录，文件下次变化时重新比较
+            log.error("Failed to re-index {}", filename, e);
+        }
+    }
+
+    @PreDestroy
+    public synchronized void shutdown() {
+        if (watcher == null) {
+            return;
+        }
+        watcher.interrupt();
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            log.warn("Failed to close document watcher", e);
+        }
+    }
+}
@@ -0,0 +1,550 @@
+package com.aiagenttest.rag;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.SplittableRandom;
+import java.util.function.IntPredicate;
+
+/**
+ * HNSW（Hierarchical Navigable Small World）近似最近邻索引，余弦距离
+ * <p>
+ * 节点按指数分布随机分配层数，上层稀疏用于快速定位，第 0 层包含全部节点。
+ * 插入时在每层用 efConstruction 宽度搜索候选邻居，并用启发式选择保留方向分散的 M 个邻居（第 0 层 2M 个）；
+ * 查询时自顶向下贪心定位，在第 0 层以 efSearch 宽度搜索。
+ * <p>
+ * 向量保存在堆外的 {@link VectorArena} 中。开启 int8 量化时，建图和搜索使用量化后的近似距离，
+ * 查询最后对 ef 个候选用原始向量计算精确距离重新排序。
+ * <p>
+ * 删除只做标记，被删除的节点仍参与导航但不会出现在结果中。
+ * 本类不是线程安全的，由 {@link HnswVectorStore} 负责加锁。
+ */
+final class HnswIndex implements AutoCloseable {
+
+    private static final int MAGIC = 0x484E5357;
+
+    private static final int VERSION = 2;
+
+    private final int dimensions;
+
+    // 每层（第 0 层除外）每个节点的最大邻居数
+    private final int m;
+
+    // 第 0 层每个节点的最大邻居数
+    private final int maxM0;
+
+    private final int efConstruction;
+
+    private final double levelMultiplier;
+
+    private final SplittableRandom random;
+
+    // 节点向量（已归一化）
+    private final VectorArena vectors;
+
+    // 节点 -> 层 -> 邻居
+    private int[][][] links = new int[16][][];
+
+    // 节点 -> 层 -> 邻居数量
+    private int[][] linkCounts = new int[16][];
+
+    private final BitSet deleted = new BitSet();
+
+    private int size;
+
+    private int deletedCount;
+
+    private int entryPoint = -1;
+
+    private int maxLevel = -1;
+
+    // 每个线程复用的访问标记，避免每次搜索分配与节点数等长的数组
+    private final ThreadLocal<VisitedMarks> visitedMarks = ThreadLocal.withInitial(VisitedMarks::new);
+
+    HnswIndex(int dimensions, int m, int efConstruction) {
+        this(dimensions, m, efConstruction, false, null);
+    }
+
+    /**
+     * @param quantized       是否使用 int8 量化距离建图和搜索
+     * @param vectorDirectory 原始向量映射文件所在目录，为 null 时保存在直接内存中
+     */
+    HnswIndex(int dimensions, int m, int efConstruction, boolean quantized, Path vectorDirectory) {
+        if (m < 2) {
+            throw new IllegalArgumentException("M must be at least 2");
+        }
+        this.dimensions = dimensions;
+        this.m = m;
+        this.maxM0 = 2 * m;
+        this.efConstruction = Math.max(efConstruction, m);
+        this.levelMultiplier = 1 / Math.log(m);
+        this.random = new SplittableRandom(42L);
+        this.vectors = new VectorArena(dimensions, quantized, vectorDirectory);
+    }
+
+    int dimensions() {
+        return dimensions;
+    }
+
+    boolean isQuantized() {
+        return vectors.isQuantized();
+    }
+
+    /**
+     * 向量常驻内存的字节数
+     */
+    long residentVectorBytes() {
+        return vectors.residentBytes();
+    }
+
+    /**
+     * 节点总数（含已删除）
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * 未删除的节点数
+     */
+    int liveSize() {
+        return size - deletedCount;
+    }
+
+    boolean isDeleted(int node) {
+        return deleted.get(node);
+    }
+
+    /**
+     * 节点的归一化向量
+     */
+    float[] vector(int node) {
+        return vectors.get(node);
+    }
+
+    /**
+     * 插入向量
+     *
+     * @return 节点编号
+     */
+    int add(float[] vector) {
+        if (vector.length != dimensions) {
+            throw new IllegalArgumentException("Expected " + dimensions + " dimensions but got " + vector.length);
+        }
+        int node = size;
+        ensureCapacity(node + 1);
+        int level = randomLevel();
+        float[] query = normalize(vector);
+        vectors.add(query);
+        links[node] = new int[level + 1][];
+        linkCounts[node] = new int[level + 1];
+        for (int l = 0; l <= level; l++) {
+            links[node][l] = new int[maxNeighbors(l)];
+        }
+        size++;
+
+        if (entryPoint < 0) {
+            entryPoint = node;
+            maxLevel = level;
+            return node;
+        }
+
+        int current = entryPoint;
+        float currentDistance = distance(query, current);
+        // 上层贪心定位
+        for (int l = maxLevel; l > level; l--) {
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                int[] neighbors = links[current][l];
+                for (int i = 0, count = linkCounts[current][l]; i < count; i++) {
+                    float d = distance(query, neighbors[i]);
+                    if (d < currentDistance) {
+                        currentDistance = d;
+                        current = neighbors[i];
+                        changed = true;
+                    }
+                }
+            }
+        }
+        // 逐层连接
+        List<Candidate> entryPoints = new ArrayList<>(List.of(new Candidate(current, currentDistance)));
+        for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+            List<Candidate> candidates = searchLayer(query, entryPoints, efConstruction, l, null);
+            List<Candidate> selected = selectNeighbors(candidates, m);
+            for (Candidate neighbor : selected) {
+                links[node][l][linkCounts[node][l]++] = neighbor.node;
+                connect(neighbor.node, node, neighbor.distance, l);
+            }
+            entryPoints = candidates;
+        }
+        if (level > maxLevel) {
+            entryPoint = node;
+            maxLevel = level;
+        }
+        return node;
+    }
+
+    /**
+     * 标记删除
+     */
+    void markDeleted(int node) {
+        if (node < size && !deleted.get(node)) {
+            deleted.set(node);
+            deletedCount++;
+        }
+    }
+
+    /**
+     * 查询最近的 k 个节点
+     *
+     * @param ef     搜索宽度，越大召回率越高、耗时越长
+     * @param filter 结果过滤条件，为 null 表示不过滤；不满足条件的节点仍用于导航
+     * @return 按距离升序排列的结果
+     */
+    List<Candidate> search(float[] query, int k, int ef, IntPredicate filter) {
+        if (entryPoint < 0 || k <= 0) {
+            return List.of();
+        }
+        float[] normalized = normalize(query);
+        int current = entryPoint;
+        float currentDistance = distance(normalized, current);
+        for (int l = maxLevel; l > 0; l--) {
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                int[] neighbors = links[current][l];
+                for (int i = 0, count = linkCounts[current][l]; i < count; i++) {
+                    float d = distance(normalized, neighbors[i]);
+                    if (d < currentDistance) {
+                        currentDistance = d;
+                        current = neighbors[i];
+                        changed = true;
+                    }
+                }
+            }
+        }
+        IntPredicate accept = deletedCount == 0 && filter == null
+                ? null
+                : node -> !deleted.get(node) && (filter == null || filter.test(node));
+        List<Candidate> results = searchLayer(normalized, List.of(new Candidate(current, currentDistance)),
+                Math.max(ef, k), 0, accept);
+        if (vectors.isQuantized()) {
+            // 用原始向量对候选重新排序
+            List<Candidate> reranked = new ArrayList<>(results.size());
+            for (Candidate candidate : results) {
+                reranked.add(new Candidate(candidate.node, 1 - vectors.dot(normalized, candidate.node)));
+            }
+            reranked.sort(Comparator.comparingDouble(Candidate::distance));
+            results = reranked;
+        }
+        return results.size() > k ? results.subList(0, k) : results;
+    }
+
+    /**
+     * 精确线性扫描（用于过滤条件极少命中时的兜底和召回率评估）
+     */
+    List<Candidate> exactSearch(float[] query, int k, IntPredicate filter) {
+        float[] normalized = normalize(query);
+        PriorityQueue<Candidate> results = new PriorityQueue<>(Comparator.comparingDouble(Candidate::distance).reversed());
+        for (int node = 0; node < size; node++) {
+            if (deleted.get(node) || (filter != null && !filter.test(node))) {
+                continue;
+            }
+            float d = 1 - vectors.dot(normalized, node);
+            if (results.size() < k) {
+                results.add(new Candidate(node, d));
+            } else if (d < results.peek().distance) {
+                results.poll();
+                results.add(new Candidate(node, d));
+            }
+        }
+        List<Candidate> sorted = new ArrayList<>(results);
+        sorted.sort(Comparator.comparingDouble(Candidate::distance));
+        return sorted;
+    }
+
+    /**
+     * 在单层内做宽度为 ef 的最佳优先搜索
+     *
+     * @param accept 可以进入结果集的节点，为 null 表示全部
+     * @return 按距离升序排列的结果
+     */
+    private List<Candidate> searchLayer(float[] query, List<Candidate> entryPoints, int ef, int layer, IntPredicate accept) {
+        VisitedMarks visited = visitedMarks.get();
+        visited.reset(size);
+        PriorityQueue<Candidate> candidates = new PriorityQueue<>(Comparator.comparingDouble(Candidate::distance));
+        PriorityQueue<Candidate> results = new PriorityQueue<>(Comparator.comparingDouble(Candidate::distance).reversed());
+        for (Candidate entry : entryPoints) {
+            if (!visited.mark(entry.node)) {
+                continue;
+            }
+            candidates.add(entry);
+            if (accept == null || accept.test(entry.node)) {
+                results.add(entry);
+            }
+        }
+        while (results.size() > ef) {
+            results.poll();
+        }
+        while (!candidates.isEmpty()) {
+            Candidate candidate = candidates.poll();
+            if (results.size() >= ef && candidate.distance > results.peek().distance) {
+                break;
+            }
+            int[] neighbors = links[candidate.node][layer];
+            for (int i = 0, count = linkCounts[candidate.node][layer]; i < count; i++) {
+                int neighbor = neighbors[i];
+                if (!visited.mark(neighbor)) {
+                    continue;
+                }
+                float d = distance(query, neighbor);
+                if (results.size() < ef || d < results.peek().distance) {
+                    candidates.add(new Candidate(neighbor, d));
+                    if (accept == null || accept.test(neighbor)) {
+                        results.add(new Candidate(neighbor, d));
+                        if (results.size() > ef) {
+                            results.poll();
+                        }
+                    }
+                }
+            }
+        }
+        List<Candidate> sorted = new ArrayList<>(results);
+        sorted.sort(Comparator.comparingDouble(Candidate::distance));
+        return sorted;
+    }
+
+    /**
+     * 启发式邻居选择：候选点比已选中的任一邻居更靠近查询点时才选中，使邻居方向分散；不足时用被跳过的候选补齐
+     *
+     * @param candidates 按距离升序排列的候选
+     */
+    private List<Candidate> selectNeighbors(List<Candidate> candidates, int max) {
+        if (candidates.size() <= max) {
+            return candidates;
+        }
+        List<Candidate> selected = new ArrayList<>(max);
+        List<Candidate> skipped = new ArrayList<>();
+        for (Candidate candidate : candidates) {
+            if (selected.size() >= max) {
+                break;
+            }
+            boolean diverse = true;
+            for (Candidate chosen : selected) {
+                if (1 - vectors.approximateDot(candidate.node, chosen.node) < candidate.distance) {
+                    diverse = false;
+                    break;
+                }
+            }
+            if (diverse) {
+                selected.add(candidate);
+            } else {
+                skipped.add(candidate);
+            }
+        }
+        for (int i = 0; i < skipped.size() && selected.size() < max; i++) {
+            selected.add(skipped.get(i));
+        }
+        return selected;
+    }
+
+    /**
+     * 为已有节点添加反向连接，超过上限时重新选择邻居
+     */
+    private void connect(int node, int neighbor, float distance, int layer) {
+        int[] neighbors = links[node][layer];
+        int count = linkCounts[node][layer];
+        if (count < neighbors.length) {
+            neighbors[count] = neighbor;
+            linkCounts[node][layer]++;
+            return;
+        }
+        List<Candidate> candidates = new ArrayList<>(count + 1);
+        for (int i = 0; i < count; i++) {
+            candidates.add(new Candidate(neighbors[i], 1 - vectors.approximateDot(node, neighbors[i])));
+        }
+        candidates.add(new Candidate(neighbor, distance));
+        candidates.sort(Comparator.comparingDouble(Candidate::distance));
+        List<Candidate> selected = selectNeighbors(candidates, neighbors.length);
+        for (int i = 0; i < selected.size(); i++) {
+            neighbors[i] = selected.get(i).node;
+        }
+        linkCounts[node][layer] = selected.size();
+    }
+
+    private int randomLevel() {
+        double uniform = 1.0 - random.nextDouble();
+        return (int) Math.floor(-Math.log(uniform) * levelMultiplier);
+    }
+
+    private int maxNeighbors(int layer) {
+        return layer == 0 ? maxM0 : m;
+    }
+
+    private float distance(float[] query, int node) {
+        return 1 - vectors.approximateDot(query, node);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= links.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, links.length * 2);
+        links = Arrays.copyOf(links, newCapacity);
+        linkCounts = Arrays.copyOf(linkCounts, newCapacity);
+    }
+
+    private float[] normalize(float[] vector) {
+        double norm = 0;
+        for (float value : vector) {
+            norm += value * value;
+        }
+        norm = Math.sqrt(norm);
+        float[] normalized = new float[dimensions];
+        if (norm == 0) {
+            return normalized;
+        }
+        for (int i = 0; i < dimensions; i++) {
+            normalized[i] = (float) (vector[i] / norm);
+        }
+        return normalized;
+    }
+
+    // ========== 持久化 ==========
+
+    void writeTo(DataOutputStream output) throws IOException {
+        output.writeInt(MAGIC);
+        output.writeInt(VERSION);
+        output.writeInt(dimensions);
+        output.writeInt(m);
+        output.writeInt(efConstruction);
+        output.writeInt(size);
+        output.writeInt(entryPoint);
+        output.writeInt(maxLevel);
+        for (int node = 0; node < size; node++) {
+            output.writeBoolean(deleted.get(node));
+            for (float value : vectors.get(node)) {
+                output.writeFloat(value);
+            }
+            output.writeInt(links[node].length);
+            for (int l = 0; l < links[node].length; l++) {
+                output.writeInt(linkCounts[node][l]);
+                for (int i = 0; i < linkCounts[node][l]; i++) {
+                    output.writeInt(links[node][l][i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * 读取索引，量化方式和向量存储位置按当前配置重新生成
+     * <p>
+     * 逐项校验数量、层数和邻居下标，文件损坏时抛出 IOException，不会留下搜索时越界的图
+     */
+    static HnswIndex readFrom(DataInputStream input, boolean quantized, Path vectorDirectory) throws IOException {
+        if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+            throw new IOException("Unknown HNSW index format");
+        }
+        int dimensions = readChecked(input, 1, Integer.MAX_VALUE, "dimensions");
+        int m = readChecked(input, 2, Integer.MAX_VALUE, "M");
+        HnswIndex index = new HnswIndex(dimensions, m, input.readInt(), quantized, vectorDirectory);
+        try {
+            int size = readChecked(input, 0, Integer.MAX_VALUE, "size");
+            index.ensureCapacity(size);
+            index.entryPoint = size == 0 ? readChecked(input, -1, -1, "entry point") : readChecked(input, 0, size - 1, "entry point");
+            index.maxLevel = size == 0 ? readChecked(input, -1, -1, "max level") : readChecked(input, 0, Integer.MAX_VALUE, "max level");
+            for (int node = 0; node < size; node++) {
+                if (input.readBoolean()) {
+                    index.deleted.set(node);
+                    index.deletedCount++;
+                }
+                float[] vector = new float[index.dimensions];
+                for (int i = 0; i < vector.length; i++) {
+                    vector[i] = input.readFloat();
+                }
+                index.vectors.add(vector);
+                int levels = readChecked(input, 1, index.maxLevel + 1, "levels");
+                index.links[node] = new int[levels][];
+                index.linkCounts[node] = new int[levels];
+                for (int l = 0; l < levels; l++) {
+                    int count = readChecked(input, 0, index.maxNeighbors(l), "neighbor count");
+                    index.links[node][l] = new int[index.maxNeighbors(l)];
+                    index.linkCounts[node][l] = count;
+                    for (int i = 0; i < count; i++) {
+                        index.links[node][l][i] = readChecked(input, 0, size - 1, "neighbor");
+                    }
+                }
+            }
+            if (size > 0 && index.links[index.entryPoint].length != index.maxLevel + 1) {
+                throw new IOException("Corrupt HNSW index: entry point is not on the top level");
+            }
+            index.size = size;
+            return index;
+        } catch (IOException | RuntimeException e) {
+            index.close();
+            throw e;
+        }
+    }
+
+    private static int readChecked(DataInputStream input, int min, int max, String field) throws IOException {
+        int value = input.readInt();
+        if (value < min || value > max) {
+            throw new IOException("Corrupt HNSW index: " + field + " " + value + " out of range [" + min + ", " + max + "]");
+        }
+        return value;
+    }
+
+    /**
+     * 释放堆外向量
+     */
+    @Override
+    public void close() {
+        vectors.close();
+    }
+
+    /**
+     * 按轮次标记已访问节点，换轮时只需递增轮次，不用清空数组
+     */
+    private static final class VisitedMarks {
+
+        private int[] marks = new int[0];
+
+        private int epoch;
+
+        void reset(int size) {
+            if (marks.length < size) {
+                marks = new int[Math.max(size, marks.length * 2)];
+                epoch = 0;
+            }
+            if (++epoch == 0) {
+                Arrays.fill(marks, 0);
+                epoch = 1;
+            }
+        }
+
+        /**
+         * @return 节点在本轮中首次访问时返回 true
+         */
+        boolean mark(int node) {
+            if (marks[node] == epoch) {
+                return false;
+            }
+            marks[node] = epoch;
+            return true;
+        }
+    }
+
+    /**
+     * 搜索结果：节点编号和余弦距离（1 - 余弦相似度）
+     */
+    record Candidate(int node, float distance) {
+    }
+}
@@ -0,0 +1,442 @@
+package com.aiagenttest.rag;
+
+import cn.hutool.json.JSONUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.embedding.BatchingStrategy;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.ai.embedding.EmbeddingOptionsBuilder;
+import org.springframework.ai.embedding.TokenCountBatchingStrategy;
+import org.springframework.ai.vectorstore.SearchRequest;
+import org.springframework.ai.vectorstore.VectorStore;
+import org.springframework.ai.vectorstore.filter.Filter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntPredicate;
+
+/**
+ * 基于 HNSW 图的进程内向量数据库
+ * <p>
+ * 代替 SimpleVectorStore 的线性扫描，查询耗时随文档数量近似对数增长。
+ * M 控制每个节点的邻居数（越大召回率越高、内存占用越多），efSearch 控制查询时的搜索宽度（越大召回率越高、耗时越长）。
+ * <p>
+ * 支持按 metadata 过滤（例如只检索某个 filename 的分片）：不满足条件的节点仍参与图上的导航，
+ * 过滤后结果不足 topK 时退化为对满足条件的节点做精确扫描。
+ * 相同 ID 的文档重复写入时，内容未变化则跳过，否则替换旧节点。索引和文档可以保存到本地文件，重启后直接加载。
+ * <p>
+ * 向量保存在堆外，可选 int8 量化：图搜索使用量化向量，原始向量放在内存映射文件中只用于精确重排，常驻内存约为 float 的 1/4。
+ */
+@Slf4j
+public class HnswVectorStore implements VectorStore {
+
+    private static final int MAGIC = 0x48565354;
+
+    private static final int VERSION = 1;
+
+    // 单个文本或元数据的长度上限，文件损坏时避免按错误长度分配超大数组
+    private static final int MAX_STRING_BYTES = 16 * 1024 * 1024;
+
+    // 已删除节点超过该比例时重建索引
+    private static final double REBUILD_DELETED_RATIO = 0.5;
+
+    private final EmbeddingModel embeddingModel;
+
+    private final BatchingStrategy batchingStrategy = new TokenCountBatchingStrategy();
+
+    private final int m;
+
+    private final int efConstruction;
+
+    private volatile int efSearch;
+
+    private final boolean quantized;
+
+    // 原始向量映射文件所在目录，为 null 时保存在直接内存中
+    private final Path vectorDirectory;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // 首次写入时按向量维度创建
+    private HnswIndex index;
+
+    // 节点编号 -> 文档，已删除的节点为 null
+    private final List<Document> documents = new ArrayList<>();
+
+    // 文档ID -> 节点编号
+    private final Map<String, Integer> nodeById = new HashMap<>();
+
+    public HnswVectorStore(EmbeddingModel embeddingModel, int m, int efConstruction, int efSearch) {
+        this(embeddingModel, m, efConstruction, efSearch, false, null);
+    }
+
+    /**
+     * @param quantized       是否开启 int8 量化
+     * @param vectorDirectory 原始向量映射文件所在目录，为 null 时保存在直接内存中
+     */
+    public HnswVectorStore(EmbeddingModel embeddingModel, int m, int efConstruction, int efSearch,
+                           boolean quantized, Path vectorDirectory) {
+        this.embeddingModel = embeddingModel;
+        this.m = m;
+        this.efConstruction = efConstruction;
+        this.efSearch = efSearch;
+        this.quantized = quantized;
+        this.vectorDirectory = vectorDirectory;
+    }
+
+    public int getEfSearch() {
+        return efSearch;
+    }
+
+    public void setEfSearch(int efSearch) {
+        this.efSearch = efSearch;
+    }
+
+    /**
+     * 向量常驻内存的字节数
+     */
+    public long getResidentVectorBytes() {
+        lock.readLock().lock();
+        try {
+            return index != null ? index.residentVectorBytes() : 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 当前文档数量
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return nodeById.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void add(List<Document> documents) {
+        if (documents.isEmpty()) {
+            return;
+        }
+        // 在锁外计算向量，不阻塞查询
+        List<float[]> embeddings = embeddingModel.embed(documents, EmbeddingOptionsBuilder.builder().build(), batchingStrategy);
+        lock.writeLock().lock();
+        try {
+            int added = 0;
+            for (int i = 0; i < documents.size(); i++) {
+                Document document = documents.get(i);
+                Integer existing = nodeById.get(document.getId());
+                if (existing != null) {
+                    Document current = this.documents.get(existing);
+                    if (Objects.equals(current.getText(), document.getText())
+                            && Objects.equals(current.getMetadata(), document.getMetadata())) {
+                        continue;
+                    }
+                    removeNode(existing);
+                }
+                insert(document, embeddings.get(i));
+                added++;
+            }
+            rebuildIfNeeded();
+            log.info("HNSW vector store: {} documents added, {} unchanged, {} total",
+                    added, documents.size() - added, nodeById.size());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void delete(List<String> idList) {
+        lock.writeLock().lock();
+        try {
+            for (String id : idList) {
+                Integer node = nodeById.get(id);
+                if (node != null) {
+                    removeNode(node);
+                }
+            }
+            rebuildIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void delete(Filter.Expression filterExpression) {
+        lock.writeLock().lock();
+        try {
+            List<Integer> nodes = new ArrayList<>();
+            for (Integer node : nodeById.values()) {
+                if (MetadataFilterEvaluator.matches(filterExpression, documents.get(node).getMetadata())) {
+                    nodes.add(node);
+                }
+            }
+            nodes.forEach(this::removeNode);
+            rebuildIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 只保留指定ID的文档，删除其余文档
+     */
+    public void retain(Collection<String> ids) {
+        Set<String> keep = new HashSet<>(ids);
+        lock.writeLock().lock();
+        try {
+            List<Integer> nodes = new ArrayList<>();
+            nodeById.forEach((id, node) -> {
+                if (!keep.contains(id)) {
+                    nodes.add(node);
+                }
+            });
+            nodes.forEach(this::removeNode);
+            rebuildIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Document> similaritySearch(SearchRequest request) {
+        float[] query = embeddingModel.embed(request.getQuery());
+        lock.readLock().lock();
+        try {
+            if (index == null || nodeById.isEmpty()) {
+                return List.of();
+            }
+            int topK = request.getTopK();
+            IntPredicate filter = null;
+            if (request.getFilterExpression() != null) {
+                Filter.Expression expression = request.getFilterExpression();
+                filter = node -> MetadataFilterEvaluator.matches(expression, documents.get(node).getMetadata());
+            }
+            List<HnswIndex.Candidate> candidates = index.search(query, topK, efSearch, filter);
+            if (filter != null && candidates.size() < topK) {
+                // 过滤条件命中的节点较少，图搜索可能漏掉，改为精确扫描
+                candidates = index.exactSearch(query, topK, filter);
+            }
+            List<Document> results = new ArrayList<>(candidates.size());
+            for (HnswIndex.Candidate candidate : candidates) {
+                double similarity = 1 - candidate.distance();
+                if (similarity < request.getSimilarityThreshold()) {
+                    continue;
+                }
+                Document document = documents.get(candidate.node());
+                Map<String, Object> metadata = new HashMap<>(document.getMetadata());
+                metadata.put("distance", candidate.distance());
+                results.add(Document.builder()
+                        .id(document.getId())
+                        .text(document.getText())
+                        .metadata(metadata)
+                        .score(similarity)
+                        .build());
+            }
+            return results;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void insert(Document document, float[] embedding) {
+        if (index == null) {
+            index = new HnswIndex(embedding.length, m, efConstruction, quantized, vectorDirectory);
+        }
+        int node = index.add(embedding);
+        while (documents.size() <= node) {
+            documents.add(null);
+        }
+        documents.set(node, document);
+        nodeById.put(document.getId(), node);
+    }
+
+    private void removeNode(int node) {
+        Document document = documents.set(node, null);
+        if (document != null) {
+            nodeById.remove(document.getId());
+            index.markDeleted(node);
+        }
+    }
+
+    /**
+     * 已删除的节点过多时，用剩余节点的向量重建索引
+     */
+    private void rebuildIfNeeded() {
+        if (index == null || index.size() == 0
+                || (double) (index.size() - index.liveSize()) / index.size() < REBUILD_DELETED_RATIO) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        HnswIndex old = index;
+        List<Document> live = new ArrayList<>(nodeById.size());
+        List<float[]> vectors = new ArrayList<>(nodeById.size());
+        for (int node = 0; node < old.size(); node++) {
+            if (!old.isDeleted(node) && documents.get(node) != null) {
+                live.add(documents.get(node));
+                vectors.add(old.vector(node));
+            }
+        }
+        index = new HnswIndex(old.dimensions(), m, efConstruction, quantized, vectorDirectory);
+        documents.clear();
+        nodeById.clear();
+        for (int i = 0; i < live.size(); i++) {
+            insert(live.get(i), vectors.get(i));
+        }
+        old.close();
+        log.info("Rebuilt HNSW index with {} of {} nodes in {}ms", live.size(), old.size(), System.currentTimeMillis() - start);
+    }
+
+    // ========== 持久化 ==========
+
+    /**
+     * 保存索引和文档，先写临时文件再原子替换
+     */
+    public void save(Path path) {
+        lock.readLock().lock();
+        try {
+            Files.createDirectories(path.toAbsolutePath().getParent());
+            Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                output.writeInt(MAGIC);
+                output.writeInt(VERSION);
+                output.writeBoolean(index != null);
+                if (index != null) {
+                    index.writeTo(output);
+                    output.writeInt(documents.size());
+                    for (Document document : documents) {
+                        output.writeBoolean(document != null);
+                        if (document != null) {
+                            output.writeUTF(document.getId());
+                            writeString(output, document.getText());
+                            writeString(output, JSONUtil.toJsonStr(document.getMetadata()));
+                        }
+                    }
+                }
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log.info("Saved HNSW vector store with {} documents to {}", nodeById.size(), path);
+        } catch (IOException e) {
+            log.error("Failed to save HNSW vector store {}", path, e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 从文件加载索引和文档，文件不存在或损坏时保持为空
+     *
+     * @return 是否加载成功
+     */
+    public boolean load(Path path) {
+        if (!Files.exists(path)) {
+            return false;
+        }
+        lock.writeLock().lock();
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                log.warn("Ignoring HNSW vector store with unknown format: {}", path);
+                return false;
+            }
+            if (!input.readBoolean()) {
+                return true;
+            }
+            HnswIndex loadedIndex = HnswIndex.readFrom(input, quantized, vectorDirectory);
+            List<Document> loadedDocuments = new ArrayList<>();
+            Map<String, Integer> loadedNodes = new HashMap<>();
+            try {
+                int count = input.readInt();
+                if (count != loadedIndex.size()) {
+                    throw new IOException("Document count " + count + " does not match index size " + loadedIndex.size());
+                }
+                for (int node = 0; node < count; node++) {
+                    if (!input.readBoolean()) {
+                        loadedDocuments.add(null);
+                        continue;
+                    }
+                    String id = input.readUTF();
+                    String text = readString(input);
+                    Map<String, Object> metadata = new HashMap<>(JSONUtil.parseObj(readString(input)));
+                    loadedDocuments.add(Document.builder().id(id).text(text).metadata(metadata).build());
+                    if (loadedNodes.put(id, node) != null) {
+                        throw new IOException("Duplicate document id " + id);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                loadedIndex.close();
+                throw e;
+            }
+            if (index != null) {
+                index.close();
+            }
+            index = loadedIndex;
+            documents.clear();
+            documents.addAll(loadedDocuments);
+            nodeById.clear();
+            nodeById.putAll(loadedNodes);
+            log.info("Loaded HNSW vector store with {} documents from {}", nodeById.size(), path);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            // 文件损坏时可能抛出越界、非法参数或 JSON 解析等运行时异常，同样按加载失败处理
+            log.warn("Failed to load HNSW vector store {}, documents will be re-indexed", path, e);
+            return false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 释放堆外向量，由 Spring 在容器关闭时调用
+     */
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            if (index != null) {
+                index.close();
+                index = null;
+            }
+            documents.clear();
+            nodeById.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * writeUTF 限制 64KB，长文本按字节数组写入
+     */
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static String readString(DataInputStream input) throws IOException {
+        int length = input.readInt();
+        if (length < 0 || length > MAX_STRING_BYTES) {
+            throw new IOException("Invalid string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
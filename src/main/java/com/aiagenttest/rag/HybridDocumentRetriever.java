@@ -0,0 +1,109 @@
+package com.aiagenttest.rag;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.rag.Query;
+import org.springframework.ai.rag.retrieval.search.DocumentRetriever;
+import org.springframework.ai.vectorstore.SearchRequest;
+import org.springframework.ai.vectorstore.VectorStore;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 本地混合检索：向量检索 + BM25 关键词检索，用倒数排名融合（RRF）合并结果
+ * <p>
+ * 两路各取 candidates 个候选，每个文档的得分为各路中 1 / (rrfK + 排名) 之和，取得分最高的 topK 个。
+ * RRF 只依赖排名，不需要把余弦相似度和 BM25 得分换算到同一尺度。
+ * <p>
+ * 设置了 fallback 时作为云端知识库前面的快速路径：向量检索最高相似度低于 minSimilarity，
+ * 且关键词检索最高的归一化得分（见 {@link Bm25Index#search}）低于 minLexicalScore 时，
+ * 认为本地知识库无法回答，转交 fallback（如 DashScope 云端检索）。中文按二元组分词，「怎么」「恋爱」这类常见词
+ * 几乎总能命中某个文档，因此不能只看关键词检索是否有结果。
+ */
+@Slf4j
+public class HybridDocumentRetriever implements DocumentRetriever {
+
+    private final VectorStore vectorStore;
+
+    private final Bm25Index bm25Index;
+
+    private final int topK;
+
+    private final int candidates;
+
+    private final int rrfK;
+
+    private final double minSimilarity;
+
+    private final double minLexicalScore;
+
+    // 本地结果不可信时使用的检索器，为 null 时总是返回本地结果
+    private final DocumentRetriever fallback;
+
+    HybridDocumentRetriever(VectorStore vectorStore, Bm25Index bm25Index, int topK, int candidates, int rrfK,
+                            double minSimilarity, double minLexicalScore, DocumentRetriever fallback) {
+        this.vectorStore = vectorStore;
+        this.bm25Index = bm25Index;
+        this.topK = topK;
+        this.candidates = Math.max(candidates, topK);
+        this.rrfK = rrfK;
+        this.minSimilarity = minSimilarity;
+        this.minLexicalScore = minLexicalScore;
+        this.fallback = fallback;
+    }
+
+    @Override
+    public List<Document> retrieve(Query query) {
+        long start = System.currentTimeMillis();
+        List<Document> dense = vectorStore.similaritySearch(SearchRequest.builder()
+                .query(query.text())
+                .topK(candidates)
+                .build());
+        List<Bm25Index.ScoredDocument> lexical = bm25Index.search(query.text(), candidates);
+
+        double bestLexicalScore = lexical.isEmpty() ? 0 : lexical.get(0).normalizedScore();
+        if (fallback != null && bestLexicalScore < minLexicalScore && bestScore(dense) < minSimilarity) {
+            log.info("Local retrieval not confident (best similarity {}, best lexical score {}), falling back",
+                    bestScore(dense), bestLexicalScore);
+            return fallback.retrieve(query);
+        }
+
+        Map<String, Double> scores = new HashMap<>();
+        Map<String, Document> byId = new LinkedHashMap<>();
+        for (int rank = 0; rank < dense.size(); rank++) {
+            Document document = dense.get(rank);
+            scores.merge(document.getId(), 1.0 / (rrfK + rank + 1), Double::sum);
+            byId.putIfAbsent(document.getId(), document);
+        }
+        for (int rank = 0; rank < lexical.size(); rank++) {
+            Document document = lexical.get(rank).document();
+            scores.merge(document.getId(), 1.0 / (rrfK + rank + 1), Double::sum);
+            byId.putIfAbsent(document.getId(), document);
+        }
+        List<Document> results = new ArrayList<>(byId.values());
+        results.sort((a, b) -> Double.compare(scores.get(b.getId()), scores.get(a.getId())));
+        if (results.size() > topK) {
+            results = results.subList(0, topK);
+        }
+        List<Document> fused = new ArrayList<>(results.size());
+        for (Document document : results) {
+            fused.add(Document.builder()
+                    .id(document.getId())
+                    .text(document.getText())
+                    .metadata(document.getMetadata())
+                    .score(scores.get(document.getId()))
+                    .build());
+        }
+        log.debug("Hybrid retrieval: {} dense, {} lexical, {} fused in {}ms",
+                dense.size(), lexical.size(), fused.size(), System.currentTimeMillis() - start);
+        return fused;
+    }
+
+    private static double bestScore(List<Document> documents) {
+        return documents.isEmpty() || documents.get(0).getScore() == null ? 0 : documents.get(0).getScore();
+    }
+}
@@ -1,14 +1,17 @@
 package com.aiagenttest.rag;
 
+import cn.hutool.core.util.StrUtil;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.ai.document.Document;
 import org.springframework.ai.reader.markdown.MarkdownDocumentReader;
 import org.springframework.ai.reader.markdown.config.MarkdownDocumentReaderConfig;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.Resource;
 import org.springframework.core.io.support.ResourcePatternResolver;
 import org.springframework.stereotype.Component;
 
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -18,30 +21,62 @@ class LoveAppDocumentLoader {
 
     private final ResourcePatternResolver resourcePatternResolver;
 
-    LoveAppDocumentLoader(ResourcePatternResolver resourcePatternResolver) {
+    private final MarkdownChunkSplitter markdownChunkSplitter;
+
+    // 知识库目录，为空时读取 classpath:document 下的文件（此时不能监听文件变化）
+    private final String documentDirectory;
+
+    LoveAppDocumentLoader(ResourcePatternResolver resourcePatternResolver,
+                          MarkdownChunkSplitter markdownChunkSplitter,
+                          @Value("${rag.documents.directory:}") String documentDirectory) {
         this.resourcePatternResolver = resourcePatternResolver;
+        this.markdownChunkSplitter = markdownChunkSplitter;
+        this.documentDirectory = documentDirectory;
+    }
+
+    /**
+     * 知识库目录，未配置时返回 null
+     */
+    public Path getDocumentDirectory() {
+        return StrUtil.isNotBlank(documentDirectory) ? Path.of(documentDirectory).toAbsolutePath() : null;
     }
 
     public List<Document> loadMarkdowns() {
         List<Document> allDocuments = new ArrayList<>();
+        for (Resource resource : listMarkdowns()) {
+            allDocuments.addAll(loadMarkdown(resource));
+        }
+        return allDocuments;
+    }
+
+    /**
+     * 列出需要加载的 Markdown 文件
+     */
+    public List<Resource> listMarkdowns() {
         try {
             // 这里可以修改为你要加载的多个 Markdown 文件的路径模式
-            Resource[] resources = resourcePatternResolver.getResources("classpath:document/*.md");
-            for (Resource resource : resources) {
-                String fileName = resource.getFilename();
-                MarkdownDocumentReaderConfig config = MarkdownDocumentReaderConfig.builder()
-                        .withHorizontalRuleCreateDocument(true)
-                        .withIncludeCodeBlock(false)
-                        .withIncludeBlockquote(false)
-                        .withAdditionalMetadata("filename", fileName) //为每个文档对象添加名为fileName的元数据
-                        .build();
-                MarkdownDocumentReader reader = new MarkdownDocumentReader(resource, config);
-                allDocuments.addAll(reader.get());
-            }
+            Path directory = getDocumentDirectory();
+            String pattern = directory != null ? directory.toUri() + "*.md" : "classpath:document/*.md";
+            return List.of(resourcePatternResolver.getResources(pattern));
         } catch (IOException e) {
             log.error("Markdown 文档加载失败", e);
+            return List.of();
         }
-        return allDocuments;
+    }
+
+    /**
+     * 读取并切分单个 Markdown 文件：先按标题和分隔线切分，再按 token 数调整分片大小
+     */
+    public List<Document> loadMarkdown(Resource resource) {
+        String fileName = resource.getFilename();
+        MarkdownDocumentReaderConfig config = MarkdownDocumentReaderConfig.builder()
+                .withHorizontalRuleCreateDocument(true)
+                .withIncludeCodeBlock(false)
+                .withIncludeBlockquote(false)
+                .withAdditionalMetadata("filename", fileName) //为每个文档对象添加名为fileName的元数据
+                .build();
+        MarkdownDocumentReader reader = new MarkdownDocumentReader(resource, config);
+        return markdownChunkSplitter.split(reader.get());
     }
 }
 
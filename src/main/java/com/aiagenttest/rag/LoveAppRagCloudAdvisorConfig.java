@@ -7,12 +7,21 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.ai.chat.client.advisor.RetrievalAugmentationAdvisor;
 import org.springframework.ai.chat.client.advisor.api.Advisor;
 import org.springframework.ai.rag.retrieval.search.DocumentRetriever;
+import org.springframework.ai.vectorstore.VectorStore;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.util.concurrent.TimeUnit;
+
 /**
  * 自定义基于阿里云知识库服务的 RAG 增强顾问
+ * <p>
+ * 检索方式由 rag.retrieval.mode 决定：
+ * cloud（默认）只使用云端知识库；hybrid 只使用本地向量 + BM25 混合检索；
+ * local-first 先做本地混合检索，本地结果不可信时再请求云端知识库。
+ * 检索器外层有轮次缓存和全局热门问题缓存，代理一轮中的多个步骤只检索一次。
+ * 云端检索带延迟预算、对冲请求和熔断，云端不可用时降级为本地混合检索。
  */
 @Configuration
 @Slf4j
@@ -21,20 +30,112 @@ class LoveAppRagCloudAdvisorConfig {
     @Value("${spring.ai.dashscope.api-key}")
     private String dashScopeApiKey;
 
+    @Value("${rag.retrieval.mode:cloud}")
+    private String retrievalMode;
+
+    // 混合检索返回的文档数
+    @Value("${rag.retrieval.hybrid.top-k:3}")
+    private int hybridTopK;
+
+    // 向量检索和 BM25 各自的候选数
+    @Value("${rag.retrieval.hybrid.candidates:20}")
+    private int hybridCandidates;
+
+    // RRF 平滑常数
+    @Value("${rag.retrieval.hybrid.rrf-k:60}")
+    private int hybridRrfK;
+
+    // local-first 模式下，本地向量检索最高相似度低于该值且关键词未命中时转交云端
+    @Value("${rag.retrieval.hybrid.min-similarity:0.5}")
+    private double hybridMinSimilarity;
+
+    @Value("${rag.retrieval.hybrid.min-lexical-score:0.2}")
+    private double hybridMinLexicalScore;
+
+    @Value("${rag.retrieval.cache.enabled:true}")
+    private boolean cacheEnabled;
+
+    @Value("${rag.retrieval.cache.turn-ttl-seconds:120}")
+    private long cacheTurnTtlSeconds;
+
+    @Value("${rag.retrieval.cache.turn-max-entries:1000}")
+    private int cacheTurnMaxEntries;
+
+    @Value("${rag.retrieval.cache.global-ttl-minutes:60}")
+    private long cacheGlobalTtlMinutes;
+
+    @Value("${rag.retrieval.cache.global-max-entries:500}")
+    private int cacheGlobalMaxEntries;
+
+    // 同一问题检索达到该次数后进入全局缓存
+    @Value("${rag.retrieval.cache.popular-threshold:3}")
+    private int cachePopularThreshold;
+
+    // 单次云端检索的最长等待时间
+    @Value("${rag.retrieval.cloud.budget-millis:3000}")
+    private long cloudBudgetMillis;
+
+    @Value("${rag.retrieval.cloud.hedge.enabled:true}")
+    private boolean cloudHedgeEnabled;
+
+    // 对冲请求的最短等待时间，避免 p95 很低时频繁重复请求
+    @Value("${rag.retrieval.cloud.hedge.min-millis:300}")
+    private long cloudHedgeMinMillis;
+
+    @Value("${rag.retrieval.cloud.circuit.failure-threshold:5}")
+    private int cloudFailureThreshold;
+
+    @Value("${rag.retrieval.cloud.circuit.open-seconds:30}")
+    private long cloudOpenSeconds;
+
+    @Value("${rag.retrieval.cloud.max-concurrency:16}")
+    private int cloudMaxConcurrency;
+
+    @Bean
+    public ResilientDocumentRetriever loveAppCloudDocumentRetriever(VectorStore loveAppVectorStore, Bm25Index bm25Index) {
+        return new ResilientDocumentRetriever(cloudDocumentRetriever(),
+                new HybridDocumentRetriever(loveAppVectorStore, bm25Index,
+                        hybridTopK, hybridCandidates, hybridRrfK, hybridMinSimilarity, hybridMinLexicalScore, null),
+                cloudBudgetMillis, cloudHedgeEnabled, cloudHedgeMinMillis, cloudFailureThreshold,
+                TimeUnit.SECONDS.toMillis(cloudOpenSeconds), cloudMaxConcurrency);
+    }
+
+    @Bean
+    public CachingDocumentRetriever loveAppDocumentRetriever(VectorStore loveAppVectorStore, Bm25Index bm25Index,
+                                                             ResilientDocumentRetriever loveAppCloudDocumentRetriever,
+                                                             DocumentWatcher documentWatcher) {
+        DocumentRetriever documentRetriever = switch (retrievalMode.toLowerCase()) {
+            case "hybrid" -> new HybridDocumentRetriever(loveAppVectorStore, bm25Index,
+                    hybridTopK, hybridCandidates, hybridRrfK, hybridMinSimilarity, hybridMinLexicalScore, null);
+            case "local-first" -> new HybridDocumentRetriever(loveAppVectorStore, bm25Index,
+                    hybridTopK, hybridCandidates, hybridRrfK, hybridMinSimilarity, hybridMinLexicalScore, loveAppCloudDocumentRetriever);
+            default -> loveAppCloudDocumentRetriever;
+        };
+        log.info("RAG retrieval mode: {}", retrievalMode);
+        CachingDocumentRetriever cachingDocumentRetriever = new CachingDocumentRetriever(documentRetriever, cacheEnabled,
+                TimeUnit.SECONDS.toMillis(cacheTurnTtlSeconds), cacheTurnMaxEntries,
+                TimeUnit.MINUTES.toMillis(cacheGlobalTtlMinutes), cacheGlobalMaxEntries, cachePopularThreshold);
+        // 本地知识库文件变化后清空缓存
+        documentWatcher.addChangeListener(cachingDocumentRetriever::invalidateAll);
+        return cachingDocumentRetriever;
+    }
+
     @Bean
-    public Advisor loveAppRagCloudAdvisor() {
+    public Advisor loveAppRagCloudAdvisor(CachingDocumentRetriever loveAppDocumentRetriever) {
+        return RetrievalAugmentationAdvisor.builder()
+                .documentRetriever(loveAppDocumentRetriever)
+                .build();
+    }
+
+    private DocumentRetriever cloudDocumentRetriever() {
         DashScopeApi dashScopeApi = new DashScopeApi(dashScopeApiKey);
         final String KNOWLEDGE_INDEX = "心理健康";  //知识库名称
-        DocumentRetriever documentRetriever = new DashScopeDocumentRetriever(dashScopeApi,
+        return new DashScopeDocumentRetriever(dashScopeApi,
                 DashScopeDocumentRetrieverOptions.builder()
                         .withIndexName(KNOWLEDGE_INDEX)
                         .withDenseSimilarityTopK(5)  // 主要的数量控制
                         .withRerankTopN(3)           // 最终返回3个最相关的
                         .withEnableReranking(true)   // 启用重排序
                         .build());
-        return RetrievalAugmentationAdvisor.builder()
-                .documentRetriever(documentRetriever)
-                .build();
     }
 }
-
@@ -1,34 +1,108 @@
 package com.aiagenttest.rag;
 
 
+import cn.hutool.core.util.StrUtil;
+import com.aiagenttest.constant.FileConstant;
 import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.ai.document.Document;
 import org.springframework.ai.embedding.EmbeddingModel;
 import org.springframework.ai.vectorstore.SimpleVectorStore;
 import org.springframework.ai.vectorstore.VectorStore;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.nio.file.Path;
 import java.util.List;
 
 /**
  * 向量数据库配置（初始化基于内存的向量数据库 Bean）
+ * <p>
+ * 文档向量保存在本地快照中，重启时只为新增或修改的分片调用向量模型。
+ * 默认使用 HNSW 索引（rag.vector-store.type=hnsw），设置为 simple 时使用 SimpleVectorStore 线性扫描。
+ * 配置了知识库目录（rag.documents.directory）时，目录中的文件变化会增量更新到向量数据库。
  */
 
 @Configuration
+@Slf4j
 public class LoveAppVectorStoreConfig {
 
     @Resource
-    private LoveAppDocumentLoader loveAppDocumentLoader;
+    private DocumentIngestionPipeline documentIngestionPipeline;
+
+    @Resource
+    private DocumentWatcher documentWatcher;
+
+    @Resource
+    private Bm25Index bm25Index;
+
+    // 向量快照文件路径，为空时保存在 tmp/embedding 目录下
+    @Value("${rag.embedding-snapshot.path:}")
+    private String embeddingSnapshotPath;
+
+    // 向量模型名称和维度（0 表示模型默认维度），写入向量快照文件头，变化时丢弃旧快照
+    @Value("${spring.ai.dashscope.embedding.options.model:text-embedding-v1}")
+    private String embeddingModelName;
+
+    @Value("${spring.ai.dashscope.embedding.options.dimensions:0}")
+    private int embeddingDimensions;
+
+    // 向量数据库类型：hnsw 或 simple
+    @Value("${rag.vector-store.type:hnsw}")
+    private String vectorStoreType;
+
+    // HNSW 每个节点的邻居数
+    @Value("${rag.vector-store.hnsw.m:16}")
+    private int hnswM;
+
+    // HNSW 建图时的搜索宽度
+    @Value("${rag.vector-store.hnsw.ef-construction:200}")
+    private int hnswEfConstruction;
+
+    // HNSW 查询时的搜索宽度
+    @Value("${rag.vector-store.hnsw.ef-search:64}")
+    private int hnswEfSearch;
+
+    // HNSW 索引文件路径，为空时保存在 tmp/vector 目录下
+    @Value("${rag.vector-store.hnsw.path:}")
+    private String hnswIndexPath;
+
+    // 向量量化方式：int8（原始向量放在内存映射文件中，只用于重排）或 none（原始向量保存在直接内存中）
+    @Value("${rag.vector-store.hnsw.quantization:int8}")
+    private String hnswQuantization;
 
     @Bean
     VectorStore loveAppVectorStore(EmbeddingModel dashscopeEmbeddingModel) {
-        SimpleVectorStore simpleVectorStore = SimpleVectorStore.builder(dashscopeEmbeddingModel)
-                .build();
+        Path snapshotPath = StrUtil.isNotBlank(embeddingSnapshotPath)
+                ? Path.of(embeddingSnapshotPath)
+                : Path.of(FileConstant.FILE_SAVE_DIR, "embedding", "love-app.snapshot");
+        SnapshotEmbeddingModel embeddingModel = new SnapshotEmbeddingModel(dashscopeEmbeddingModel, snapshotPath,
+                embeddingModelName, embeddingDimensions);
         // 加载文档
-        List<Document> documents = loveAppDocumentLoader.loadMarkdowns();
-        simpleVectorStore.add(documents);
-        return simpleVectorStore;
+        List<Document> documents = documentIngestionPipeline.load();
+        bm25Index.replaceAll(documents);
+        if ("simple".equalsIgnoreCase(vectorStoreType)) {
+            SimpleVectorStore simpleVectorStore = SimpleVectorStore.builder(embeddingModel)
+                    .build();
+            documentIngestionPipeline.ingest(embeddingModel, simpleVectorStore, documents, true);
+            documentWatcher.watch(simpleVectorStore, embeddingModel, documents, null);
+            return simpleVectorStore;
+        }
+        Path indexPath = StrUtil.isNotBlank(hnswIndexPath)
+                ? Path.of(hnswIndexPath)
+                : Path.of(FileConstant.FILE_SAVE_DIR, "vector", "love-app.hnsw");
+        boolean quantized = "int8".equalsIgnoreCase(hnswQuantization);
+        HnswVectorStore hnswVectorStore = new HnswVectorStore(embeddingModel, hnswM, hnswEfConstruction, hnswEfSearch,
+                quantized, quantized ? indexPath.toAbsolutePath().getParent() : null);
+        hnswVectorStore.load(indexPath);
+        // 未变化的分片不会重新建图，文档中已删除的分片从索引中移除
+        documentIngestionPipeline.ingest(embeddingModel, hnswVectorStore, documents, true);
+        hnswVectorStore.retain(documents.stream().map(Document::getId).toList());
+        hnswVectorStore.save(indexPath);
+        log.info("HNSW vector store ready: {} documents, {} KB resident vectors",
+                hnswVectorStore.size(), hnswVectorStore.getResidentVectorBytes() / 1024);
+        documentWatcher.watch(hnswVectorStore, embeddingModel, documents, () -> hnswVectorStore.save(indexPath));
+        return hnswVectorStore;
     }
 }
-
@@ -0,0 +1,241 @@
+package com.aiagenttest.rag;
+
+import cn.hutool.core.io.FileUtil;
+import cn.hutool.core.util.StrUtil;
+import com.aiagenttest.utils.TokenEstimator;
+import org.springframework.ai.document.Document;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * 按 token 数调整 Markdown 分片大小
+ * <p>
+ * MarkdownDocumentReader 按标题和分隔线切分，分片大小取决于文档写法。该阶段在其之后按 {@link TokenEstimator} 的估算值处理：
+ * <ul>
+ *     <li>超过 targetTokens 的小节依次按段落、句子、固定长度切开，相邻分片重叠约 overlapTokens，避免答案被切断；</li>
+ *     <li>不足 minTokens 的小节与同一文件中紧随其后的小节合并，合并后不超过 targetTokens；</li>
+ *     <li>分片开头加上「文件名 / 小节标题」，标题只在 metadata 中时向量和关键词检索都看不到它。</li>
+ * </ul>
+ */
+@Component
+class MarkdownChunkSplitter {
+
+    /**
+     * 分片大小统计（token 数）
+     */
+    record ChunkStats(int count, int min, int p50, int p90, int max, int average) {
+
+        @Override
+        public String toString() {
+            return String.format("count=%d, min=%d, p50=%d, p90=%d, max=%d, avg=%d", count, min, p50, p90, max, average);
+        }
+    }
+
+    private static final Pattern PARAGRAPH_SEPARATOR = Pattern.compile("\\s*\\n\\s*");
+
+    // 句子结束标点之后切分，标点保留在句尾
+    private static final Pattern SENTENCE_SEPARATOR = Pattern.compile("(?<=[。！？!?；;])");
+
+    private final boolean enabled;
+
+    private final int targetTokens;
+
+    private final int minTokens;
+
+    private final int overlapTokens;
+
+    private final boolean includeHeading;
+
+    MarkdownChunkSplitter(@Value("${rag.chunking.enabled:true}") boolean enabled,
+                          @Value("${rag.chunking.target-tokens:400}") int targetTokens,
+                          @Value("${rag.chunking.min-tokens:64}") int minTokens,
+                          @Value("${rag.chunking.overlap-tokens:50}") int overlapTokens,
+                          @Value("${rag.chunking.include-heading:true}") boolean includeHeading) {
+        this.enabled = enabled;
+        this.targetTokens = Math.max(16, targetTokens);
+        this.minTokens = Math.min(minTokens, this.targetTokens);
+        this.overlapTokens = Math.max(0, Math.min(overlapTokens, this.targetTokens / 2));
+        this.includeHeading = includeHeading;
+    }
+
+    int getTargetTokens() {
+        return targetTokens;
+    }
+
+    /**
+     * 调整一个文件切分出的小节，返回的分片保持文档顺序
+     */
+    List<Document> split(List<Document> sections) {
+        if (!enabled) {
+            return sections;
+        }
+        List<Document> chunks = new ArrayList<>();
+        Document pending = null;
+        String pendingText = null;
+        for (Document section : sections) {
+            String text = withHeading(section);
+            if (StrUtil.isBlank(text)) {
+                continue;
+            }
+            if (pending != null) {
+                String merged = pendingText + "\n\n" + text;
+                if (TokenEstimator.estimate(merged) <= targetTokens) {
+                    pendingText = merged;
+                    if (TokenEstimator.estimate(pendingText) >= minTokens) {
+                        chunks.add(copy(pending, pendingText));
+                        pending = null;
+                    }
+                    continue;
+                }
+                chunks.add(copy(pending, pendingText));
+                pending = null;
+            }
+            int tokens = TokenEstimator.estimate(text);
+            if (tokens < minTokens) {
+                // 过短的小节等待与下一个小节合并
+                pending = section;
+                pendingText = text;
+            } else if (tokens <= targetTokens) {
+                chunks.add(copy(section, text));
+            } else {
+                String heading = heading(section);
+                for (String piece : pack(units(section.getText()), targetTokens - TokenEstimator.estimate(heading))) {
+                    chunks.add(copy(section, heading.isEmpty() ? piece : heading + "\n" + piece));
+                }
+            }
+        }
+        if (pending != null) {
+            chunks.add(copy(pending, pendingText));
+        }
+        return chunks;
+    }
+
+    /**
+     * 统计分片的 token 数分布
+     */
+    static ChunkStats stats(List<Document> chunks) {
+        if (chunks.isEmpty()) {
+            return new ChunkStats(0, 0, 0, 0, 0, 0);
+        }
+        int[] tokens = chunks.stream().mapToInt(chunk -> TokenEstimator.estimate(chunk.getText())).sorted().toArray();
+        long total = Arrays.stream(tokens).asLongStream().sum();
+        return new ChunkStats(tokens.length, tokens[0], percentile(tokens, 0.5), percentile(tokens, 0.9),
+                tokens[tokens.length - 1], (int) (total / tokens.length));
+    }
+
+    private static int percentile(int[] sorted, double p) {
+        return sorted[Math.max(0, (int) Math.ceil(sorted.length * p) - 1)];
+    }
+
+    /**
+     * 把文本拆成不超过 targetTokens 的单元：段落，过长的段落拆成句子，过长的句子按长度硬切
+     */
+    private List<String> units(String text) {
+        List<String> units = new ArrayList<>();
+        for (String paragraph : PARAGRAPH_SEPARATOR.split(text.trim())) {
+            if (StrUtil.isBlank(paragraph)) {
+                continue;
+            }
+            if (TokenEstimator.estimate(paragraph) <= targetTokens) {
+                units.add(paragraph.trim());
+                continue;
+            }
+            for (String sentence : SENTENCE_SEPARATOR.split(paragraph)) {
+                if (StrUtil.isBlank(sentence)) {
+                    continue;
+                }
+                int tokens = TokenEstimator.estimate(sentence);
+                if (tokens <= targetTokens) {
+                    units.add(sentence.trim());
+                    continue;
+                }
+                // 按平均每 token 字符数估算切分长度
+                int window = Math.max(1, (int) ((long) sentence.length() * targetTokens / tokens));
+                for (int start = 0; start < sentence.length(); start += window) {
+                    units.add(sentence.substring(start, Math.min(sentence.length(), start + window)).trim());
+                }
+            }
+        }
+        return units;
+    }
+
+    /**
+     * 按顺序把单元装入不超过 budget 的分片，新分片以上一分片末尾不超过 overlapTokens 的单元开头
+     */
+    private List<String> pack(List<String> units, int budget) {
+        List<String> pieces = new ArrayList<>();
+        List<String> current = new ArrayList<>();
+        int currentTokens = 0;
+        // current 开头属于重叠部分的单元数
+        int overlapCount = 0;
+        for (String unit : units) {
+            int tokens = TokenEstimator.estimate(unit);
+            if (current.size() > overlapCount && currentTokens + tokens > budget) {
+                pieces.add(join(current));
+                List<String> overlap = new ArrayList<>();
+                int overlapTokensSoFar = 0;
+                for (int i = current.size() - 1; i >= 0; i--) {
+                    int unitTokens = TokenEstimator.estimate(current.get(i));
+                    if (overlapTokensSoFar + unitTokens > overlapTokens || overlapTokensSoFar + unitTokens + tokens > budget) {
+                        break;
+                    }
+                    overlap.add(0, current.get(i));
+                    overlapTokensSoFar += unitTokens;
+                }
+                current = overlap;
+                currentTokens = overlapTokensSoFar;
+                overlapCount = overlap.size();
+            }
+            current.add(unit);
+            currentTokens += tokens;
+        }
+        if (current.size() > overlapCount) {
+            pieces.add(join(current));
+        }
+        return pieces;
+    }
+
+    private static String join(List<String> units) {
+        return String.join("\n", units);
+    }
+
+    private String withHeading(Document section) {
+        String text = StrUtil.trim(section.getText());
+        if (StrUtil.isBlank(text)) {
+            return "";
+        }
+        String heading = heading(section);
+        return heading.isEmpty() ? text : heading + "\n" + text;
+    }
+
+    /**
+     * 「文件名 / 小节标题」，关闭 includeHeading 时为空
+     */
+    private String heading(Document section) {
+        if (!includeHeading) {
+            return "";
+        }
+        Object filename = section.getMetadata().get("filename");
+        Object title = section.getMetadata().get("title");
+        List<String> parts = new ArrayList<>(2);
+        if (filename != null) {
+            parts.add(FileUtil.mainName(filename.toString()));
+        }
+        if (title != null && StrUtil.isNotBlank(title.toString())) {
+            parts.add(title.toString().trim());
+        }
+        return String.join(" / ", parts);
+    }
+
+    private static Document copy(Document section, String text) {
+        Map<String, Object> metadata = new HashMap<>(section.getMetadata());
+        return Document.builder().text(text).metadata(metadata).build();
+    }
+}
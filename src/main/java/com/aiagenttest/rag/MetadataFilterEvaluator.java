@@ -0,0 +1,94 @@
+package com.aiagenttest.rag;
+
+import org.springframework.ai.vectorstore.filter.Filter;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.IntPredicate;
+
+/**
+ * 在文档 metadata 上求值过滤表达式
+ * <p>
+ * 支持 EQ、NE、GT、GTE、LT、LTE、IN、NIN、AND、OR、NOT 及分组，
+ * 例如 {@code filename == '恋爱常见问题和回答 - 单身篇.md'} 或 {@code filename in ['a.md', 'b.md']}。
+ * 数值按 double 比较，其余按字符串比较。
+ */
+final class MetadataFilterEvaluator {
+
+    private MetadataFilterEvaluator() {
+    }
+
+    static boolean matches(Filter.Operand operand, Map<String, Object> metadata) {
+        if (operand instanceof Filter.Group group) {
+            return matches(group.content(), metadata);
+        }
+        if (!(operand instanceof Filter.Expression expression)) {
+            throw new IllegalArgumentException("Unsupported filter operand: " + operand);
+        }
+        return switch (expression.type()) {
+            case AND -> matches(expression.left(), metadata) && matches(expression.right(), metadata);
+            case OR -> matches(expression.left(), metadata) || matches(expression.right(), metadata);
+            case NOT -> !matches(expression.left(), metadata);
+            case EQ -> equalsValue(actual(expression, metadata), expected(expression));
+            case NE -> !equalsValue(actual(expression, metadata), expected(expression));
+            case GT -> compare(actual(expression, metadata), expected(expression), result -> result > 0);
+            case GTE -> compare(actual(expression, metadata), expected(expression), result -> result >= 0);
+            case LT -> compare(actual(expression, metadata), expected(expression), result -> result < 0);
+            case LTE -> compare(actual(expression, metadata), expected(expression), result -> result <= 0);
+            case IN -> in(actual(expression, metadata), expected(expression));
+            case NIN -> !in(actual(expression, metadata), expected(expression));
+            default -> throw new IllegalArgumentException("Unsupported filter expression type: " + expression.type());
+        };
+    }
+
+    private static Object actual(Filter.Expression expression, Map<String, Object> metadata) {
+        if (!(expression.left() instanceof Filter.Key key)) {
+            throw new IllegalArgumentException("Left operand must be a key: " + expression);
+        }
+        // 键可能带引号，例如 "file name"
+        String name = key.key();
+        if (name.length() > 1 && (name.startsWith("\"") && name.endsWith("\"") || name.startsWith("'") && name.endsWith("'"))) {
+            name = name.substring(1, name.length() - 1);
+        }
+        return metadata.get(name);
+    }
+
+    private static Object expected(Filter.Expression expression) {
+        if (!(expression.right() instanceof Filter.Value value)) {
+            throw new IllegalArgumentException("Right operand must be a value: " + expression);
+        }
+        return value.value();
+    }
+
+    private static boolean equalsValue(Object actual, Object expected) {
+        if (actual instanceof Number && expected instanceof Number) {
+            return ((Number) actual).doubleValue() == ((Number) expected).doubleValue();
+        }
+        return actual != null && expected != null && Objects.equals(actual.toString(), expected.toString());
+    }
+
+    /**
+     * 缺少字段时视为不满足条件
+     */
+    private static boolean compare(Object actual, Object expected, IntPredicate condition) {
+        if (actual == null || expected == null) {
+            return false;
+        }
+        if (actual instanceof Number && expected instanceof Number) {
+            return condition.test(Double.compare(((Number) actual).doubleValue(), ((Number) expected).doubleValue()));
+        }
+        return condition.test(actual.toString().compareTo(expected.toString()));
+    }
+
+    private static boolean in(Object actual, Object expected) {
+        Collection<?> values = expected instanceof Collection<?> collection ? collection : List.of(expected);
+        for (Object value : values) {
+            if (equalsValue(actual, value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
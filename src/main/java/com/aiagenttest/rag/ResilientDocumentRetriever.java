@@ -0,0 +1,330 @@
+package com.aiagenttest.rag;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.rag.Query;
+import org.springframework.ai.rag.retrieval.search.DocumentRetriever;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 带超时、对冲请求和熔断的检索器
+ * <p>
+ * 包装云端知识库检索，限制单次检索的最长耗时：
+ * <ul>
+ *     <li>延迟预算：超过 budgetMillis 仍未返回时放弃等待，按失败处理；</li>
+ *     <li>对冲请求：第一次请求超过近期 p95 耗时（不低于 hedgeMinMillis）仍未返回时再发一次，取先返回的结果；</li>
+ *     <li>熔断：连续失败 failureThreshold 次后熔断 openMillis，期间不请求云端；到期后放行一个试探请求，成功则恢复。</li>
+ * </ul>
+ * 失败、超时和熔断期间降级到本地检索器，本地检索也失败时返回空结果，对话在没有知识库内容的情况下继续。
+ * 降级结果的 metadata 带有 {@link #DEGRADED_METADATA_KEY}，缓存层据此跳过，云端恢复后不会继续命中降级结果。
+ * 请求在有界线程池中执行，线程耗尽时同样降级；这是本地负载问题，不计入云端失败，不会触发熔断。
+ */
+@Slf4j
+public class ResilientDocumentRetriever implements DocumentRetriever, AutoCloseable {
+
+    /**
+     * 降级结果的 metadata 标记
+     */
+    public static final String DEGRADED_METADATA_KEY = "degraded";
+
+    /**
+     * 一次请求的结果，hedge 表示来自对冲请求
+     */
+    private record Attempt(List<Document> documents, boolean hedge) {
+    }
+
+    private enum CircuitState {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    // 计算 p95 使用的最近成功耗时数量
+    private static final int LATENCY_WINDOW = 100;
+
+    // 样本不足时不用 p95，在预算的一半时对冲
+    private static final int MIN_LATENCY_SAMPLES = 20;
+
+    private final DocumentRetriever delegate;
+
+    // 降级检索器，为 null 时降级返回空结果
+    private final DocumentRetriever fallback;
+
+    private final long budgetMillis;
+
+    private final boolean hedgeEnabled;
+
+    private final long hedgeMinMillis;
+
+    private final int failureThreshold;
+
+    private final long openMillis;
+
+    private final ExecutorService executor;
+
+    // 最近成功请求的耗时（毫秒），环形缓冲区
+    private final long[] latencies = new long[LATENCY_WINDOW];
+
+    private int latencyCount;
+
+    private int latencyCursor;
+
+    private CircuitState state = CircuitState.CLOSED;
+
+    private int consecutiveFailures;
+
+    private long openUntil;
+
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong hedged = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong shortCircuited = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong fallbacks = new AtomicLong();
+
+    /**
+     * @param maxConcurrency 同时进行的云端请求上限（含对冲请求）
+     */
+    public ResilientDocumentRetriever(DocumentRetriever delegate, DocumentRetriever fallback, long budgetMillis,
+                                      boolean hedgeEnabled, long hedgeMinMillis, int failureThreshold,
+                                      long openMillis, int maxConcurrency) {
+        this.delegate = delegate;
+        this.fallback = fallback;
+        this.budgetMillis = budgetMillis;
+        this.hedgeEnabled = hedgeEnabled;
+        this.hedgeMinMillis = hedgeMinMillis;
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openMillis = openMillis;
+        AtomicInteger counter = new AtomicInteger();
+        // 不排队：线程耗尽说明云端已经很慢，直接降级
+        this.executor = new ThreadPoolExecutor(0, Math.max(1, maxConcurrency), 60, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), r -> {
+            Thread thread = new Thread(r, "knowledge-retriever-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    @Override
+    public List<Document> retrieve(Query query) {
+        calls.incrementAndGet();
+        if (!allowRequest()) {
+            shortCircuited.incrementAndGet();
+            return fallback(query);
+        }
+        long start = System.nanoTime();
+        CompletableFuture<Attempt> result = new CompletableFuture<>();
+        // 尚未结束的请求数，全部失败时结果才失败
+        AtomicInteger pending = new AtomicInteger(1);
+        try {
+            submit(query, result, pending, false);
+        } catch (RejectedExecutionException e) {
+            // 本地线程耗尽，云端没有收到请求，不计入失败
+            rejected.incrementAndGet();
+            releaseProbe();
+            log.warn("Knowledge base retrieval rejected, {} requests in flight", getActiveCount());
+            return fallback(query);
+        }
+        try {
+            long hedgeDelay = hedgeDelayMillis();
+            Attempt attempt;
+            if (hedgeEnabled && hedgeDelay < budgetMillis) {
+                try {
+                    attempt = result.get(hedgeDelay, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    hedged.incrementAndGet();
+                    pending.incrementAndGet();
+                    try {
+                        submit(query, result, pending, true);
+                    } catch (RejectedExecutionException hedgeRejected) {
+                        // 没有空闲线程时只等待第一次请求
+                        if (pending.decrementAndGet() == 0) {
+                            result.completeExceptionally(hedgeRejected);
+                        }
+                    }
+                    attempt = result.get(remainingMillis(start), TimeUnit.MILLISECONDS);
+                }
+            } else {
+                attempt = result.get(budgetMillis, TimeUnit.MILLISECONDS);
+            }
+            if (attempt.hedge()) {
+                hedgeWins.incrementAndGet();
+            }
+            recordSuccess(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            return attempt.documents();
+        } catch (TimeoutException e) {
+            timeouts.incrementAndGet();
+            log.warn("Knowledge base retrieval exceeded {}ms budget", budgetMillis);
+        } catch (ExecutionException e) {
+            failures.incrementAndGet();
+            log.warn("Knowledge base retrieval failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // 晚到的结果直接丢弃
+        result.cancel(false);
+        recordFailure();
+        return fallback(query);
+    }
+
+    private void submit(Query query, CompletableFuture<Attempt> result, AtomicInteger pending, boolean hedge) {
+        executor.execute(() -> {
+            if (result.isDone()) {
+                return;
+            }
+            try {
+                result.complete(new Attempt(delegate.retrieve(query), hedge));
+            } catch (RuntimeException e) {
+                if (pending.decrementAndGet() == 0) {
+                    result.completeExceptionally(e);
+                }
+            }
+        });
+    }
+
+    private List<Document> fallback(Query query) {
+        fallbacks.incrementAndGet();
+        if (fallback == null) {
+            return List.of();
+        }
+        try {
+            return markDegraded(fallback.retrieve(query));
+        } catch (RuntimeException e) {
+            log.warn("Fallback retrieval failed", e);
+            return List.of();
+        }
+    }
+
+    /**
+     * 是否包含降级结果
+     */
+    public static boolean isDegraded(List<Document> documents) {
+        return documents.stream().anyMatch(document -> Boolean.TRUE.equals(document.getMetadata().get(DEGRADED_METADATA_KEY)));
+    }
+
+    /**
+     * 复制文档并加上降级标记，不修改本地检索器返回的原对象
+     */
+    private static List<Document> markDegraded(List<Document> documents) {
+        List<Document> marked = new ArrayList<>(documents.size());
+        for (Document document : documents) {
+            Map<String, Object> metadata = new HashMap<>(document.getMetadata());
+            metadata.put(DEGRADED_METADATA_KEY, true);
+            marked.add(Document.builder()
+                    .id(document.getId())
+                    .text(document.getText())
+                    .metadata(metadata)
+                    .score(document.getScore())
+                    .build());
+        }
+        return marked;
+    }
+
+    private int getActiveCount() {
+        return ((ThreadPoolExecutor) executor).getActiveCount();
+    }
+
+    private long remainingMillis(long start) {
+        return Math.max(0, budgetMillis - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * 对冲等待时间：近期成功耗时的 p95，不低于 hedgeMinMillis
+     */
+    private synchronized long hedgeDelayMillis() {
+        if (latencyCount < MIN_LATENCY_SAMPLES) {
+            return Math.max(hedgeMinMillis, budgetMillis / 2);
+        }
+        long[] sorted = Arrays.copyOf(latencies, latencyCount);
+        Arrays.sort(sorted);
+        long p95 = sorted[(int) Math.ceil(sorted.length * 0.95) - 1];
+        return Math.max(hedgeMinMillis, p95);
+    }
+
+    private synchronized boolean allowRequest() {
+        switch (state) {
+            case OPEN -> {
+                if (System.currentTimeMillis() < openUntil) {
+                    return false;
+                }
+                // 熔断到期，放行一个试探请求
+                state = CircuitState.HALF_OPEN;
+                return true;
+            }
+            case HALF_OPEN -> {
+                return false;
+            }
+            default -> {
+                return true;
+            }
+        }
+    }
+
+    private synchronized void recordSuccess(long latencyMillis) {
+        latencies[latencyCursor] = latencyMillis;
+        latencyCursor = (latencyCursor + 1) % LATENCY_WINDOW;
+        latencyCount = Math.min(latencyCount + 1, LATENCY_WINDOW);
+        consecutiveFailures = 0;
+        if (state != CircuitState.CLOSED) {
+            log.info("Knowledge base circuit closed");
+            state = CircuitState.CLOSED;
+        }
+    }
+
+    /**
+     * 试探请求没有发出时交还试探机会，下一个请求重新试探
+     */
+    private synchronized void releaseProbe() {
+        if (state == CircuitState.HALF_OPEN) {
+            state = CircuitState.OPEN;
+            openUntil = System.currentTimeMillis();
+        }
+    }
+
+    private synchronized void recordFailure() {
+        consecutiveFailures++;
+        if (state == CircuitState.HALF_OPEN || (state == CircuitState.CLOSED && consecutiveFailures >= failureThreshold)) {
+            state = CircuitState.OPEN;
+            openUntil = System.currentTimeMillis() + openMillis;
+            log.warn("Knowledge base circuit opened for {}ms after {} consecutive failures", openMillis, consecutiveFailures);
+        }
+    }
+
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("calls", calls.get());
+        metrics.put("hedged", hedged.get());
+        metrics.put("hedgeWins", hedgeWins.get());
+        metrics.put("timeouts", timeouts.get());
+        metrics.put("failures", failures.get());
+        metrics.put("shortCircuited", shortCircuited.get());
+        metrics.put("rejected", rejected.get());
+        metrics.put("fallbacks", fallbacks.get());
+        metrics.put("hedgeDelayMillis", hedgeDelayMillis());
+        synchronized (this) {
+            metrics.put("circuit", state.name());
+        }
+        return metrics;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
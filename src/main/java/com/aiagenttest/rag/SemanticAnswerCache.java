@@ -0,0 +1,335 @@
+package com.aiagenttest.rag;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntPredicate;
+
+/**
+ * 基于问题向量相似度的 RAG 回答缓存
+ * <p>
+ * 把问过的问题向量放进 HNSW 索引（条目较少时精确扫描），新问题先找同一租户下最相似的历史问题：
+ * <ul>
+ *     <li>相似度达到 answerThreshold、开启了回答复用、调用方给出了租户且当前会话没有个人历史时，
+ *     直接返回缓存的回答，不检索也不调用模型；</li>
+ *     <li>相似度达到 contextThreshold 时，复用缓存的检索结果，只调用模型生成回答；</li>
+ *     <li>否则完整地检索和生成，结束后写入缓存。</li>
+ * </ul>
+ * 带有个人历史的会话生成的回答依赖上下文，只缓存检索结果，不缓存回答。回答可能包含提问者的个人情况，
+ * 默认不缓存回答（answersEnabled 为 false），开启后也只在同一租户内复用；没有租户的请求只共享检索结果。
+ * 条目按写入顺序在 TTL 后过期，超过 maxEntries 时淘汰最早的条目，已删除节点过半时重建索引。
+ */
+@Component
+@Slf4j
+public class SemanticAnswerCache {
+
+    /**
+     * 查询结果类型
+     */
+    public enum Kind {
+        // 直接返回缓存的回答
+        ANSWER,
+        // 复用缓存的检索结果
+        CONTEXT,
+        // 未命中
+        MISS,
+        // 未开启或计算向量失败，不使用缓存
+        BYPASS
+    }
+
+    /**
+     * 查询结果
+     *
+     * @param embedding 问题向量，未命中时用于写入缓存
+     * @param answer    缓存的回答，仅 ANSWER 时非空
+     * @param context   缓存的检索结果，ANSWER 和 CONTEXT 时非空
+     */
+    public record Match(Kind kind, String tenantId, float[] embedding, String answer, List<Document> context,
+                        double similarity) {
+    }
+
+    private record Entry(String tenantId, String answer, List<Document> context, long expiresAt) {
+    }
+
+    // 索引参数，缓存规模远小于知识库，使用较小的 M
+    private static final int M = 12;
+    private static final int EF_CONSTRUCTION = 100;
+    private static final int EF_SEARCH = 64;
+
+    // 条目数不超过该值时精确扫描，结果精确且耗时与图搜索相当
+    private static final int EXACT_SCAN_MAX_ENTRIES = 1000;
+
+    // 已删除节点超过该比例时重建索引
+    private static final double REBUILD_DELETED_RATIO = 0.5;
+
+    // 未命中耗时的指数移动平均系数
+    private static final double LATENCY_ALPHA = 0.2;
+
+    private final EmbeddingModel embeddingModel;
+
+    private final boolean enabled;
+
+    // 是否缓存并复用回答，关闭时只复用检索结果
+    private final boolean answersEnabled;
+
+    private final double answerThreshold;
+
+    private final double contextThreshold;
+
+    private final long ttlMillis;
+
+    private final int maxEntries;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // 首次写入时按向量维度创建
+    private HnswIndex index;
+
+    // 节点编号 -> 条目，已删除的节点为 null
+    private final List<Entry> entries = new ArrayList<>();
+
+    // 按写入顺序排列的节点编号，用于过期和淘汰
+    private final Deque<Integer> insertionOrder = new ArrayDeque<>();
+
+    private final AtomicLong answerHits = new AtomicLong();
+    private final AtomicLong contextHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong bypassed = new AtomicLong();
+    private final AtomicLong latencySavedMillis = new AtomicLong();
+
+    // 完整检索和生成的平均耗时
+    private volatile double averageMissMillis;
+
+    public SemanticAnswerCache(EmbeddingModel dashscopeEmbeddingModel, DocumentWatcher documentWatcher,
+                               @Value("${rag.answer-cache.enabled:true}") boolean enabled,
+                               @Value("${rag.answer-cache.answers-enabled:false}") boolean answersEnabled,
+                               @Value("${rag.answer-cache.answer-threshold:0.95}") double answerThreshold,
+                               @Value("${rag.answer-cache.context-threshold:0.88}") double contextThreshold,
+                               @Value("${rag.answer-cache.ttl-minutes:60}") long ttlMinutes,
+                               @Value("${rag.answer-cache.max-entries:5000}") int maxEntries) {
+        this(dashscopeEmbeddingModel, enabled, answersEnabled, answerThreshold, contextThreshold,
+                TimeUnit.MINUTES.toMillis(ttlMinutes), maxEntries);
+        // 本地知识库文件变化后缓存的回答可能过时
+        documentWatcher.addChangeListener(this::invalidateAll);
+    }
+
+    SemanticAnswerCache(EmbeddingModel embeddingModel, boolean enabled, boolean answersEnabled, double answerThreshold,
+                        double contextThreshold, long ttlMillis, int maxEntries) {
+        this.embeddingModel = embeddingModel;
+        this.enabled = enabled;
+        this.answersEnabled = answersEnabled;
+        this.answerThreshold = answerThreshold;
+        this.contextThreshold = contextThreshold;
+        this.ttlMillis = ttlMillis;
+        this.maxEntries = Math.max(1, maxEntries);
+    }
+
+    /**
+     * 查找相似的历史问题
+     *
+     * @param tenantId    调用方的租户，为 null 时不复用回答，只复用检索结果
+     * @param allowAnswer 是否允许直接返回缓存的回答（会话带有个人历史时为 false）
+     */
+    public Match lookup(String tenantId, String question, boolean allowAnswer) {
+        if (!enabled) {
+            bypassed.incrementAndGet();
+            return new Match(Kind.BYPASS, tenantId, null, null, null, 0);
+        }
+        float[] embedding;
+        try {
+            embedding = embeddingModel.embed(question);
+        } catch (RuntimeException e) {
+            log.warn("Failed to embed question for answer cache", e);
+            bypassed.incrementAndGet();
+            return new Match(Kind.BYPASS, tenantId, null, null, null, 0);
+        }
+        long now = System.currentTimeMillis();
+        lock.readLock().lock();
+        try {
+            if (index != null && index.liveSize() > 0) {
+                IntPredicate sameTenant = node -> {
+                    Entry entry = entries.get(node);
+                    return entry != null && entry.expiresAt > now && Objects.equals(entry.tenantId, tenantId);
+                };
+                List<HnswIndex.Candidate> candidates = index.liveSize() <= EXACT_SCAN_MAX_ENTRIES
+                        ? List.of()
+                        : index.search(embedding, 1, EF_SEARCH, sameTenant);
+                if (candidates.isEmpty()) {
+                    // 该租户的条目很少时图搜索可能找不到，退化为精确扫描
+                    candidates = index.exactSearch(embedding, 1, sameTenant);
+                }
+                if (!candidates.isEmpty()) {
+                    HnswIndex.Candidate best = candidates.get(0);
+                    Entry entry = entries.get(best.node());
+                    double similarity = 1 - best.distance();
+                    if (allowAnswer && answerReusable(tenantId) && entry.answer != null && similarity >= answerThreshold) {
+                        return new Match(Kind.ANSWER, tenantId, embedding, entry.answer, entry.context, similarity);
+                    }
+                    if (entry.context != null && similarity >= contextThreshold) {
+                        return new Match(Kind.CONTEXT, tenantId, embedding, null, entry.context, similarity);
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return new Match(Kind.MISS, tenantId, embedding, null, null, 0);
+    }
+
+    /**
+     * 记录一次请求的结果，未命中或只复用检索结果时写入新条目
+     *
+     * @param answer        本次生成的回答，会话带有个人历史时传 null；未开启回答复用或没有租户时忽略
+     * @param context       本次使用的检索结果
+     * @param elapsedMillis 本次请求的总耗时
+     */
+    public void complete(Match match, String answer, List<Document> context, long elapsedMillis) {
+        switch (match.kind()) {
+            case ANSWER -> {
+                answerHits.incrementAndGet();
+                recordSaved(elapsedMillis);
+            }
+            case CONTEXT -> {
+                contextHits.incrementAndGet();
+                recordSaved(elapsedMillis);
+            }
+            case MISS -> {
+                misses.incrementAndGet();
+                double average = averageMissMillis;
+                averageMissMillis = average == 0 ? elapsedMillis : average + LATENCY_ALPHA * (elapsedMillis - average);
+            }
+            case BYPASS -> {
+                return;
+            }
+        }
+        if (context != null && ResilientDocumentRetriever.isDegraded(context)) {
+            // 降级检索结果和基于它生成的回答都不缓存
+            return;
+        }
+        if (match.kind() != Kind.ANSWER && ((answer != null && answerReusable(match.tenantId()))
+                || (context != null && !context.isEmpty()))) {
+            put(match.tenantId(), match.embedding(), answerReusable(match.tenantId()) ? answer : null,
+                    context == null ? null : List.copyOf(context));
+        }
+    }
+
+    private boolean answerReusable(String tenantId) {
+        return answersEnabled && tenantId != null;
+    }
+
+    /**
+     * 清空缓存（知识库更新后调用）
+     */
+    public void invalidateAll() {
+        lock.writeLock().lock();
+        try {
+            if (index != null) {
+                index.close();
+                index = null;
+            }
+            entries.clear();
+            insertionOrder.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        long hits = answerHits.get() + contextHits.get();
+        long total = hits + misses.get();
+        metrics.put("answerHits", answerHits.get());
+        metrics.put("contextHits", contextHits.get());
+        metrics.put("misses", misses.get());
+        metrics.put("bypassed", bypassed.get());
+        metrics.put("hitRate", total == 0 ? 0.0 : (double) hits / total);
+        metrics.put("latencySavedMillis", latencySavedMillis.get());
+        metrics.put("averageMissMillis", Math.round(averageMissMillis));
+        lock.readLock().lock();
+        try {
+            metrics.put("entries", index == null ? 0 : index.liveSize());
+        } finally {
+            lock.readLock().unlock();
+        }
+        return metrics;
+    }
+
+    private void recordSaved(long elapsedMillis) {
+        // 相对于完整检索和生成的平均耗时节省的时间
+        long saved = Math.round(averageMissMillis) - elapsedMillis;
+        if (saved > 0) {
+            latencySavedMillis.addAndGet(saved);
+        }
+    }
+
+    private void put(String tenantId, float[] embedding, String answer, List<Document> context) {
+        long now = System.currentTimeMillis();
+        lock.writeLock().lock();
+        try {
+            if (index == null) {
+                index = new HnswIndex(embedding.length, M, EF_CONSTRUCTION);
+            } else if (index.dimensions() != embedding.length) {
+                log.warn("Answer cache embedding dimensions changed from {} to {}, cache cleared",
+                        index.dimensions(), embedding.length);
+                index.close();
+                index = new HnswIndex(embedding.length, M, EF_CONSTRUCTION);
+                entries.clear();
+                insertionOrder.clear();
+            }
+            // 条目按写入顺序过期，从最早的开始淘汰
+            while (!insertionOrder.isEmpty()
+                    && (entries.get(insertionOrder.peekFirst()).expiresAt <= now || insertionOrder.size() >= maxEntries)) {
+                int node = insertionOrder.pollFirst();
+                index.markDeleted(node);
+                entries.set(node, null);
+            }
+            int node = index.add(embedding);
+            entries.add(new Entry(tenantId, answer, context, now + ttlMillis));
+            insertionOrder.addLast(node);
+            if (index.size() - index.liveSize() >= index.size() * REBUILD_DELETED_RATIO) {
+                rebuild();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 只用未删除的节点重建索引
+     */
+    private void rebuild() {
+        HnswIndex rebuilt = new HnswIndex(index.dimensions(), M, EF_CONSTRUCTION);
+        List<Entry> rebuiltEntries = new ArrayList<>();
+        Deque<Integer> rebuiltOrder = new ArrayDeque<>();
+        for (int node : insertionOrder) {
+            rebuiltOrder.addLast(rebuilt.add(index.vector(node)));
+            rebuiltEntries.add(entries.get(node));
+        }
+        index.close();
+        index = rebuilt;
+        entries.clear();
+        entries.addAll(rebuiltEntries);
+        insertionOrder.clear();
+        insertionOrder.addAll(rebuiltOrder);
+        log.debug("Answer cache index rebuilt with {} entries", rebuilt.size());
+    }
+
+    @PreDestroy
+    public void close() {
+        invalidateAll();
+    }
+}
@@ -0,0 +1,219 @@
+package com.aiagenttest.rag;
+
+import cn.hutool.crypto.digest.DigestUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.embedding.Embedding;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.ai.embedding.EmbeddingRequest;
+import org.springframework.ai.embedding.EmbeddingResponse;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 带本地快照的向量模型
+ * <p>
+ * 包装真实的向量模型，以文本内容的 SHA-256 为键把向量保存到本地快照文件。
+ * 在 {@link #beginCapture()} 和 {@link #endCapture(boolean)} 之间（即文档入库期间），已有快照的文本直接使用快照中的向量，
+ * 只有新增或内容变化的分片才调用向量模型；结束时删除本次未用到的向量并写回快照文件。
+ * 入库之外的调用（如检索时的查询向量）直接转发给真实模型，不写入快照。
+ * <p>
+ * 所有分片都命中快照时启动过程不调用向量服务，即使服务不可用也能正常启动。
+ * <p>
+ * 快照文件头记录模型名称和向量维度，更换模型或维度后旧快照整体丢弃，不会混用不同模型的向量。
+ */
+@Slf4j
+public class SnapshotEmbeddingModel implements EmbeddingModel {
+
+    private static final int MAGIC = 0x454D4253;
+
+    // 2：文件头增加模型名称和向量维度
+    private static final int VERSION = 2;
+
+    private final EmbeddingModel delegate;
+
+    private final Path snapshotPath;
+
+    // 模型名称，与快照文件头不一致时丢弃快照
+    private final String modelId;
+
+    // 配置的向量维度，0 表示使用模型默认维度（只校验快照内各向量维度一致）
+    private final int dimensions;
+
+    // 内容哈希 -> 向量
+    private final Map<String, float[]> snapshot = new ConcurrentHashMap<>();
+
+    // 本次入库用到的内容哈希
+    private final Set<String> used = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean capturing;
+
+    private final AtomicInteger hits = new AtomicInteger();
+
+    private final AtomicInteger misses = new AtomicInteger();
+
+    public SnapshotEmbeddingModel(EmbeddingModel delegate, Path snapshotPath, String modelId, int dimensions) {
+        this.delegate = delegate;
+        this.snapshotPath = snapshotPath;
+        this.modelId = modelId;
+        this.dimensions = dimensions;
+        load();
+    }
+
+    /**
+     * 开始入库：之后的向量请求优先使用快照，并记录新计算的向量
+     */
+    public void beginCapture() {
+        used.clear();
+        hits.set(0);
+        misses.set(0);
+        capturing = true;
+    }
+
+    /**
+     * 结束入库并保存快照
+     *
+     * @param prune 是否删除本次未用到的向量，只应在全量入库全部完成时为 true（增量更新或入库失败时只保存已计算的部分）
+     */
+    public void endCapture(boolean prune) {
+        capturing = false;
+        int before = snapshot.size();
+        if (prune) {
+            snapshot.keySet().retainAll(used);
+        }
+        int pruned = before - snapshot.size();
+        if (misses.get() > 0 || pruned > 0) {
+            save();
+        }
+        log.info("Embedding snapshot: {} reused, {} embedded, {} pruned, {} entries",
+                hits.get(), misses.get(), pruned, snapshot.size());
+    }
+
+    @Override
+    public EmbeddingResponse call(EmbeddingRequest request) {
+        if (!capturing) {
+            return delegate.call(request);
+        }
+        List<String> texts = request.getInstructions();
+        List<String> keys = new ArrayList<>(texts.size());
+        List<String> missingTexts = new ArrayList<>();
+        List<Integer> missingIndexes = new ArrayList<>();
+        for (int i = 0; i < texts.size(); i++) {
+            String key = DigestUtil.sha256Hex(texts.get(i));
+            keys.add(key);
+            used.add(key);
+            if (!snapshot.containsKey(key)) {
+                missingTexts.add(texts.get(i));
+                missingIndexes.add(i);
+            }
+        }
+        hits.addAndGet(texts.size() - missingTexts.size());
+        misses.addAndGet(missingTexts.size());
+
+        float[][] vectors = new float[texts.size()][];
+        if (!missingTexts.isEmpty()) {
+            EmbeddingResponse response = delegate.call(new EmbeddingRequest(missingTexts, request.getOptions()));
+            for (int i = 0; i < missingTexts.size(); i++) {
+                float[] vector = response.getResults().get(i).getOutput();
+                int index = missingIndexes.get(i);
+                vectors[index] = vector;
+                snapshot.put(keys.get(index), vector);
+            }
+        }
+        List<Embedding> embeddings = new ArrayList<>(texts.size());
+        for (int i = 0; i < texts.size(); i++) {
+            float[] vector = vectors[i] != null ? vectors[i] : snapshot.get(keys.get(i));
+            embeddings.add(new Embedding(vector, i));
+        }
+        return new EmbeddingResponse(embeddings);
+    }
+
+    @Override
+    public float[] embed(Document document) {
+        return embed(document.getText());
+    }
+
+    @Override
+    public int dimensions() {
+        return delegate.dimensions();
+    }
+
+    private void load() {
+        if (!Files.exists(snapshotPath)) {
+            return;
+        }
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotPath)))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                log.warn("Ignoring embedding snapshot with unknown format: {}", snapshotPath);
+                return;
+            }
+            String snapshotModelId = input.readUTF();
+            int snapshotDimensions = input.readInt();
+            if (!modelId.equals(snapshotModelId) || dimensions > 0 && snapshotDimensions != dimensions) {
+                log.info("Discarding embedding snapshot {} built with {} ({} dimensions), current model is {} ({} dimensions)",
+                        snapshotPath, snapshotModelId, snapshotDimensions, modelId, dimensions);
+                return;
+            }
+            int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = input.readUTF();
+                int length = input.readInt();
+                if (length != snapshotDimensions) {
+                    throw new IOException("Vector dimensions " + length + " do not match snapshot header " + snapshotDimensions);
+                }
+                float[] vector = new float[length];
+                for (int j = 0; j < vector.length; j++) {
+                    vector[j] = input.readFloat();
+                }
+                snapshot.put(key, vector);
+            }
+            log.info("Loaded {} embeddings from snapshot {}", count, snapshotPath);
+        } catch (IOException e) {
+            // 快照损坏时丢弃，重新计算向量
+            snapshot.clear();
+            log.warn("Failed to load embedding snapshot {}, embeddings will be recomputed", snapshotPath, e);
+        }
+    }
+
+    /**
+     * 先写临时文件再原子替换，避免写入中断留下损坏的快照
+     */
+    private synchronized void save() {
+        try {
+            Files.createDirectories(snapshotPath.toAbsolutePath().getParent());
+            Path tmp = snapshotPath.resolveSibling(snapshotPath.getFileName() + ".tmp");
+            Map<String, float[]> entries = Map.copyOf(snapshot);
+            int snapshotDimensions = entries.isEmpty() ? dimensions : entries.values().iterator().next().length;
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                output.writeInt(MAGIC);
+                output.writeInt(VERSION);
+                output.writeUTF(modelId);
+                output.writeInt(snapshotDimensions);
+                output.writeInt(entries.size());
+                for (Map.Entry<String, float[]> entry : entries.entrySet()) {
+                    output.writeUTF(entry.getKey());
+                    output.writeInt(entry.getValue().length);
+                    for (float value : entry.getValue()) {
+                        output.writeFloat(value);
+                    }
+                }
+            }
+            Files.move(tmp, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.error("Failed to save embedding snapshot {}", snapshotPath, e);
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package com.aiagenttest.rag;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 堆外向量存储
+ * <p>
+ * 向量按块保存在堆外 ByteBuffer 中，堆上只有少量块引用，GC 不需要扫描或复制向量数据。
+ * 开启 int8 量化时，每个向量额外保存一份 int8 编码和缩放系数（每维 1 字节，是 float 的 1/4），
+ * 图搜索只读取编码；原始 float 向量写入内存映射文件，只在对最终候选做精确重排时按需读取，由操作系统分页管理。
+ * 未指定文件时 float 向量保存在直接内存中。
+ * <p>
+ * 本类不是线程安全的，写入由调用方加锁；写入完成后的并发读取是安全的。
+ */
+@Slf4j
+final class VectorArena implements Closeable {
+
+    // 每块保存的向量数量
+    private static final int CHUNK_VECTORS = 4096;
+
+    private final int dimensions;
+
+    private final boolean quantized;
+
+    // float 向量的内存映射文件，为 null 时使用直接内存
+    private final Path file;
+
+    private final FileChannel channel;
+
+    private final List<FloatBuffer> vectorChunks = new ArrayList<>();
+
+    private final List<ByteBuffer> codeChunks = new ArrayList<>();
+
+    private final List<FloatBuffer> scaleChunks = new ArrayList<>();
+
+    private int size;
+
+    /**
+     * @param quantized 是否保存 int8 编码，用于近似距离计算
+     * @param directory float 向量映射文件所在目录，为 null 时使用直接内存
+     */
+    VectorArena(int dimensions, boolean quantized, Path directory) {
+        this.dimensions = dimensions;
+        this.quantized = quantized;
+        if (directory == null) {
+            this.file = null;
+            this.channel = null;
+            return;
+        }
+        try {
+            Files.createDirectories(directory);
+            this.file = Files.createTempFile(directory, "hnsw-", ".vectors");
+            this.file.toFile().deleteOnExit();
+            this.channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to create vector file in " + directory, e);
+        }
+    }
+
+    int dimensions() {
+        return dimensions;
+    }
+
+    boolean isQuantized() {
+        return quantized;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * 追加一个已归一化的向量
+     *
+     * @return 向量编号
+     */
+    int add(float[] vector) {
+        int index = size;
+        int chunk = index / CHUNK_VECTORS;
+        if (chunk == vectorChunks.size()) {
+            allocateChunk(chunk);
+        }
+        int offset = (index % CHUNK_VECTORS) * dimensions;
+        vectorChunks.get(chunk).put(offset, vector);
+        if (quantized) {
+            // 对称量化：缩放系数取绝对值最大的分量，映射到 [-127, 127]
+            float max = 0;
+            for (float value : vector) {
+                max = Math.max(max, Math.abs(value));
+            }
+            float scale = max == 0 ? 1 : max / 127f;
+            ByteBuffer codes = codeChunks.get(chunk);
+            for (int i = 0; i < dimensions; i++) {
+                codes.put(offset + i, (byte) Math.round(vector[i] / scale));
+            }
+            scaleChunks.get(chunk).put(index % CHUNK_VECTORS, scale);
+        }
+        size++;
+        return index;
+    }
+
+    /**
+     * 读取原始向量
+     */
+    float[] get(int index) {
+        float[] vector = new float[dimensions];
+        vectorChunks.get(index / CHUNK_VECTORS).get((index % CHUNK_VECTORS) * dimensions, vector);
+        return vector;
+    }
+
+    /**
+     * 查询向量与原始向量的点积
+     */
+    float dot(float[] query, int index) {
+        FloatBuffer vectors = vectorChunks.get(index / CHUNK_VECTORS);
+        int offset = (index % CHUNK_VECTORS) * dimensions;
+        float dot = 0;
+        for (int i = 0; i < dimensions; i++) {
+            dot += query[i] * vectors.get(offset + i);
+        }
+        return dot;
+    }
+
+    /**
+     * 查询向量与向量的近似点积：开启量化时使用 int8 编码，否则等同于 {@link #dot(float[], int)}
+     */
+    float approximateDot(float[] query, int index) {
+        if (!quantized) {
+            return dot(query, index);
+        }
+        int chunk = index / CHUNK_VECTORS;
+        ByteBuffer codes = codeChunks.get(chunk);
+        int offset = (index % CHUNK_VECTORS) * dimensions;
+        float dot = 0;
+        for (int i = 0; i < dimensions; i++) {
+            dot += query[i] * codes.get(offset + i);
+        }
+        return dot * scaleChunks.get(chunk).get(index % CHUNK_VECTORS);
+    }
+
+    /**
+     * 两个向量的近似点积
+     */
+    float approximateDot(int a, int b) {
+        if (!quantized) {
+            FloatBuffer vectorsA = vectorChunks.get(a / CHUNK_VECTORS);
+            FloatBuffer vectorsB = vectorChunks.get(b / CHUNK_VECTORS);
+            int offsetA = (a % CHUNK_VECTORS) * dimensions;
+            int offsetB = (b % CHUNK_VECTORS) * dimensions;
+            float dot = 0;
+            for (int i = 0; i < dimensions; i++) {
+                dot += vectorsA.get(offsetA + i) * vectorsB.get(offsetB + i);
+            }
+            return dot;
+        }
+        ByteBuffer codesA = codeChunks.get(a / CHUNK_VECTORS);
+        ByteBuffer codesB = codeChunks.get(b / CHUNK_VECTORS);
+        int offsetA = (a % CHUNK_VECTORS) * dimensions;
+        int offsetB = (b % CHUNK_VECTORS) * dimensions;
+        int dot = 0;
+        for (int i = 0; i < dimensions; i++) {
+            dot += codesA.get(offsetA + i) * codesB.get(offsetB + i);
+        }
+        return dot * scaleChunks.get(a / CHUNK_VECTORS).get(a % CHUNK_VECTORS)
+                * scaleChunks.get(b / CHUNK_VECTORS).get(b % CHUNK_VECTORS);
+    }
+
+    /**
+     * 常驻内存的字节数（内存映射的 float 向量不计入）
+     */
+    long residentBytes() {
+        long bytes = (long) codeChunks.size() * CHUNK_VECTORS * (dimensions + Float.BYTES);
+        if (file == null) {
+            bytes += (long) vectorChunks.size() * CHUNK_VECTORS * dimensions * Float.BYTES;
+        }
+        return bytes;
+    }
+
+    private void allocateChunk(int chunk) {
+        long vectorBytes = (long) CHUNK_VECTORS * dimensions * Float.BYTES;
+        ByteBuffer vectors;
+        if (channel != null) {
+            try {
+                vectors = channel.map(FileChannel.MapMode.READ_WRITE, chunk * vectorBytes, vectorBytes);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to map vector file " + file, e);
+            }
+        } else {
+            vectors = ByteBuffer.allocateDirect((int) vectorBytes);
+        }
+        vectorChunks.add(vectors.order(ByteOrder.nativeOrder()).asFloatBuffer());
+        if (quantized) {
+            codeChunks.add(ByteBuffer.allocateDirect(CHUNK_VECTORS * dimensions));
+            scaleChunks.add(ByteBuffer.allocateDirect(CHUNK_VECTORS * Float.BYTES).order(ByteOrder.nativeOrder()).asFloatBuffer());
+        }
+    }
+
+    /**
+     * 释放引用并删除映射文件，直接内存和映射区域由 GC 回收
+     */
+    @Override
+    public void close() {
+        vectorChunks.clear();
+        codeChunks.clear();
+        scaleChunks.clear();
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn("Failed to delete vector file {}", file, e);
+        }
+    }
+}
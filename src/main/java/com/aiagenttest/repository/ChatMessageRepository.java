@@ -4,8 +4,208 @@ package com.aiagenttest.repository;
 import com.aiagenttest.mapper.ChatMessageMapper;
 import com.aiagenttest.model.ChatMessage;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * 聊天消息仓库
+ * <p>
+ * 保存时为每条消息分配会话内单调递增的序号（seq），读取按 seq 排序并使用 keyset 分页，
+ * 配合 (conversation_id, is_delete, seq) 联合索引，查询无需 filesort，且同一秒内写入的消息顺序也是确定的。
+ * 表结构见 sql/chat_message.sql，已有表的迁移脚本见 sql/chat_message_add_seq.sql。
+ * <p>
+ * seq 为 0 的记录（如会话摘要）不属于消息历史，不会被这些方法返回。
+ * <p>
+ * 序号分配器缓存在内存中，未缓存的会话首次分配时从数据库读取当前最大序号（包含逻辑删除的记录）。(conversation_id, seq) 上有唯一键：
+ * 多个实例写入同一会话、或重启后与尚未落库的写入竞争时，插入会因序号冲突失败，此时从数据库重新读取最大序号，
+ * 重新分配本次分配的序号后重试，不会写入重复序号。
+ */
 @Service
+@Slf4j
 public class ChatMessageRepository extends ServiceImpl<ChatMessageMapper, ChatMessage> {
+
+    // 序号冲突时的最大尝试次数
+    private static final int MAX_SEQ_ATTEMPTS = 5;
+
+    @Value("${chat.sequence.max-conversations:100000}")
+    private int maxSequenceConversations;
+
+    @Resource
+    private TransactionTemplate transactionTemplate;
+
+    // 会话ID -> 已分配的最大序号（按访问顺序排列，用于 LRU 淘汰）
+    private final LinkedHashMap<String, ConversationSequence> sequences = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ConversationSequence> eldest) {
+            return size() > maxSequenceConversations;
+        }
+    };
+
+    @Override
+    public boolean save(ChatMessage entity) {
+        return saveWithSeq(List.of(entity), () -> super.save(entity));
+    }
+
+    /**
+     * 整批在一个事务中写入；序号冲突时整批回滚，重新分配序号后重试。
+     * 调用方处于外层事务中时冲突会把外层事务标记为只回滚，因此应在事务外调用
+     */
+    @Override
+    public boolean saveBatch(Collection<ChatMessage> entityList, int batchSize) {
+        return saveWithSeq(entityList,
+                () -> Boolean.TRUE.equals(transactionTemplate.execute(status -> super.saveBatch(entityList, batchSize))));
+    }
+
+    /**
+     * 查询 seq 大于 afterSeq 的消息（按 seq 升序），用于增量读取和向后翻页
+     */
+    public List<ChatMessage> listAfterSeq(String conversationId, long afterSeq, int limit) {
+        return lambdaQuery()
+                .eq(ChatMessage::getConversationId, conversationId)
+                .gt(ChatMessage::getSeq, afterSeq)
+                .orderByAsc(ChatMessage::getSeq)
+                .last(limit > 0, "LIMIT " + limit)
+                .list();
+    }
+
+    /**
+     * 查询最近 lastN 条消息（按 seq 升序返回），lastN <= 0 时返回全部
+     */
+    public List<ChatMessage> listLastN(String conversationId, int lastN) {
+        if (lastN <= 0) {
+            return listAfterSeq(conversationId, 0, 0);
+        }
+        List<ChatMessage> chatMessages = lambdaQuery()
+                .eq(ChatMessage::getConversationId, conversationId)
+                .gt(ChatMessage::getSeq, 0)
+                .orderByDesc(ChatMessage::getSeq)
+                .last("LIMIT " + lastN)
+                .list();
+        Collections.reverse(chatMessages);
+        return chatMessages;
+    }
+
+    /**
+     * 会话当前最大序号，没有消息时返回 0
+     */
+    public long maxSeq(String conversationId) {
+        ChatMessage latest = lambdaQuery()
+                .select(ChatMessage::getSeq)
+                .eq(ChatMessage::getConversationId, conversationId)
+                .orderByDesc(ChatMessage::getSeq)
+                .last("LIMIT 1")
+                .one();
+        return latest == null || latest.getSeq() == null ? 0 : latest.getSeq();
+    }
+
+    /**
+     * 分配序号后写入，序号冲突时重新读取数据库中的最大序号并重试
+     */
+    private boolean saveWithSeq(Collection<ChatMessage> chatMessages, Supplier<Boolean> insert) {
+        for (int attempt = 1; ; attempt++) {
+            List<ChatMessage> assigned = assignSeq(chatMessages);
+            try {
+                return insert.get();
+            } catch (RuntimeException e) {
+                // 调用方指定的序号（如摘要的 0）冲突说明记录重复，不重试
+                if (assigned.isEmpty() || !isDuplicateKey(e) || attempt >= MAX_SEQ_ATTEMPTS) {
+                    throw e;
+                }
+                log.warn("Seq conflict for conversation {}, reseeding (attempt {})",
+                        assigned.get(0).getConversationId(), attempt);
+                for (ChatMessage chatMessage : assigned) {
+                    chatMessage.setSeq(null);
+                    chatMessage.setId(null);
+                }
+                assigned.stream().map(ChatMessage::getConversationId).distinct().forEach(this::reseed);
+            }
+        }
+    }
+
+    /**
+     * 为尚未分配序号的消息按传入顺序分配序号
+     *
+     * @return 本次分配了序号的消息
+     */
+    private List<ChatMessage> assignSeq(Collection<ChatMessage> chatMessages) {
+        List<ChatMessage> assigned = new ArrayList<>();
+        for (ChatMessage chatMessage : chatMessages) {
+            if (chatMessage.getSeq() == null) {
+                chatMessage.setSeq(nextSeq(chatMessage.getConversationId()));
+                assigned.add(chatMessage);
+            }
+        }
+        return assigned;
+    }
+
+    /**
+     * 序号冲突后按数据库中的最大序号重新设置分配器（只会增大，不会回退）
+     */
+    private void reseed(String conversationId) {
+        ConversationSequence sequence;
+        synchronized (sequences) {
+            sequence = sequences.computeIfAbsent(conversationId, id -> new ConversationSequence());
+        }
+        synchronized (sequence) {
+            long max = getBaseMapper().selectMaxSeqIncludingDeleted(conversationId);
+            sequence.value.accumulateAndGet(max, Math::max);
+            sequence.seeded = true;
+        }
+    }
+
+    private static boolean isDuplicateKey(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof DuplicateKeyException || cause instanceof SQLIntegrityConstraintViolationException) {
+                return true;
+            }
+            if (cause instanceof SQLException sqlException && "23000".equals(sqlException.getSQLState())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 分配下一个序号；未缓存的会话先在该会话自己的锁内从数据库读取最大序号，不阻塞其他会话
+     */
+    private long nextSeq(String conversationId) {
+        ConversationSequence sequence;
+        synchronized (sequences) {
+            sequence = sequences.computeIfAbsent(conversationId, id -> new ConversationSequence());
+        }
+        if (!sequence.seeded) {
+            synchronized (sequence) {
+                if (!sequence.seeded) {
+                    sequence.value.set(getBaseMapper().selectMaxSeqIncludingDeleted(conversationId));
+                    sequence.seeded = true;
+                }
+            }
+        }
+        return sequence.value.incrementAndGet();
+    }
+
+    /**
+     * 会话的序号分配器，seeded 为 false 时尚未从数据库读取初始值
+     */
+    private static final class ConversationSequence {
+
+        private final AtomicLong value = new AtomicLong();
+
+        private volatile boolean seeded;
+    }
 }
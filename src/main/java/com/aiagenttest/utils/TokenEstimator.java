@@ -0,0 +1,70 @@
+package com.aiagenttest.utils;
+
+import org.springframework.ai.chat.messages.Message;
+
+import java.util.Collection;
+
+/**
+ * 本地 token 数估算
+ * <p>
+ * 不依赖模型分词器的快速近似：中日韩文字及全角标点每个字符约 1 个 token，
+ * 英文单词和数字按每 4 个字符约 1 个 token，其余标点和符号每个 1 个 token，空白不计。
+ * 对通义千问等模型的中文结果略微偏高，用于预算控制是安全的一侧。
+ */
+public final class TokenEstimator {
+
+    // 每条消息的角色标记等固定开销
+    private static final int MESSAGE_OVERHEAD = 4;
+
+    private TokenEstimator() {
+    }
+
+    /**
+     * 估算文本的 token 数
+     */
+    public static int estimate(CharSequence text) {
+        if (text == null || text.isEmpty()) {
+            return 0;
+        }
+        int tokens = 0;
+        int wordLength = 0;
+        int length = text.length();
+        for (int i = 0; i < length; ) {
+            int codePoint = Character.codePointAt(text, i);
+            i += Character.charCount(codePoint);
+            if (codePoint < 128 && Character.isLetterOrDigit(codePoint)) {
+                wordLength++;
+                continue;
+            }
+            tokens += wordTokens(wordLength);
+            wordLength = 0;
+            if (!Character.isWhitespace(codePoint)) {
+                // 中日韩文字、全角标点、emoji 及其他符号都按 1 个 token 计
+                tokens++;
+            }
+        }
+        return tokens + wordTokens(wordLength);
+    }
+
+    /**
+     * 估算单条消息的 token 数（含固定开销）
+     */
+    public static int estimate(Message message) {
+        return MESSAGE_OVERHEAD + estimate(message.getText());
+    }
+
+    /**
+     * 估算多条消息的 token 数
+     */
+    public static int estimate(Collection<? extends Message> messages) {
+        int tokens = 0;
+        for (Message message : messages) {
+            tokens += estimate(message);
+        }
+        return tokens;
+    }
+
+    private static int wordTokens(int wordLength) {
+        return (wordLength + 3) / 4;
+    }
+}
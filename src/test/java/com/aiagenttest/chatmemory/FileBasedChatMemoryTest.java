@@ -0,0 +1,191 @@
+package com.aiagenttest.chatmemory;
+
+import com.esotericsoftware.kryo.io.Output;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.UserMessage;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * 文件对话记忆的追加日志读写、压缩、崩溃恢复和旧文件迁移
+ */
+class FileBasedChatMemoryTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void readAcrossRemappedBoundary() {
+        FileBasedChatMemory memory = new FileBasedChatMemory(dir.toString());
+        memory.add("c1", List.of(new UserMessage("最近总是失眠")));
+        // 第一次读取按当前文件大小映射段文件和索引
+        Assertions.assertEquals(1, memory.get("c1", 10).size());
+
+        memory.add("c1", List.of(new AssistantMessage("可以先试试固定作息"), new UserMessage("试过了，还是睡不着")));
+        // 第一条记录落在旧映射内，后两条需要重新映射，旧映射上的切片必须仍然可读
+        List<Message> messages = memory.get("c1", 10);
+        Assertions.assertEquals(List.of("最近总是失眠", "可以先试试固定作息", "试过了，还是睡不着"),
+                messages.stream().map(Message::getText).toList());
+    }
+
+    @Test
+    void compactionKeepsMessagesInOrder() throws IOException {
+        // 每条记录单独成段，超过 3 段即压缩
+        FileBasedChatMemory memory = new FileBasedChatMemory(dir.toString(),
+                FileBasedChatMemory.FsyncMode.NONE, 1, 3, 0);
+        List<String> texts = texts(10);
+        for (String text : texts) {
+            memory.add("c1", List.of(new UserMessage(text)));
+        }
+
+        Assertions.assertEquals(texts, textsOf(memory.get("c1", 100)));
+        Assertions.assertEquals(List.of("消息 8", "消息 9"), textsOf(memory.get("c1", 2)));
+        Assertions.assertTrue(files("c1", ".log").size() <= 4);
+        Assertions.assertTrue(files("c1", ".tmp").isEmpty());
+        // 重新打开后从磁盘读到同样的内容
+        Assertions.assertEquals(texts, textsOf(new FileBasedChatMemory(dir.toString()).get("c1", 100)));
+    }
+
+    @Test
+    void compactionTrimsToRetainedMessages() {
+        FileBasedChatMemory memory = new FileBasedChatMemory(dir.toString(),
+                FileBasedChatMemory.FsyncMode.NONE, 1, 3, 4);
+        List<String> texts = texts(10);
+        for (String text : texts) {
+            memory.add("c1", List.of(new UserMessage(text)));
+        }
+
+        // 第 4、7、10 条各触发一次压缩，每次只保留最近 4 条
+        Assertions.assertEquals(texts.subList(6, 10), textsOf(memory.get("c1", 100)));
+    }
+
+    @Test
+    void recoverDiscardsLeftoverTmpFilesAndTornTail() throws IOException {
+        FileBasedChatMemory memory = new FileBasedChatMemory(dir.toString());
+        memory.add("c1", List.of(new UserMessage("第一条"), new AssistantMessage("第二条")));
+
+        // 模拟崩溃：未提交的压缩临时文件，以及写了一半的记录
+        Path conversationDir = dir.resolve("c1");
+        Files.write(conversationDir.resolve("segment-000099.log.tmp"), new byte[]{1, 2, 3});
+        Files.write(conversationDir.resolve("index.idx.tmp"), new byte[]{4, 5, 6});
+        Path segment = files("c1", ".log").get(0);
+        long size = Files.size(segment);
+        Files.write(segment, new byte[]{0, 0, 0, 100, 7}, StandardOpenOption.APPEND);
+
+        FileBasedChatMemory reopened = new FileBasedChatMemory(dir.toString());
+        Assertions.assertEquals(List.of("第一条", "第二条"), textsOf(reopened.get("c1", 10)));
+        Assertions.assertTrue(files("c1", ".tmp").isEmpty());
+        Assertions.assertEquals(size, Files.size(segment));
+
+        reopened.add("c1", List.of(new UserMessage("第三条")));
+        Assertions.assertEquals(List.of("第一条", "第二条", "第三条"), textsOf(reopened.get("c1", 10)));
+    }
+
+    @Test
+    void recoverFinishesCommittedCompaction() throws IOException {
+        FileBasedChatMemory memory = new FileBasedChatMemory(dir.toString(),
+                FileBasedChatMemory.FsyncMode.NONE, 1, 3, 0);
+        List<String> texts = texts(4);
+        for (String text : texts) {
+            memory.add("c1", List.of(new UserMessage(text)));
+        }
+        // 第 4 条触发压缩，只剩压缩后的一个段
+        List<Path> segments = files("c1", ".log");
+        Assertions.assertEquals(1, segments.size());
+
+        // 模拟索引已替换、新段尚未改名时崩溃
+        Path compacted = segments.get(0);
+        Files.move(compacted, compacted.resolveSibling(compacted.getFileName() + ".tmp"));
+
+        FileBasedChatMemory reopened = new FileBasedChatMemory(dir.toString());
+        Assertions.assertEquals(texts, textsOf(reopened.get("c1", 10)));
+        Assertions.assertEquals(List.of(compacted), files("c1", ".log"));
+        Assertions.assertTrue(files("c1", ".tmp").isEmpty());
+    }
+
+    @Test
+    void migratesLegacyKryoFile() throws IOException {
+        List<Message> legacy = List.of(new UserMessage("旧版消息一"), new AssistantMessage("旧版消息二"));
+        Path legacyFile = dir.resolve("c1.kryo");
+        try (Output output = new Output(new FileOutputStream(legacyFile.toFile()))) {
+            KryoMessageSerializer.serializeList(output, legacy);
+        }
+
+        FileBasedChatMemory memory = new FileBasedChatMemory(dir.toString());
+        Assertions.assertEquals(List.of("旧版消息一", "旧版消息二"), textsOf(memory.get("c1", 10)));
+        Assertions.assertFalse(Files.exists(legacyFile));
+
+        memory.add("c1", List.of(new UserMessage("新消息")));
+        Assertions.assertEquals(List.of("旧版消息一", "旧版消息二", "新消息"),
+                textsOf(new FileBasedChatMemory(dir.toString()).get("c1", 10)));
+    }
+
+    @Test
+    void clearRemovesConversation() {
+        FileBasedChatMemory memory = new FileBasedChatMemory(dir.toString());
+        memory.add("c1", List.of(new UserMessage("要删除的消息")));
+        memory.clear("c1");
+
+        Assertions.assertTrue(memory.get("c1", 10).isEmpty());
+        Assertions.assertFalse(Files.exists(dir.resolve("c1")));
+
+        // 清空后可以重新开始同一会话
+        memory.add("c1", List.of(new UserMessage("新的开始")));
+        Assertions.assertEquals(List.of("新的开始"), textsOf(memory.get("c1", 10)));
+    }
+
+    @Test
+    void readSurvivesEvictionOfLeasedRegions() {
+        // 每条记录单独成段且不压缩，最多映射 1 个文件：同一次读取中先用到的映射会被淘汰，但在读取结束前不能解除
+        FileBasedChatMemory memory = new FileBasedChatMemory(dir.toString(),
+                FileBasedChatMemory.FsyncMode.NONE, 1, 100, 0, 1, 1);
+        List<String> texts = texts(10);
+        for (String text : texts) {
+            memory.add("c1", List.of(new UserMessage(text)));
+        }
+        Assertions.assertEquals(texts, textsOf(memory.get("c1", 100)));
+        Assertions.assertEquals(texts, textsOf(memory.get("c1", 100)));
+    }
+
+    @Test
+    void idleLogsAreClosedAndReopened() {
+        FileBasedChatMemory memory = new FileBasedChatMemory(dir.toString(),
+                FileBasedChatMemory.FsyncMode.NONE, 4L * 1024 * 1024, 8, 0, 256, 256L * 1024 * 1024, 2);
+        for (int i = 0; i < 5; i++) {
+            memory.add("c" + i, List.of(new UserMessage("会话 " + i)));
+        }
+        // 早先的会话日志已被关闭，再次访问时从磁盘重新打开
+        for (int i = 0; i < 5; i++) {
+            memory.add("c" + i, List.of(new AssistantMessage("回复 " + i)));
+            Assertions.assertEquals(List.of("会话 " + i, "回复 " + i), textsOf(memory.get("c" + i, 10)));
+        }
+    }
+
+    private static List<String> texts(int count) {
+        return IntStream.range(0, count).mapToObj(i -> "消息 " + i).toList();
+    }
+
+    private static List<String> textsOf(List<Message> messages) {
+        return messages.stream().map(Message::getText).toList();
+    }
+
+    private List<Path> files(String conversationId, String suffix) throws IOException {
+        List<Path> result = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir.resolve(conversationId))) {
+            files.filter(path -> path.getFileName().toString().endsWith(suffix)).sorted().forEach(result::add);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,98 @@
+package com.aiagenttest.rag;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.rag.Query;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 检索缓存的轮次缓存、全局提升和失效
+ */
+class CachingDocumentRetrieverTest {
+
+    @Test
+    void normalize() {
+        Assertions.assertEquals("失眠怎么办", CachingDocumentRetriever.normalize("  失眠怎么办？"));
+        Assertions.assertEquals("how to sleep better", CachingDocumentRetriever.normalize("How  to\nSleep better?!"));
+        Assertions.assertEquals("", CachingDocumentRetriever.normalize("   "));
+    }
+
+    @Test
+    void repeatedQueriesInTurnHitCache() {
+        AtomicInteger calls = new AtomicInteger();
+        CachingDocumentRetriever retriever = new CachingDocumentRetriever(query -> {
+            calls.incrementAndGet();
+            return List.of(new Document("结果"));
+        }, true, 60_000, 100, 60_000, 100, 3);
+        retriever.retrieve(new Query("失眠怎么办"));
+        retriever.retrieve(new Query("失眠怎么办？"));
+        retriever.retrieve(new Query(" 失眠怎么办 "));
+        Assertions.assertEquals(1, calls.get());
+        Assertions.assertEquals(2L, retriever.getMetrics().get("turnHits"));
+    }
+
+    @Test
+    void popularQueriesArePromotedToGlobalCache() {
+        AtomicInteger calls = new AtomicInteger();
+        // 轮次缓存立即过期，只有全局缓存能命中
+        CachingDocumentRetriever retriever = new CachingDocumentRetriever(query -> {
+            calls.incrementAndGet();
+            return List.of(new Document("结果"));
+        }, true, 0, 100, 60_000, 100, 2);
+        for (int i = 0; i < 5; i++) {
+            retriever.retrieve(new Query("分手后怎么走出来"));
+        }
+        Assertions.assertEquals(2, calls.get());
+        Assertions.assertEquals(3L, retriever.getMetrics().get("globalHits"));
+
+        retriever.invalidateAll();
+        retriever.retrieve(new Query("分手后怎么走出来"));
+        Assertions.assertEquals(3, calls.get());
+    }
+
+    @Test
+    void cacheHitsCountTowardsPromotion() {
+        AtomicInteger calls = new AtomicInteger();
+        CachingDocumentRetriever retriever = new CachingDocumentRetriever(query -> {
+            calls.incrementAndGet();
+            return List.of(new Document("结果"));
+        }, true, 60_000, 100, 60_000, 100, 3);
+        // 只请求一次知识库，之后的两次轮次缓存命中使检索次数达到阈值
+        for (int i = 0; i < 3; i++) {
+            retriever.retrieve(new Query("考试焦虑怎么办"));
+        }
+        Assertions.assertEquals(1, calls.get());
+        Assertions.assertEquals(1L, retriever.getMetrics().get("promotions"));
+
+        retriever.retrieve(new Query("考试焦虑怎么办"));
+        Assertions.assertEquals(1L, retriever.getMetrics().get("globalHits"));
+    }
+
+    @Test
+    void degradedResultsAreNotCached() {
+        AtomicInteger calls = new AtomicInteger();
+        CachingDocumentRetriever retriever = new CachingDocumentRetriever(query -> {
+            calls.incrementAndGet();
+            return List.of(Document.builder().text("本地结果")
+                    .metadata(ResilientDocumentRetriever.DEGRADED_METADATA_KEY, true).build());
+        }, true, 60_000, 100, 60_000, 100, 1);
+        retriever.retrieve(new Query("失眠怎么办"));
+        retriever.retrieve(new Query("失眠怎么办"));
+        Assertions.assertEquals(2, calls.get());
+    }
+
+    @Test
+    void disabledCacheAlwaysDelegates() {
+        AtomicInteger calls = new AtomicInteger();
+        CachingDocumentRetriever retriever = new CachingDocumentRetriever(query -> {
+            calls.incrementAndGet();
+            return List.of();
+        }, false, 60_000, 100, 60_000, 100, 1);
+        retriever.retrieve(new Query("焦虑"));
+        retriever.retrieve(new Query("焦虑"));
+        Assertions.assertEquals(2, calls.get());
+    }
+}
@@ -0,0 +1,45 @@
+package com.aiagenttest.rag;
+
+import org.springframework.ai.document.Document;
+import org.springframework.ai.embedding.Embedding;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.ai.embedding.EmbeddingRequest;
+import org.springframework.ai.embedding.EmbeddingResponse;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 把分词结果哈希到固定维度，代替真实的向量模型
+ */
+class HashingEmbeddingModel implements EmbeddingModel {
+
+    private static final int DIMENSIONS = 256;
+
+    @Override
+    public EmbeddingResponse call(EmbeddingRequest request) {
+        List<Embedding> embeddings = new ArrayList<>();
+        for (int i = 0; i < request.getInstructions().size(); i++) {
+            embeddings.add(new Embedding(hash(request.getInstructions().get(i)), i));
+        }
+        return new EmbeddingResponse(embeddings);
+    }
+
+    @Override
+    public float[] embed(Document document) {
+        return hash(document.getText());
+    }
+
+    @Override
+    public int dimensions() {
+        return DIMENSIONS;
+    }
+
+    private static float[] hash(String text) {
+        float[] vector = new float[DIMENSIONS];
+        for (String token : ChineseTokenizer.tokenize(text)) {
+            vector[Math.floorMod(token.hashCode(), DIMENSIONS)] += 1;
+        }
+        return vector;
+    }
+}
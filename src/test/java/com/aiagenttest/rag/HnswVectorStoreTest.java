@@ -0,0 +1,306 @@
+package com.aiagenttest.rag;
+
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.embedding.Embedding;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.ai.embedding.EmbeddingRequest;
+import org.springframework.ai.embedding.EmbeddingResponse;
+import org.springframework.ai.vectorstore.SearchRequest;
+import org.springframework.ai.vectorstore.SimpleVectorStore;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * HNSW 向量数据库与 SimpleVectorStore（线性扫描）的召回率对比、持久化和损坏文件处理
+ * <p>
+ * 使用固定随机种子生成的聚类向量代替真实的向量模型，不需要调用向量服务。
+ * 大规模耗时对比只在指定 -Dbenchmark=true 时运行。
+ */
+@Slf4j
+class HnswVectorStoreTest {
+
+    private static final int DOCUMENTS = 2000;
+
+    private static final int QUERIES = 50;
+
+    private static final int DIMENSIONS = 64;
+
+    private static final int TOP_K = 10;
+
+    private static final int FILES = 20;
+
+    private static Dataset dataset;
+
+    private static SimpleVectorStore simpleVectorStore;
+
+    private static HnswVectorStore hnswVectorStore;
+
+    @BeforeAll
+    static void setUp() {
+        dataset = Dataset.generate(DOCUMENTS, QUERIES);
+        simpleVectorStore = SimpleVectorStore.builder(dataset.embeddingModel()).build();
+        simpleVectorStore.add(dataset.documents());
+        hnswVectorStore = new HnswVectorStore(dataset.embeddingModel(), 16, 100, 64);
+        hnswVectorStore.add(dataset.documents());
+    }
+
+    @Test
+    void recallAgainstLinearScan() {
+        List<Set<String>> expected = linearScan(simpleVectorStore, dataset.queries());
+        for (int efSearch : new int[]{64, 128}) {
+            hnswVectorStore.setEfSearch(efSearch);
+            double recall = recall(hnswVectorStore, dataset.queries(), expected);
+            Assertions.assertTrue(recall >= 0.95, "recall@10 at efSearch=" + efSearch + ": " + recall);
+        }
+        hnswVectorStore.setEfSearch(64);
+    }
+
+    @Test
+    void quantizedRecall(@TempDir Path dir) {
+        HnswVectorStore quantized = new HnswVectorStore(dataset.embeddingModel(), 16, 100, 64, true, dir);
+        try {
+            quantized.add(dataset.documents());
+            double recall = recall(quantized, dataset.queries(), linearScan(simpleVectorStore, dataset.queries()));
+            Assertions.assertTrue(recall >= 0.95, "int8 recall@10 at efSearch=64: " + recall);
+            Assertions.assertTrue(quantized.getResidentVectorBytes() * 3 < hnswVectorStore.getResidentVectorBytes());
+        } finally {
+            quantized.close();
+        }
+    }
+
+    @Test
+    void filterByFilename() {
+        String filter = "filename == 'file-3.md'";
+        for (String query : dataset.queries().subList(0, 20)) {
+            List<Document> expected = simpleVectorStore.similaritySearch(request(query).filterExpression(filter).build());
+            List<Document> results = hnswVectorStore.similaritySearch(request(query).filterExpression(filter).build());
+            Assertions.assertEquals(TOP_K, results.size());
+            results.forEach(document -> Assertions.assertEquals("file-3.md", document.getMetadata().get("filename")));
+            Set<String> overlap = ids(results);
+            overlap.retainAll(ids(expected));
+            Assertions.assertTrue(overlap.size() >= TOP_K - 1, "filtered overlap: " + overlap.size());
+        }
+    }
+
+    @Test
+    void saveAndLoad(@TempDir Path dir) {
+        Path path = dir.resolve("test.hnsw");
+        hnswVectorStore.save(path);
+        HnswVectorStore loaded = new HnswVectorStore(dataset.embeddingModel(), 16, 100, 64);
+        Assertions.assertTrue(loaded.load(path));
+        Assertions.assertEquals(DOCUMENTS, loaded.size());
+        for (String query : dataset.queries().subList(0, 20)) {
+            Assertions.assertEquals(ids(hnswVectorStore.similaritySearch(request(query).build())),
+                    ids(loaded.similaritySearch(request(query).build())));
+        }
+        // 重新写入未变化的文档不会重复建图
+        loaded.add(dataset.documents().subList(0, 100));
+        Assertions.assertEquals(DOCUMENTS, loaded.size());
+    }
+
+    @Test
+    void corruptFileIsRejected(@TempDir Path dir) throws IOException {
+        Path path = dir.resolve("test.hnsw");
+        hnswVectorStore.save(path);
+        byte[] original = Files.readAllBytes(path);
+
+        // 截断：读到一半遇到文件结尾
+        Path truncated = dir.resolve("truncated.hnsw");
+        Files.write(truncated, Arrays.copyOf(original, original.length / 2));
+        assertLoadFails(truncated);
+
+        // 索引头之后的节点数量被改成负数
+        Path negativeSize = dir.resolve("negative-size.hnsw");
+        Files.write(negativeSize, original);
+        try (RandomAccessFile file = new RandomAccessFile(negativeSize.toFile(), "rw")) {
+            // 存储头（魔数、版本、是否有索引）9 字节，索引头魔数、版本、维度、M、efConstruction 各 4 字节
+            file.seek(9 + 5 * Integer.BYTES);
+            file.writeInt(-1);
+        }
+        assertLoadFails(negativeSize);
+
+        // 文档数量与索引节点数不一致
+        Path countMismatch = dir.resolve("count-mismatch.hnsw");
+        Files.write(countMismatch, original);
+        try (RandomAccessFile file = new RandomAccessFile(countMismatch.toFile(), "rw")) {
+            file.seek(documentCountOffset(original));
+            file.writeInt(DOCUMENTS + 1);
+        }
+        assertLoadFails(countMismatch);
+    }
+
+    /**
+     * 1 万条文档的建图耗时和查询耗时对比，只用于手工评估参数，不参与默认测试
+     */
+    @Test
+    @Tag("benchmark")
+    @EnabledIfSystemProperty(named = "benchmark", matches = "true")
+    void latencyBenchmark() {
+        Dataset large = Dataset.generate(10000, 100);
+        SimpleVectorStore linear = SimpleVectorStore.builder(large.embeddingModel()).build();
+        linear.add(large.documents());
+
+        long start = System.currentTimeMillis();
+        HnswVectorStore hnsw = new HnswVectorStore(large.embeddingModel(), 16, 100, 64);
+        hnsw.add(large.documents());
+        log.info("HNSW build: {} documents in {}ms", large.documents().size(), System.currentTimeMillis() - start);
+
+        long linearStart = System.nanoTime();
+        List<Set<String>> expected = linearScan(linear, large.queries());
+        log.info("SimpleVectorStore: {}us/query", (System.nanoTime() - linearStart) / 1000 / large.queries().size());
+
+        for (int efSearch : new int[]{16, 32, 64, 128}) {
+            hnsw.setEfSearch(efSearch);
+            long hnswStart = System.nanoTime();
+            double recall = recall(hnsw, large.queries(), expected);
+            log.info("HNSW efSearch={}: recall@{}={}, {}us/query", efSearch, TOP_K, String.format("%.3f", recall),
+                    (System.nanoTime() - hnswStart) / 1000 / large.queries().size());
+        }
+        hnsw.close();
+    }
+
+    private static void assertLoadFails(Path path) {
+        HnswVectorStore store = new HnswVectorStore(dataset.embeddingModel(), 16, 100, 64);
+        Assertions.assertFalse(store.load(path));
+        Assertions.assertEquals(0, store.size());
+    }
+
+    /**
+     * 文档数量紧跟在索引之后：存储头 9 字节，索引头 8 个 int，之后每个节点为删除标记、向量、层数和各层邻居
+     */
+    private static long documentCountOffset(byte[] file) {
+        ByteBuffer buffer = ByteBuffer.wrap(file);
+        int position = 9;
+        int dimensions = buffer.getInt(position + 2 * Integer.BYTES);
+        int size = buffer.getInt(position + 5 * Integer.BYTES);
+        position += 8 * Integer.BYTES;
+        for (int node = 0; node < size; node++) {
+            position += 1 + dimensions * Float.BYTES;
+            int levels = buffer.getInt(position);
+            position += Integer.BYTES;
+            for (int l = 0; l < levels; l++) {
+                int count = buffer.getInt(position);
+                position += Integer.BYTES * (1 + count);
+            }
+        }
+        return position;
+    }
+
+    private static List<Set<String>> linearScan(SimpleVectorStore store, List<String> queries) {
+        List<Set<String>> expected = new ArrayList<>();
+        for (String query : queries) {
+            expected.add(ids(store.similaritySearch(request(query).build())));
+        }
+        return expected;
+    }
+
+    private static double recall(HnswVectorStore store, List<String> queries, List<Set<String>> expected) {
+        int hits = 0;
+        for (int i = 0; i < queries.size(); i++) {
+            for (String id : ids(store.similaritySearch(request(queries.get(i)).build()))) {
+                if (expected.get(i).contains(id)) {
+                    hits++;
+                }
+            }
+        }
+        return (double) hits / (queries.size() * TOP_K);
+    }
+
+    private static SearchRequest.Builder request(String query) {
+        return SearchRequest.builder().query(query).topK(TOP_K);
+    }
+
+    private static Set<String> ids(List<Document> documents) {
+        Set<String> ids = new HashSet<>();
+        documents.forEach(document -> ids.add(document.getId()));
+        return ids;
+    }
+
+    /**
+     * 固定种子生成的聚类向量、文档和查询
+     */
+    private record Dataset(List<Document> documents, List<String> queries, EmbeddingModel embeddingModel) {
+
+        static Dataset generate(int documentCount, int queryCount) {
+            Random random = new Random(7);
+            float[][] centers = new float[50][DIMENSIONS];
+            for (float[] center : centers) {
+                for (int i = 0; i < DIMENSIONS; i++) {
+                    center[i] = (float) random.nextGaussian();
+                }
+            }
+            Map<String, float[]> vectors = new HashMap<>();
+            List<Document> documents = new ArrayList<>();
+            List<String> queries = new ArrayList<>();
+            for (int i = 0; i < documentCount + queryCount; i++) {
+                float[] center = centers[random.nextInt(centers.length)];
+                float[] vector = new float[DIMENSIONS];
+                for (int j = 0; j < DIMENSIONS; j++) {
+                    vector[j] = center[j] + (float) random.nextGaussian() * 0.8f;
+                }
+                String text = i < documentCount ? "doc-" + i : "query-" + (i - documentCount);
+                vectors.put(text, vector);
+                if (i < documentCount) {
+                    documents.add(Document.builder()
+                            .id(String.valueOf(i))
+                            .text(text)
+                            .metadata(Map.of("filename", "file-" + (i % FILES) + ".md"))
+                            .build());
+                } else {
+                    queries.add(text);
+                }
+            }
+            return new Dataset(documents, queries, new FixedEmbeddingModel(vectors));
+        }
+    }
+
+    /**
+     * 按文本返回预先生成的向量
+     */
+    private static class FixedEmbeddingModel implements EmbeddingModel {
+
+        private final Map<String, float[]> vectors;
+
+        FixedEmbeddingModel(Map<String, float[]> vectors) {
+            this.vectors = vectors;
+        }
+
+        @Override
+        public EmbeddingResponse call(EmbeddingRequest request) {
+            List<Embedding> embeddings = new ArrayList<>();
+            for (int i = 0; i < request.getInstructions().size(); i++) {
+                embeddings.add(new Embedding(vectors.get(request.getInstructions().get(i)), i));
+            }
+            return new EmbeddingResponse(embeddings);
+        }
+
+        @Override
+        public float[] embed(Document document) {
+            return vectors.get(document.getText());
+        }
+
+        @Override
+        public int dimensions() {
+            return DIMENSIONS;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.aiagenttest.rag;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.rag.Query;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 中文分词、BM25 索引和 RRF 混合检索
+ */
+class HybridDocumentRetrieverTest {
+
+    private final List<Document> documents = List.of(
+            document("hotline", "如果情绪持续低落，可以拨打全国心理援助热线 400-161-9995，获得专业的心理支持。"),
+            document("drug", "舍曲林是一种常用的抗抑郁药物，需要在医生指导下服用，不要自行停药。"),
+            document("age", "18-25岁的年轻人在恋爱中常见的困扰包括沟通不畅和对未来的不确定。"),
+            document("sleep", "长期失眠会加重焦虑情绪，保持规律作息、睡前减少使用手机有助于改善睡眠。"),
+            document("breakup", "分手后感到难过是正常的，给自己一些时间，和朋友倾诉可以缓解孤独感。"));
+
+    private Bm25Index bm25Index;
+
+    private HnswVectorStore vectorStore;
+
+    @BeforeEach
+    void setUp() {
+        bm25Index = new Bm25Index();
+        bm25Index.replaceAll(documents);
+        vectorStore = new HnswVectorStore(new HashingEmbeddingModel(), 8, 50, 50);
+        vectorStore.add(documents);
+    }
+
+    @Test
+    void tokenize() {
+        Assertions.assertEquals(List.of("舍曲", "曲林"), ChineseTokenizer.tokenize("舍曲林"));
+        Assertions.assertEquals(List.of("我"), ChineseTokenizer.tokenize("我"));
+        Assertions.assertEquals(List.of("400", "161", "9995", "4001619995"), ChineseTokenizer.tokenize("400-161-9995"));
+        Assertions.assertEquals(List.of("18", "25", "岁"), ChineseTokenizer.tokenize("18-25岁"));
+        Assertions.assertEquals(List.of("ssri", "类药"), ChineseTokenizer.tokenize("SSRI类药"));
+    }
+
+    @Test
+    void bm25MatchesExactTerms() {
+        Assertions.assertEquals("hotline", bm25Index.search("4001619995", 3).get(0).document().getId());
+        Assertions.assertEquals("drug", bm25Index.search("舍曲林怎么吃", 3).get(0).document().getId());
+        Assertions.assertEquals("age", bm25Index.search("18岁", 3).get(0).document().getId());
+        Assertions.assertTrue(bm25Index.search("量子计算", 3).isEmpty());
+    }
+
+    @Test
+    void bm25DeleteAndReplace() {
+        bm25Index.delete(List.of("drug"));
+        Assertions.assertTrue(bm25Index.search("舍曲林", 3).isEmpty());
+        bm25Index.add(List.of(document("drug", "舍曲林的常见副作用包括恶心和失眠。")));
+        Assertions.assertEquals(5, bm25Index.size());
+        Assertions.assertEquals("drug", bm25Index.search("副作用", 3).get(0).document().getId());
+    }
+
+    @Test
+    void hybridFusesDenseAndLexicalRanks() {
+        HybridDocumentRetriever retriever = new HybridDocumentRetriever(vectorStore, bm25Index, 3, 5, 60, 0.5, 0.2, null);
+        List<Document> results = retriever.retrieve(new Query("心理援助热线电话是多少"));
+        Assertions.assertEquals(3, results.size());
+        Assertions.assertEquals("hotline", results.get(0).getId());
+        for (int i = 1; i < results.size(); i++) {
+            Assertions.assertTrue(results.get(i - 1).getScore() >= results.get(i).getScore());
+        }
+    }
+
+    @Test
+    void localFirstFallsBackWhenNothingMatches() {
+        List<Document> cloud = List.of(document("cloud", "云端知识库的结果"));
+        HybridDocumentRetriever retriever = new HybridDocumentRetriever(vectorStore, bm25Index, 3, 5, 60, 0.5, 0.2,
+                query -> cloud);
+        Assertions.assertEquals(cloud, retriever.retrieve(new Query("quantum computing")));
+        // 只命中「恋爱」「怎么」等常见词，关键词检索有结果但不可信
+        Assertions.assertFalse(bm25Index.search("恋爱中怎么学习做饭", 3).isEmpty());
+        Assertions.assertEquals(cloud, retriever.retrieve(new Query("恋爱中怎么学习做饭")));
+        Assertions.assertNotEquals(cloud, retriever.retrieve(new Query("舍曲林")));
+        Assertions.assertNotEquals(cloud, retriever.retrieve(new Query("舍曲林怎么吃")));
+    }
+
+    private static Document document(String id, String text) {
+        return Document.builder().id(id).text(text).metadata(Map.of("filename", id + ".md")).build();
+    }
+}
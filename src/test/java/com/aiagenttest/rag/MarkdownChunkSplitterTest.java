@@ -0,0 +1,69 @@
+package com.aiagenttest.rag;
+
+import com.aiagenttest.utils.TokenEstimator;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.document.Document;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Markdown 分片按 token 数切分、合并和重叠
+ */
+class MarkdownChunkSplitterTest {
+
+    private final MarkdownChunkSplitter splitter = new MarkdownChunkSplitter(true, 100, 20, 30, true);
+
+    @Test
+    void sectionWithinTargetGetsHeading() {
+        List<Document> chunks = splitter.split(List.of(section("睡眠不足会影响心理健康吗？",
+                "确实如此。充足的睡眠对于保持良好的精神状态至关重要，建议每天保证8小时左右的高质量睡眠。")));
+        Assertions.assertEquals(1, chunks.size());
+        Assertions.assertTrue(chunks.get(0).getText().startsWith("青少年心理健康 / 睡眠不足会影响心理健康吗？\n确实如此。"));
+        Assertions.assertEquals("睡眠不足会影响心理健康吗？", chunks.get(0).getMetadata().get("title"));
+    }
+
+    @Test
+    void longSectionIsSplitWithOverlap() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 1; i <= 20; i++) {
+            text.append("第").append(i).append("条建议是保持规律作息并适当运动。");
+        }
+        List<Document> chunks = splitter.split(List.of(section("如何缓解焦虑？", text.toString())));
+        Assertions.assertTrue(chunks.size() > 1);
+        for (Document chunk : chunks) {
+            Assertions.assertTrue(TokenEstimator.estimate(chunk.getText()) <= 100, chunk.getText());
+            Assertions.assertTrue(chunk.getText().startsWith("青少年心理健康 / 如何缓解焦虑？\n"));
+        }
+        // 下一个分片以上一个分片的最后一句开头
+        String first = chunks.get(0).getText();
+        String lastSentence = first.substring(first.lastIndexOf('\n') + 1);
+        Assertions.assertTrue(chunks.get(1).getText().contains(lastSentence));
+        Assertions.assertTrue(chunks.get(chunks.size() - 1).getText().contains("第20条建议"));
+    }
+
+    @Test
+    void shortSectionsAreMerged() {
+        List<Document> chunks = splitter.split(List.of(section("热线", "400-161-9995"),
+                section("时间", "全天开放"),
+                section("怎样才能提高自信心？", "建立自信是一个逐步积累的过程，参加兴趣小组或体育活动能够帮助你在实践中增强自我价值感。")));
+        // 两个过短的小节合并后达到 minTokens，第三个小节单独成片
+        Assertions.assertEquals(2, chunks.size());
+        Assertions.assertTrue(chunks.get(0).getText().contains("400-161-9995"));
+        Assertions.assertTrue(chunks.get(0).getText().contains("青少年心理健康 / 时间\n全天开放"));
+        Assertions.assertEquals("热线", chunks.get(0).getMetadata().get("title"));
+        Assertions.assertTrue(chunks.get(1).getText().startsWith("青少年心理健康 / 怎样才能提高自信心？"));
+    }
+
+    @Test
+    void stats() {
+        MarkdownChunkSplitter.ChunkStats stats = MarkdownChunkSplitter.stats(List.of(
+                new Document("一二三"), new Document("一二三四五"), new Document("一")));
+        Assertions.assertEquals(new MarkdownChunkSplitter.ChunkStats(3, 1, 3, 5, 5, 3), stats);
+    }
+
+    private static Document section(String title, String text) {
+        return Document.builder().text(text).metadata(Map.of("filename", "青少年心理健康.md", "title", title)).build();
+    }
+}
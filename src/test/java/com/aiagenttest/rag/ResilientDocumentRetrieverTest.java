@@ -0,0 +1,129 @@
+package com.aiagenttest.rag;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.rag.Query;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 检索器的延迟预算、对冲请求、熔断和降级
+ */
+class ResilientDocumentRetrieverTest {
+
+    private static final List<Document> CLOUD = List.of(new Document("云端结果"));
+
+    private static final List<Document> LOCAL = List.of(new Document("本地结果"));
+
+    @Test
+    void slowCallFallsBackWithinBudget() {
+        try (ResilientDocumentRetriever retriever = new ResilientDocumentRetriever(query -> {
+            sleep(2000);
+            return CLOUD;
+        }, query -> LOCAL, 200, false, 50, 5, 10_000, 4)) {
+            long start = System.currentTimeMillis();
+            assertDegraded(retriever.retrieve(new Query("失眠")));
+            Assertions.assertTrue(System.currentTimeMillis() - start < 1000);
+            Assertions.assertEquals(1L, retriever.getMetrics().get("timeouts"));
+        }
+    }
+
+    @Test
+    void hedgedRequestWinsWhenFirstIsSlow() {
+        AtomicInteger attempts = new AtomicInteger();
+        try (ResilientDocumentRetriever retriever = new ResilientDocumentRetriever(query -> {
+            // 第一次请求卡住，对冲请求立即返回
+            if (attempts.incrementAndGet() == 1) {
+                sleep(2000);
+            }
+            return CLOUD;
+        }, query -> LOCAL, 1000, true, 50, 5, 10_000, 4)) {
+            Assertions.assertEquals(CLOUD, retriever.retrieve(new Query("失眠")));
+            Assertions.assertEquals(1L, retriever.getMetrics().get("hedged"));
+            Assertions.assertEquals(1L, retriever.getMetrics().get("hedgeWins"));
+        }
+    }
+
+    @Test
+    void circuitOpensAndRecovers() {
+        AtomicInteger calls = new AtomicInteger();
+        AtomicInteger failuresLeft = new AtomicInteger(3);
+        try (ResilientDocumentRetriever retriever = new ResilientDocumentRetriever(query -> {
+            calls.incrementAndGet();
+            if (failuresLeft.getAndDecrement() > 0) {
+                throw new IllegalStateException("knowledge base unavailable");
+            }
+            return CLOUD;
+        }, query -> LOCAL, 1000, false, 50, 3, 200, 4)) {
+            for (int i = 0; i < 3; i++) {
+                assertDegraded(retriever.retrieve(new Query("失眠")));
+            }
+            Assertions.assertEquals("OPEN", retriever.getMetrics().get("circuit"));
+            // 熔断期间不请求云端
+            assertDegraded(retriever.retrieve(new Query("失眠")));
+            Assertions.assertEquals(3, calls.get());
+            Assertions.assertEquals(1L, retriever.getMetrics().get("shortCircuited"));
+
+            sleep(300);
+            Assertions.assertEquals(CLOUD, retriever.retrieve(new Query("失眠")));
+            Assertions.assertEquals("CLOSED", retriever.getMetrics().get("circuit"));
+        }
+    }
+
+    @Test
+    void fallbackFailureReturnsEmpty() {
+        try (ResilientDocumentRetriever retriever = new ResilientDocumentRetriever(query -> {
+            throw new IllegalStateException("knowledge base unavailable");
+        }, query -> {
+            throw new IllegalStateException("local store unavailable");
+        }, 1000, false, 50, 5, 10_000, 4)) {
+            Assertions.assertTrue(retriever.retrieve(new Query("失眠")).isEmpty());
+        }
+    }
+
+    @Test
+    void localRejectionDoesNotOpenCircuit() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        try (ResilientDocumentRetriever retriever = new ResilientDocumentRetriever(query -> {
+            awaitQuietly(release);
+            return CLOUD;
+        }, query -> LOCAL, 2000, false, 50, 2, 10_000, 1)) {
+            // 占满唯一的线程，之后的请求被本地线程池拒绝
+            Thread busy = new Thread(() -> retriever.retrieve(new Query("失眠")));
+            busy.start();
+            sleep(100);
+            for (int i = 0; i < 3; i++) {
+                assertDegraded(retriever.retrieve(new Query("焦虑")));
+            }
+            Assertions.assertEquals(3L, retriever.getMetrics().get("rejected"));
+            Assertions.assertEquals(0L, retriever.getMetrics().get("failures"));
+            Assertions.assertEquals("CLOSED", retriever.getMetrics().get("circuit"));
+            release.countDown();
+            busy.join();
+        }
+    }
+
+    private static void assertDegraded(List<Document> documents) {
+        Assertions.assertEquals(List.of("本地结果"), documents.stream().map(Document::getText).toList());
+        Assertions.assertTrue(ResilientDocumentRetriever.isDegraded(documents));
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
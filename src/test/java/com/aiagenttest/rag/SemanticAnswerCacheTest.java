@@ -0,0 +1,86 @@
+package com.aiagenttest.rag;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.document.Document;
+
+import java.util.List;
+
+/**
+ * 语义回答缓存的命中、租户隔离、个人历史和过期
+ */
+class SemanticAnswerCacheTest {
+
+    private static final List<Document> CONTEXT = List.of(new Document("考试焦虑可以通过规律作息和放松训练缓解。"));
+
+    @Test
+    void similarQuestionServesCachedAnswer() {
+        SemanticAnswerCache cache = new SemanticAnswerCache(new HashingEmbeddingModel(), true, true, 0.9, 0.6, 60_000, 100);
+        SemanticAnswerCache.Match miss = cache.lookup("a", "孩子考试焦虑怎么办", true);
+        Assertions.assertEquals(SemanticAnswerCache.Kind.MISS, miss.kind());
+        cache.complete(miss, "可以和孩子一起制定复习计划。", CONTEXT, 1000);
+
+        SemanticAnswerCache.Match hit = cache.lookup("a", "孩子考试焦虑怎么办？", true);
+        Assertions.assertEquals(SemanticAnswerCache.Kind.ANSWER, hit.kind());
+        Assertions.assertEquals("可以和孩子一起制定复习计划。", hit.answer());
+        cache.complete(hit, hit.answer(), hit.context(), 10);
+
+        Assertions.assertEquals(1L, cache.getMetrics().get("answerHits"));
+        Assertions.assertEquals(990L, cache.getMetrics().get("latencySavedMillis"));
+    }
+
+    @Test
+    void paraphraseReusesContextOnly() {
+        SemanticAnswerCache cache = new SemanticAnswerCache(new HashingEmbeddingModel(), true, true, 0.95, 0.5, 60_000, 100);
+        SemanticAnswerCache.Match miss = cache.lookup("a", "孩子考试焦虑怎么办", true);
+        cache.complete(miss, "回答", CONTEXT, 1000);
+
+        SemanticAnswerCache.Match hit = cache.lookup("a", "孩子考试前很焦虑", true);
+        Assertions.assertEquals(SemanticAnswerCache.Kind.CONTEXT, hit.kind());
+        Assertions.assertEquals(CONTEXT, hit.context());
+        Assertions.assertNull(hit.answer());
+    }
+
+    @Test
+    void tenantsAndPersonalHistoryAreIsolated() {
+        SemanticAnswerCache cache = new SemanticAnswerCache(new HashingEmbeddingModel(), true, true, 0.9, 0.6, 60_000, 100);
+        cache.complete(cache.lookup("a", "失眠怎么办", true), "回答", CONTEXT, 1000);
+
+        Assertions.assertEquals(SemanticAnswerCache.Kind.MISS, cache.lookup("b", "失眠怎么办", true).kind());
+        // 带个人历史的会话不直接返回回答，只复用检索结果
+        Assertions.assertEquals(SemanticAnswerCache.Kind.CONTEXT, cache.lookup("a", "失眠怎么办", false).kind());
+
+        // 带个人历史的会话生成的回答不缓存
+        cache.complete(cache.lookup("b", "失眠怎么办", false), null, CONTEXT, 1000);
+        Assertions.assertEquals(SemanticAnswerCache.Kind.CONTEXT, cache.lookup("b", "失眠怎么办", true).kind());
+    }
+
+    @Test
+    void expiredAndEvictedEntriesAreNotServed() {
+        SemanticAnswerCache expiring = new SemanticAnswerCache(new HashingEmbeddingModel(), true, true, 0.9, 0.6, 0, 100);
+        expiring.complete(expiring.lookup("a", "失眠怎么办", true), "回答", CONTEXT, 1000);
+        Assertions.assertEquals(SemanticAnswerCache.Kind.MISS, expiring.lookup("a", "失眠怎么办", true).kind());
+
+        SemanticAnswerCache bounded = new SemanticAnswerCache(new HashingEmbeddingModel(), true, true, 0.9, 0.6, 60_000, 2);
+        for (String question : List.of("失眠怎么办", "分手后很难过", "工作压力大", "和父母吵架了")) {
+            bounded.complete(bounded.lookup("a", question, true), question + "的回答", CONTEXT, 1000);
+        }
+        Assertions.assertEquals(2, bounded.getMetrics().get("entries"));
+        Assertions.assertEquals(SemanticAnswerCache.Kind.MISS, bounded.lookup("a", "失眠怎么办", true).kind());
+        Assertions.assertEquals("和父母吵架了的回答", bounded.lookup("a", "和父母吵架了", true).answer());
+    }
+
+    @Test
+    void answersAreNotSharedWithoutTenantOrOptIn() {
+        SemanticAnswerCache cache = new SemanticAnswerCache(new HashingEmbeddingModel(), true, true, 0.9, 0.6, 60_000, 100);
+        cache.complete(cache.lookup(null, "失眠怎么办", true), "回答", CONTEXT, 1000);
+        // 没有租户时只复用检索结果
+        SemanticAnswerCache.Match hit = cache.lookup(null, "失眠怎么办", true);
+        Assertions.assertEquals(SemanticAnswerCache.Kind.CONTEXT, hit.kind());
+        Assertions.assertEquals(SemanticAnswerCache.Kind.MISS, cache.lookup("a", "失眠怎么办", true).kind());
+
+        SemanticAnswerCache contextOnly = new SemanticAnswerCache(new HashingEmbeddingModel(), true, false, 0.9, 0.6, 60_000, 100);
+        contextOnly.complete(contextOnly.lookup("a", "失眠怎么办", true), "回答", CONTEXT, 1000);
+        Assertions.assertEquals(SemanticAnswerCache.Kind.CONTEXT, contextOnly.lookup("a", "失眠怎么办", true).kind());
+    }
+}
@@ -0,0 +1,75 @@
+package com.aiagenttest.rag;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.ai.embedding.EmbeddingRequest;
+import org.springframework.ai.embedding.EmbeddingResponse;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 向量快照的复用，以及模型或维度变化时丢弃旧快照
+ */
+class SnapshotEmbeddingModelTest {
+
+    private static final List<String> TEXTS = List.of("失眠的时候可以先调整作息", "焦虑时试试腹式呼吸");
+
+    @TempDir
+    Path dir;
+
+    private final AtomicInteger embedded = new AtomicInteger();
+
+    @Test
+    void reusesSnapshotForSameModel() {
+        capture("text-embedding-v1", 0);
+        Assertions.assertEquals(2, embedded.getAndSet(0));
+
+        capture("text-embedding-v1", 0);
+        Assertions.assertEquals(0, embedded.get());
+    }
+
+    @Test
+    void discardsSnapshotWhenModelChanges() {
+        capture("text-embedding-v1", 0);
+        embedded.set(0);
+
+        capture("text-embedding-v2", 0);
+        Assertions.assertEquals(2, embedded.get());
+    }
+
+    @Test
+    void discardsSnapshotWhenDimensionsChange() {
+        capture("text-embedding-v3", 0);
+        embedded.set(0);
+
+        // 快照中的向量是 256 维，配置为 1024 维时不能复用
+        capture("text-embedding-v3", 1024);
+        Assertions.assertEquals(2, embedded.getAndSet(0));
+
+        capture("text-embedding-v3", 256);
+        Assertions.assertEquals(0, embedded.get());
+    }
+
+    private void capture(String modelId, int dimensions) {
+        SnapshotEmbeddingModel model = new SnapshotEmbeddingModel(new CountingEmbeddingModel(),
+                dir.resolve("test.snapshot"), modelId, dimensions);
+        model.beginCapture();
+        model.embed(TEXTS);
+        model.endCapture(true);
+    }
+
+    /**
+     * 统计实际计算向量的文本数量
+     */
+    private class CountingEmbeddingModel extends HashingEmbeddingModel {
+
+        @Override
+        public EmbeddingResponse call(EmbeddingRequest request) {
+            embedded.addAndGet(request.getInstructions().size());
+            return super.call(request);
+        }
+    }
+}